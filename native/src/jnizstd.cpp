@@ -13,10 +13,15 @@ JNIEXPORT jint JNICALL Java_abex_os_debug_ZstdOutputStream_cStreamOutSize(JNIEnv
 	return (jint) ZSTD_CStreamOutSize();
 }
 
-JNIEXPORT jlong JNICALL Java_abex_os_debug_ZstdOutputStream_new0(JNIEnv *_env, jclass _klass, jint level) {
+JNIEXPORT jlong JNICALL Java_abex_os_debug_ZstdOutputStream_new0(JNIEnv *_env, jclass _klass, jint level, jint workers, jint jobSize) {
 	ZSTD_CStream *zcs = ZSTD_createCStream();
 	if (zcs) {
-		ZSTD_initCStream(zcs, level);
+		ZSTD_CCtx_reset(zcs, ZSTD_reset_session_and_parameters);
+		ZSTD_CCtx_setParameter(zcs, ZSTD_c_compressionLevel, level);
+		// this fails if zstd was built without threading, in which case we just compress on the calling thread
+		if (workers > 0 && !ZSTD_isError(ZSTD_CCtx_setParameter(zcs, ZSTD_c_nbWorkers, workers)) && jobSize > 0) {
+			ZSTD_CCtx_setParameter(zcs, ZSTD_c_jobSize, jobSize);
+		}
 	}
 	return (jlong) zcs;
 }
@@ -30,32 +35,119 @@ JNIEXPORT void JNICALL Java_abex_os_debug_ZstdOutputStream_free0(JNIEnv *_env, j
 	ZSTD_freeCStream(zcs);
 }
 
-JNIEXPORT jlong JNICALL Java_abex_os_debug_ZstdOutputStream_compress0(JNIEnv *env, jclass _klass, jlong stream, jbyteArray in, jint inOff, jint inLen, jbyteArray out, jint op) {
+JNIEXPORT jlong JNICALL Java_abex_os_debug_ZstdOutputStream_compress0(JNIEnv *env, jclass _klass, jlong stream, jobject in, jint inOff, jint inLen, jobject out, jint op) {
 	if (!stream) {
 		return 0;
 	}
 
 	ZSTD_CStream *zcs = (ZSTD_CStream*) stream;
 
-	ZSTD_outBuffer outBuffer = { nullptr, 0, 0 };
-	outBuffer.size = (size_t) env->GetArrayLength(out);
-	outBuffer.dst =	env->GetPrimitiveArrayCritical(out, nullptr);
+	ZSTD_outBuffer outBuffer = { env->GetDirectBufferAddress(out), (size_t) env->GetDirectBufferCapacity(out), 0 };
+	ZSTD_inBuffer inBuffer = { env->GetDirectBufferAddress(in), (size_t) (inOff + inLen), (size_t) inOff };
+	if (!outBuffer.dst || !inBuffer.src) {
+		jclass iae = env->FindClass("java/lang/IllegalArgumentException");
+		env->ThrowNew(iae, "not a direct buffer");
+		return 0;
+	}
+
+	size_t result = ZSTD_compressStream2(zcs, &outBuffer, &inBuffer, (ZSTD_EndDirective) op);
+
+	if (ZSTD_isError(result)) {
+		const char *errName = ZSTD_getErrorName(result);
+		jclass ioe = env->FindClass("java/io/IOException");
+		env->ThrowNew(ioe, errName);
+		return 0;
+	}
+
+	bool more = result > 0;
+
+	jlong packedOut = (((jlong) (inBuffer.pos - inOff)) << 32)
+		| (((jlong) more) << 31)
+		| (outBuffer.pos & 0x7FFF'FFFF);
+
+	return packedOut;
+}
+
+// compresses from a java array, which is only pinned for as long as this one call takes
+JNIEXPORT jlong JNICALL Java_abex_os_debug_ZstdOutputStream_compressArray0(JNIEnv *env, jclass _klass, jlong stream, jbyteArray in, jint inOff, jint inLen, jobject out, jint op) {
+	if (!stream) {
+		return 0;
+	}
+
+	ZSTD_CStream *zcs = (ZSTD_CStream*) stream;
+
+	void *outPtr = env->GetDirectBufferAddress(out);
+	if (!outPtr) {
+		jclass iae = env->FindClass("java/lang/IllegalArgumentException");
+		env->ThrowNew(iae, "not a direct buffer");
+		return 0;
+	}
+
+	jbyte *inPtr = (jbyte*) env->GetPrimitiveArrayCritical(in, 0);
+	if (!inPtr) {
+		return 0;
+	}
+
+	ZSTD_outBuffer outBuffer = { outPtr, (size_t) env->GetDirectBufferCapacity(out), 0 };
+	ZSTD_inBuffer inBuffer = { inPtr, (size_t) (inOff + inLen), (size_t) inOff };
+	size_t result = ZSTD_compressStream2(zcs, &outBuffer, &inBuffer, (ZSTD_EndDirective) op);
 
-	ZSTD_inBuffer inBuffer = { nullptr, (size_t) (inOff + inLen), (size_t) inOff };
-	inBuffer.src = env->GetPrimitiveArrayCritical(in, nullptr);
+	env->ReleasePrimitiveArrayCritical(in, inPtr, JNI_ABORT);
 
-	size_t result = 0;
-	if (outBuffer.dst && inBuffer.src) {
-		result = ZSTD_compressStream2(zcs, &outBuffer, &inBuffer, (ZSTD_EndDirective) op);
+	if (ZSTD_isError(result)) {
+		const char *errName = ZSTD_getErrorName(result);
+		jclass ioe = env->FindClass("java/io/IOException");
+		env->ThrowNew(ioe, errName);
+		return 0;
 	}
 
-	if (inBuffer.src) {
-		env->ReleasePrimitiveArrayCritical(in, (void*) inBuffer.src, JNI_ABORT);
+	bool more = result > 0;
+
+	jlong packedOut = (((jlong) (inBuffer.pos - inOff)) << 32)
+		| (((jlong) more) << 31)
+		| (outBuffer.pos & 0x7FFF'FFFF);
+
+	return packedOut;
+}
+
+JNIEXPORT jint JNICALL Java_abex_os_debug_ZstdInputStream_dStreamInSize(JNIEnv *_env, jclass _klass) {
+	return (jint) ZSTD_DStreamInSize();
+}
+
+JNIEXPORT jint JNICALL Java_abex_os_debug_ZstdInputStream_dStreamOutSize(JNIEnv *_env, jclass _klass) {
+	return (jint) ZSTD_DStreamOutSize();
+}
+
+JNIEXPORT jlong JNICALL Java_abex_os_debug_ZstdInputStream_new0(JNIEnv *_env, jclass _klass) {
+	return (jlong) ZSTD_createDStream();
+}
+
+JNIEXPORT void JNICALL Java_abex_os_debug_ZstdInputStream_free0(JNIEnv *_env, jclass _klass, jlong stream) {
+	if (!stream) {
+		return;
 	}
-	if (outBuffer.dst) {
-		env->ReleasePrimitiveArrayCritical(out, outBuffer.dst, 0);
+
+	ZSTD_DStream *zds = (ZSTD_DStream*) stream;
+	ZSTD_freeDStream(zds);
+}
+
+JNIEXPORT jlong JNICALL Java_abex_os_debug_ZstdInputStream_decompress0(JNIEnv *env, jclass _klass, jlong stream, jobject in, jint inOff, jint inLen, jobject out) {
+	if (!stream) {
+		return 0;
 	}
 
+	ZSTD_DStream *zds = (ZSTD_DStream*) stream;
+
+	ZSTD_outBuffer outBuffer = { env->GetDirectBufferAddress(out), (size_t) env->GetDirectBufferCapacity(out), 0 };
+	ZSTD_inBuffer inBuffer = { env->GetDirectBufferAddress(in), (size_t) (inOff + inLen), (size_t) inOff };
+	if (!outBuffer.dst || !inBuffer.src) {
+		jclass iae = env->FindClass("java/lang/IllegalArgumentException");
+		env->ThrowNew(iae, "not a direct buffer");
+		return 0;
+	}
+
+	size_t result = ZSTD_decompressStream(zds, &outBuffer, &inBuffer);
+
 	if (ZSTD_isError(result)) {
 		const char *errName = ZSTD_getErrorName(result);
 		jclass ioe = env->FindClass("java/io/IOException");
@@ -63,10 +155,11 @@ JNIEXPORT jlong JNICALL Java_abex_os_debug_ZstdOutputStream_compress0(JNIEnv *en
 		return 0;
 	}
 
+	// result is 0 once a frame has been completely decoded and flushed
 	bool more = result > 0;
 
 	jlong packedOut = (((jlong) (inBuffer.pos - inOff)) << 32)
-		| ((more & 1) << 31)
+		| (((jlong) more) << 31)
 		| (outBuffer.pos & 0x7FFF'FFFF);
 
 	return packedOut;
@@ -0,0 +1,78 @@
+package abex.os.debug;
+
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 2)
+@Measurement(iterations = 5)
+@Fork(value = 1, jvmArgs = {"-Xmx4g", "-Xss512m"})
+@State(Scope.Benchmark)
+public class DominatorBenchmark
+{
+	@Param({"1000000"})
+	public int nodes;
+
+	@Param({"TREE", "CHAIN", "RANDOM"})
+	public SyntheticHeapDump.Shape shape;
+
+	@Param({"SEMI_NCA", "LENGAUER_TARJAN"})
+	public String algorithm;
+
+	private ObjectGraph graph;
+	private DominatorAlgorithm dominators;
+
+	// the same shapes as SyntheticHeapDump, without going through a dump. Node 0 is the root
+	@Setup(Level.Trial)
+	public void setup()
+	{
+		Random r = new Random(1);
+		int[][] succs = new int[nodes][];
+		for (int i = 0; i < nodes; i++)
+		{
+			switch (shape)
+			{
+				case CHAIN:
+					succs[i] = i + 1 < nodes ? new int[]{i + 1} : new int[0];
+					break;
+				case TREE:
+				case RANDOM:
+				{
+					int children = Math.max(0, Math.min(2, nodes - (i * 2 + 1)));
+					int extra = shape == SyntheticHeapDump.Shape.RANDOM && r.nextInt(10) == 0 ? 1 + r.nextInt(8) : 0;
+					succs[i] = new int[children + extra];
+					for (int c = 0; c < children; c++)
+					{
+						succs[i][c] = i * 2 + 1 + c;
+					}
+					for (int e = 0; e < extra; e++)
+					{
+						succs[i][children + e] = 1 + r.nextInt(nodes - 1);
+					}
+					break;
+				}
+			}
+		}
+		graph = ObjectGraph.fromAdjacency(succs);
+		dominators = algorithm.equals("SEMI_NCA") ? new SemiNca() : new LengauerTarjan();
+	}
+
+	@Benchmark
+	public Object computeIdom()
+	{
+		return dominators.computeIdom(graph, 0);
+	}
+}
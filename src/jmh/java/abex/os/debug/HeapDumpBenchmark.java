@@ -0,0 +1,114 @@
+package abex.os.debug;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.AuxCounters;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+// run with -prof gc to get the allocation rate of each stage
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 2)
+@Measurement(iterations = 5)
+@Fork(value = 1, jvmArgs = {"-Xmx4g", "-Xss512m"})
+@State(Scope.Benchmark)
+public class HeapDumpBenchmark
+{
+	@Param({"1000000"})
+	public int objects;
+
+	@Param({"TREE", "RANDOM"})
+	public SyntheticHeapDump.Shape shape;
+
+	@Param({"0.3"})
+	public double stringDensity;
+
+	@Param({"8"})
+	public int identSize;
+
+	private File dir;
+	private File hprof;
+	private File out;
+
+	// reported per second like the score, so this comes out as the MB/s of input each benchmark gets through
+	@AuxCounters(AuxCounters.Type.OPERATIONS)
+	@State(Scope.Thread)
+	public static class Input
+	{
+		public double inputMB;
+	}
+
+	@Setup(Level.Trial)
+	public void setup() throws IOException
+	{
+		dir = Files.createTempDirectory("hprof-bench").toFile();
+		hprof = new File(dir, "synthetic.hprof");
+		out = new File(dir, "stripped");
+		new SyntheticHeapDump(objects, shape, stringDensity, identSize, 1).write(hprof);
+	}
+
+	@TearDown(Level.Trial)
+	public void tearDown()
+	{
+		hprof.delete();
+		out.delete();
+		dir.delete();
+	}
+
+	@Benchmark
+	public void stripUncompressed(Input input) throws IOException
+	{
+		try (var h = new HProfStripper(hprof, out))
+		{
+			h.runStripper();
+		}
+		input.inputMB += hprof.length() / 1e6;
+	}
+
+	@Benchmark
+	public void stripGzip(Input input) throws IOException
+	{
+		try (var h = new HProfStripper(hprof, out, false))
+		{
+			h.runStripper();
+		}
+		input.inputMB += hprof.length() / 1e6;
+	}
+
+	@Benchmark
+	public void stripZstd(Input input) throws IOException
+	{
+		ZstdOutputStream.init();
+		try (var h = new HProfStripper(hprof, out, true))
+		{
+			h.runStripper();
+		}
+		input.inputMB += hprof.length() / 1e6;
+	}
+
+	@Benchmark
+	public HProfStripper.RetainedSizeResult retainedSize(Input input) throws IOException
+	{
+		HProfStripper.RetainedSizeResult r;
+		try (var h = new HProfStripper(hprof))
+		{
+			r = h.runRetainedSizeComputer();
+		}
+		input.inputMB += hprof.length() / 1e6;
+		return r;
+	}
+}
@@ -0,0 +1,102 @@
+package abex.os.debug;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.AuxCounters;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 2)
+@Measurement(iterations = 5)
+@Fork(1)
+@State(Scope.Benchmark)
+public class SeekFileBenchmark
+{
+	private static final int SEEKS = 100_000;
+
+	@Param({"64"})
+	public int sizeMB;
+
+	@Param({"false", "true"})
+	public boolean mapped;
+
+	private File file;
+	private long[] offsets;
+
+	@AuxCounters(AuxCounters.Type.OPERATIONS)
+	@State(Scope.Thread)
+	public static class Input
+	{
+		public double inputMB;
+	}
+
+	@Setup(Level.Trial)
+	public void setup() throws IOException
+	{
+		file = Files.createTempFile("seekfile-bench", ".bin").toFile();
+		byte[] data = new byte[sizeMB << 20];
+		Random r = new Random(1);
+		r.nextBytes(data);
+		Files.write(file.toPath(), data);
+
+		offsets = new long[SEEKS];
+		for (int i = 0; i < SEEKS; i++)
+		{
+			offsets[i] = (long) (r.nextDouble() * (data.length - 8));
+		}
+	}
+
+	@TearDown(Level.Trial)
+	public void tearDown()
+	{
+		file.delete();
+	}
+
+	// the access pattern of parsing records: mostly ints and ids
+	@Benchmark
+	public long sequentialLongs(Input input) throws IOException
+	{
+		long sum = 0;
+		try (var in = new SeekFile(file, mapped))
+		{
+			for (long end = in.length() - 8; in.offset() <= end; )
+			{
+				sum += in.readLong();
+			}
+		}
+		input.inputMB += file.length() / 1e6;
+		return sum;
+	}
+
+	// the access pattern of resolving keepers through the offset index
+	@Benchmark
+	public long randomLongs() throws IOException
+	{
+		long sum = 0;
+		try (var in = new SeekFile(file, mapped))
+		{
+			for (long offset : offsets)
+			{
+				in.seek(offset);
+				sum += in.readLong();
+			}
+		}
+		return sum;
+	}
+}
@@ -0,0 +1,80 @@
+package abex.os.debug;
+
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.Writer;
+import lombok.AllArgsConstructor;
+
+/**
+ * Number of instances and their shallow and retained bytes for each class of a dump, indexed the same as
+ * {@link HProfStripper.RetainedSizeResult#classList}. A class' retained size is what its instances retain between
+ * them, so an instance dominated by another of the same class isn't counted again
+ */
+@AllArgsConstructor
+class ClassHistogram
+{
+	// null for classes whose name wasn't in the dump
+	final String[] names;
+	final int[] instances;
+	final long[] shallowSize;
+	final long[] retainedSize;
+
+	int size()
+	{
+		return names.length;
+	}
+
+	void writeCsv(Writer out) throws IOException
+	{
+		out.write("class,instances,shallow bytes,retained bytes\n");
+		for (int i = 0; i < names.length; i++)
+		{
+			if (instances[i] == 0)
+			{
+				continue;
+			}
+			out.write(csvField(String.valueOf(names[i])));
+			out.write("," + instances[i] + "," + shallowSize[i] + "," + retainedSize[i] + "\n");
+		}
+	}
+
+	private static String csvField(String s)
+	{
+		if (s.indexOf(',') < 0 && s.indexOf('"') < 0)
+		{
+			return s;
+		}
+		return '"' + s.replace("\"", "\"\"") + '"';
+	}
+
+	void write(DataOutputStream out) throws IOException
+	{
+		out.writeInt(names.length);
+		for (int i = 0; i < names.length; i++)
+		{
+			out.writeBoolean(names[i] != null);
+			if (names[i] != null)
+			{
+				out.writeUTF(names[i]);
+			}
+			out.writeInt(instances[i]);
+			out.writeLong(shallowSize[i]);
+			out.writeLong(retainedSize[i]);
+		}
+	}
+
+	static ClassHistogram read(DataInputStream in) throws IOException
+	{
+		int size = in.readInt();
+		var h = new ClassHistogram(new String[size], new int[size], new long[size], new long[size]);
+		for (int i = 0; i < size; i++)
+		{
+			h.names[i] = in.readBoolean() ? in.readUTF() : null;
+			h.instances[i] = in.readInt();
+			h.shallowSize[i] = in.readLong();
+			h.retainedSize[i] = in.readLong();
+		}
+		return h;
+	}
+}
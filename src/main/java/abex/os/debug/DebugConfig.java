@@ -33,4 +33,6 @@ public interface DebugConfig extends Config
 	String GROUP = "debug";
 	String CREATE_CORE_DUMP = "createCoreDump";
 	String CREATE_HEAP_DUMP = "createHeapDump";
+	String ANALYZE_HEAP_IN_SUBPROCESS = "analyzeHeapInSubprocess";
+	String HEAP_WEAK_REFERENCES = "heapWeakReferences";
 }
@@ -0,0 +1,11 @@
+package abex.os.debug;
+
+// computes the dominator tree of an ObjectGraph
+interface DominatorAlgorithm
+{
+	/**
+	 * @return the immediate dominator of every node, or -1 for the root and nodes it doesn't reach. The array comes
+	 * from the graph's storage
+	 */
+	IntArray computeIdom(ObjectGraph graph, int root);
+}
@@ -0,0 +1,229 @@
+package abex.os.debug;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+
+// dominator tree laid out the same way as ObjectGraph's predecessors. The children of node n are
+// children[start[n]] until children[start[n + 1]], in ascending order
+class DominatorTree
+{
+	// smaller trees aren't worth starting tasks for
+	private static final int PARALLEL_THRESHOLD = 1 << 16;
+	// a task only splits subtrees off while there are fewer than this many queued for other workers to steal
+	private static final int SURPLUS_TASKS = 2;
+
+	private final GraphStorage storage;
+	final int nodeCount;
+	final IntArray idom;
+	final IntArray start;
+	final IntArray children;
+
+	DominatorTree(GraphStorage storage, IntArray idom)
+	{
+		this.storage = storage;
+		this.idom = idom;
+		nodeCount = (int) idom.length();
+		start = storage.ints(nodeCount + 1);
+		children = storage.ints(nodeCount);
+
+		// count into start[d], then sum so it points at the end of d's children. Filling from the back leaves it
+		// at the beginning
+		int total = 0;
+		for (int i = 0; i < nodeCount; i++)
+		{
+			int d = idom.get(i);
+			if (d != -1)
+			{
+				start.set(d, start.get(d) + 1);
+				total++;
+			}
+		}
+		for (int i = 1; i < nodeCount; i++)
+		{
+			start.set(i, start.get(i) + start.get(i - 1));
+		}
+		start.set(nodeCount, total);
+
+		for (int i = nodeCount - 1; i >= 0; i--)
+		{
+			int d = idom.get(i);
+			if (d != -1)
+			{
+				int slot = start.get(d) - 1;
+				start.set(d, slot);
+				children.set(slot, i);
+			}
+		}
+	}
+
+	/**
+	 * Sums the shallow size and object count of every node under {@code root} into the node that dominates it,
+	 * in parallel if the tree is big enough and on the heap. Nodes not under root are left as 0
+	 */
+	void aggregate(int root, IntArray sizes, long[] retainedSize, int[] numObjects)
+	{
+		if (nodeCount < PARALLEL_THRESHOLD || storage.isMapped() || ForkJoinPool.getCommonPoolParallelism() < 2)
+		{
+			aggregateSequential(root, sizes, retainedSize, numObjects);
+		}
+		else
+		{
+			aggregateParallel(root, sizes, retainedSize, numObjects);
+		}
+	}
+
+	// dominator trees can be as deep as the heap, so list it breadth first and add each node to its dominator in
+	// reverse, which visits every node after all of its children
+	void aggregateSequential(int root, IntArray sizes, long[] retainedSize, int[] numObjects)
+	{
+		IntArray order = storage.ints(nodeCount);
+		int count = 0;
+		order.set(count++, root);
+		for (int i = 0; i < count; i++)
+		{
+			int v = order.get(i);
+			for (int e = start.get(v), end = start.get(v + 1); e < end; e++)
+			{
+				order.set(count++, children.get(e));
+			}
+		}
+
+		for (int i = count - 1; i >= 0; i--)
+		{
+			int v = order.get(i);
+			retainedSize[v] += sizes.get(v);
+			numObjects[v]++;
+			if (v != root)
+			{
+				int d = idom.get(v);
+				retainedSize[d] += retainedSize[v];
+				numObjects[d] += numObjects[v];
+			}
+		}
+		storage.free(order);
+	}
+
+	void aggregateParallel(int root, IntArray sizes, long[] retainedSize, int[] numObjects)
+	{
+		ForkJoinPool.commonPool().invoke(new Aggregate(root, sizes, retainedSize, numObjects));
+	}
+
+	// aggregates a subtree like aggregateSequential, except that while other workers are idle children are split
+	// off into their own tasks. Those are joined before the reverse pass, so their totals are added to their
+	// dominator before it is added to its own. Every node is written by exactly one task
+	private class Aggregate extends RecursiveAction
+	{
+		private final int root;
+		private final IntArray sizes;
+		private final long[] retainedSize;
+		private final int[] numObjects;
+
+		Aggregate(int root, IntArray sizes, long[] retainedSize, int[] numObjects)
+		{
+			this.root = root;
+			this.sizes = sizes;
+			this.retainedSize = retainedSize;
+			this.numObjects = numObjects;
+		}
+
+		@Override
+		protected void compute()
+		{
+			List<Aggregate> forked = new ArrayList<>();
+			int[] order = new int[64];
+			int count = 0;
+			order[count++] = root;
+			for (int i = 0; i < count; i++)
+			{
+				int v = order[i];
+				int first = start.get(v);
+				int end = start.get(v + 1);
+				for (int e = first; e < end; e++)
+				{
+					int c = children.get(e);
+					// always keep one child, so a task never ends up forking its whole frontier
+					if (e > first && getSurplusQueuedTaskCount() < SURPLUS_TASKS)
+					{
+						Aggregate task = new Aggregate(c, sizes, retainedSize, numObjects);
+						task.fork();
+						forked.add(task);
+						continue;
+					}
+					if (count == order.length)
+					{
+						order = Arrays.copyOf(order, order.length * 2);
+					}
+					order[count++] = c;
+				}
+			}
+
+			for (Aggregate task : forked)
+			{
+				task.join();
+				int d = idom.get(task.root);
+				retainedSize[d] += retainedSize[task.root];
+				numObjects[d] += numObjects[task.root];
+			}
+
+			for (int i = count - 1; i >= 0; i--)
+			{
+				int v = order[i];
+				retainedSize[v] += sizes.get(v);
+				numObjects[v]++;
+				if (v != root)
+				{
+					int d = idom.get(v);
+					retainedSize[d] += retainedSize[v];
+					numObjects[d] += numObjects[v];
+				}
+			}
+		}
+	}
+
+	/**
+	 * Adds the retained size of each node under {@code root} to {@code out[class]}, unless another node of its class
+	 * dominates it. Nodes with class -1 aren't counted
+	 */
+	void retainedByClass(int root, IntArray classes, long[] retainedSize, long[] out)
+	{
+		// depth first, counting how many nodes of each class are on the path to the current one. A node is pushed
+		// again as ~node once its children are, so it's popped after them and taken off the path
+		int[] onPath = new int[out.length];
+		IntArray stack = storage.ints(nodeCount);
+		int size = 0;
+		stack.set(size++, root);
+		for (; size > 0; )
+		{
+			int v = stack.get(--size);
+			if (v < 0)
+			{
+				onPath[classes.get(~v)]--;
+				continue;
+			}
+
+			int c = classes.get(v);
+			if (c >= 0)
+			{
+				if (onPath[c]++ == 0)
+				{
+					out[c] += retainedSize[v];
+				}
+				stack.set(size++, ~v);
+			}
+			for (int e = start.get(v), end = start.get(v + 1); e < end; e++)
+			{
+				stack.set(size++, children.get(e));
+			}
+		}
+		storage.free(stack);
+	}
+
+	void free()
+	{
+		storage.free(start);
+		storage.free(children);
+	}
+}
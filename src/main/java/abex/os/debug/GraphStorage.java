@@ -0,0 +1,233 @@
+package abex.os.debug;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileLock;
+import java.nio.channels.OverlappingFileLockException;
+import java.nio.file.Files;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Allocates the per object arrays of the retained size analysis, either on the heap or in memory mapped temp files
+ * for graphs that don't fit in it. Mapped arrays live until the storage is closed. Their files go in a directory of
+ * their own, which is locked while the storage is open, so files windows wouldn't delete while they were still mapped
+ * are swept by the next mapped storage in the same place
+ */
+class GraphStorage implements Closeable
+{
+	// the graph is ~10 ints per object and edge ids are a long each, which is about as much as the dump itself
+	private static final double HEAP_FRACTION = .4;
+	private static final String DIR_PREFIX = "hprof-graph";
+	private static final String LOCK_FILE = "lock";
+
+	// where the storage's directory goes, null to keep everything on the heap
+	private final File dir;
+	private final long heapBudget;
+	private final List<MappedFile> files = new ArrayList<>();
+	// made when the first array is mapped
+	private File graphDir;
+	private FileChannel lockChannel;
+
+	private GraphStorage(File dir, long heapBudget)
+	{
+		this.dir = dir;
+		this.heapBudget = heapBudget;
+	}
+
+	static GraphStorage heap()
+	{
+		return new GraphStorage(null, Long.MAX_VALUE);
+	}
+
+	static GraphStorage mapped(File dir)
+	{
+		return new GraphStorage(dir, Long.MAX_VALUE);
+	}
+
+	/**
+	 * @param heapBudget bytes of heap the analysis may use on top of the mapped graph
+	 */
+	static GraphStorage mapped(File dir, long heapBudget)
+	{
+		return new GraphStorage(dir, heapBudget);
+	}
+
+	/**
+	 * @param dumpSize size of the uncompressed dump, or {@link Long#MAX_VALUE} if it isn't known
+	 * @return heap storage if a graph of a dump that size fits comfortably in the heap, otherwise mapped storage
+	 */
+	static GraphStorage forDump(long dumpSize, File dir)
+	{
+		if (dumpSize < Runtime.getRuntime().maxMemory() * HEAP_FRACTION)
+		{
+			return heap();
+		}
+		return mapped(dir);
+	}
+
+	boolean isMapped()
+	{
+		return dir != null;
+	}
+
+	long heapBudget()
+	{
+		return heapBudget;
+	}
+
+	IntArray ints(long length)
+	{
+		if (dir == null)
+		{
+			return new IntArray.Heap(new int[Math.toIntExact(length)]);
+		}
+		return new IntArray.Mapped(newFile(), length);
+	}
+
+	LongArray longs(long length)
+	{
+		if (dir == null)
+		{
+			return new LongArray.Heap(new long[Math.toIntExact(length)]);
+		}
+		return new LongArray.Mapped(newFile(), length);
+	}
+
+	private MappedFile newFile()
+	{
+		try
+		{
+			if (graphDir == null)
+			{
+				createGraphDir();
+			}
+			MappedFile f = new MappedFile(graphDir);
+			files.add(f);
+			return f;
+		}
+		catch (IOException e)
+		{
+			throw new UncheckedIOException(e);
+		}
+	}
+
+	private void createGraphDir() throws IOException
+	{
+		sweep(dir);
+		File d = Files.createTempDirectory(dir.toPath(), DIR_PREFIX).toFile();
+		lockChannel = FileChannel.open(new File(d, LOCK_FILE).toPath(), StandardOpenOption.CREATE, StandardOpenOption.WRITE);
+		lockChannel.lock();
+		graphDir = d;
+	}
+
+	// deletes what's left in the directories of storages that are no longer open, in this process or any other
+	private static void sweep(File dir)
+	{
+		File[] dirs = dir.listFiles((parent, name) -> name.startsWith(DIR_PREFIX));
+		if (dirs == null)
+		{
+			return;
+		}
+		for (File d : dirs)
+		{
+			File lockFile = new File(d, LOCK_FILE);
+			// one that is still being made
+			if (!lockFile.isFile())
+			{
+				continue;
+			}
+			try (var channel = FileChannel.open(lockFile.toPath(), StandardOpenOption.WRITE);
+				FileLock lock = channel.tryLock())
+			{
+				if (lock == null)
+				{
+					continue;
+				}
+				deleteFiles(d, lockFile);
+			}
+			catch (IOException | OverlappingFileLockException e)
+			{
+				continue;
+			}
+			deleteDir(d, lockFile);
+		}
+	}
+
+	private static void deleteFiles(File d, File keep)
+	{
+		File[] left = d.listFiles();
+		if (left != null)
+		{
+			for (File f : left)
+			{
+				if (!f.equals(keep))
+				{
+					f.delete();
+				}
+			}
+		}
+	}
+
+	// the lock file stays until the rest is gone, so a directory with files that couldn't be deleted is swept again
+	private static void deleteDir(File d, File lockFile)
+	{
+		String[] left = d.list();
+		if (left != null && left.length == 1)
+		{
+			lockFile.delete();
+			d.delete();
+		}
+	}
+
+	// deletes the file behind a mapped array once it isn't needed, instead of when the storage is closed
+	void free(IntArray array)
+	{
+		if (array instanceof IntArray.Mapped)
+		{
+			free(((IntArray.Mapped) array).file);
+		}
+	}
+
+	void free(LongArray array)
+	{
+		if (array instanceof LongArray.Mapped)
+		{
+			free(((LongArray.Mapped) array).file);
+		}
+	}
+
+	private void free(MappedFile file)
+	{
+		try
+		{
+			file.close();
+			files.remove(file);
+		}
+		catch (IOException e)
+		{
+			throw new UncheckedIOException(e);
+		}
+	}
+
+	@Override
+	public void close() throws IOException
+	{
+		for (MappedFile f : files)
+		{
+			f.close();
+		}
+		files.clear();
+
+		if (graphDir != null)
+		{
+			lockChannel.close();
+			deleteDir(graphDir, new File(graphDir, LOCK_FILE));
+			graphDir = null;
+		}
+	}
+}
@@ -1,21 +1,34 @@
 package abex.os.debug;
 
 import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
 import java.io.DataOutputStream;
 import java.io.EOFException;
 import java.io.File;
 import java.io.FileOutputStream;
 import java.io.IOException;
+import java.io.InterruptedIOException;
 import java.io.OutputStream;
+import java.nio.channels.FileChannel;
 import java.nio.charset.StandardCharsets;
+import java.util.ArrayDeque;
 import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.Collections;
+import java.util.Deque;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
 import java.util.zip.GZIPOutputStream;
+import lombok.AccessLevel;
 import lombok.AllArgsConstructor;
 import lombok.RequiredArgsConstructor;
+import lombok.Setter;
 
 public class HProfStripper implements AutoCloseable
 {
@@ -67,41 +80,167 @@ public class HProfStripper implements AutoCloseable
 
 	private int[] typeSizes;
 
+	// primitive arrays don't have a class in a dump, and object arrays might not, so they're given one named the way the
+	// jvm names them, by element type
+	private static final String[] ARRAY_CLASS_NAMES = {
+		null, null, "[Ljava/lang/Object;", null, "[Z", "[C", "[F", "[D", "[B", "[S", "[I", "[J",
+	};
+
+	// the kinds of gc root the retained size analysis roots objects by. Class statics aren't a sub-record of their own,
+	// they're read out of class dumps
+	private static final int GC_ROOT_STATIC = 0;
+	private static final int[] GC_ROOT_TAGS = {
+		-1, HPROF_GC_ROOT_JNI_GLOBAL, HPROF_GC_ROOT_JNI_LOCAL, HPROF_GC_ROOT_JAVA_FRAME, HPROF_GC_ROOT_NATIVE_STACK,
+		HPROF_GC_ROOT_STICKY_CLASS, HPROF_GC_ROOT_THREAD_BLOCK, HPROF_GC_ROOT_MONITOR_USED, HPROF_GC_ROOT_THREAD_OBJ,
+		HPROF_GC_ROOT_UNKNOWN,
+	};
+	// names the retained size analysis looks out for to tell which field of a Reference is its referent
+	private static final byte[] REFERENCE_CLASS = "java/lang/ref/Reference".getBytes(StandardCharsets.UTF_8);
+	private static final byte[] SOFT_REFERENCE_CLASS = "java/lang/ref/SoftReference".getBytes(StandardCharsets.UTF_8);
+	private static final byte[] REFERENT_FIELD = "referent".getBytes(StandardCharsets.UTF_8);
+
+	private static final String[] GC_ROOT_NAMES = {
+		"Class static", "JNI global", "JNI local", "Java frame", "Native stack", "Sticky class", "Thread block",
+		"Monitor used", "Thread", "Unknown",
+	};
+
+	// stripped dumps are written as seekable zstd, so they can be analyzed without decompressing them up front
+	private static final int ZSTD_FRAME_SIZE = 8 << 20;
+
 	private static final byte[] EXPECTED_HEADER = "JAVA PROFILE 1.0.2\0".getBytes(StandardCharsets.UTF_8);
 
+	private final File inFile;
 	private final SeekFile in;
 
 	private final DataOutputStream out;
+	// set when writing uncompressed, so verbatim ranges can be copied without passing through out
+	private final FileChannel outChannel;
+	// set when compressing with zstd, which out writes straight to, so verbatim ranges can be handed to it as they are
+	private final ZstdOutputStream zstdOut;
 
 	private long start;
 	private int identSize;
 
+	/**
+	 * Index instance and object array offsets on the first pass so recursive keeps can be resolved by seeking
+	 * to them, instead of re-reading the whole dump until nothing new is kept
+	 */
+	@Setter
+	private boolean indexKeepers = true;
+
+	/**
+	 * Number of threads heap dump segments are emitted on. With 1 everything is emitted on the calling thread. When
+	 * compressing with zstd it defaults to the cores zstd's workers don't get
+	 */
+	@Setter
+	private int emitThreads = Runtime.getRuntime().availableProcessors();
+
+	/**
+	 * Where the retained size graph is kept. By default it is on the heap unless the dump is too big for that,
+	 * in which case it is in memory mapped files next to the dump
+	 */
+	@Setter(AccessLevel.PACKAGE)
+	private GraphStorage graphStorage;
+
+	@Setter(AccessLevel.PACKAGE)
+	private DominatorAlgorithm dominatorAlgorithm = new SemiNca();
+
+	/**
+	 * Told which stage the retained size analysis is in, and how far through reading the dump it is
+	 */
+	@Setter
+	private ProgressListener progressListener;
+
+	/**
+	 * Keep the references and dominator tree on the heap after the retained size analysis, so its result can
+	 * answer {@link HeapQuery} queries
+	 */
+	@Setter
+	private boolean buildQueries;
+
+	/**
+	 * Don't count the referent of a java/lang/ref/Reference as retained by it, and instead report what is only
+	 * reachable through soft and other references separately
+	 */
+	@Setter
+	private boolean weakReferences;
+
+	/**
+	 * How big the objects in the dump are. By default it is inferred from the object ids, which are their addresses, see
+	 * {@link HotSpotLayout#infer} for what that can get wrong
+	 */
+	@Setter(AccessLevel.PACKAGE)
+	private ObjectLayout objectLayout;
+
+	public interface ProgressListener
+	{
+		/**
+		 * @param fraction how much of the stage is done, or -1 if that isn't known
+		 */
+		void progress(String stage, double fraction);
+	}
+
+	/**
+	 * The retained sizes of a dump need more heap than the graph storage's budget allows
+	 */
+	public static class HeapBudgetExceededException extends IOException
+	{
+		HeapBudgetExceededException(String message)
+		{
+			super(message);
+		}
+	}
+
 	public HProfStripper(File in, File out, boolean zstd) throws IOException
 	{
-		this.in = new SeekFile(in);
+		this.inFile = in;
+		this.in = SeekFile.open(in);
 		var fos = new FileOutputStream(out);
-		OutputStream gzo;
 		if (zstd)
 		{
-			gzo = new ZstdOutputStream(fos, 9);
+			// emitting and compressing would otherwise each keep every core busy, which starves the client when it's
+			// stripping its own dump
+			int cpus = Runtime.getRuntime().availableProcessors();
+			int workers = cpus / 2;
+			emitThreads = Math.max(1, cpus - workers);
+			// it buffers small writes itself, and a BufferedOutputStream in front would only copy big ones once more
+			this.zstdOut = new ZstdOutputStream(fos, 9, workers, 0, ZSTD_FRAME_SIZE);
+			this.out = new DataOutputStream(zstdOut);
 		}
 		else
 		{
-			gzo = new GZIPOutputStream(fos)
+			var gzo = new GZIPOutputStream(fos)
 			{
 				{
 					this.def.setLevel(3);
 				}
 			};
+			this.zstdOut = null;
+			this.out = new DataOutputStream(new BufferedOutputStream(gzo));
 		}
+		this.outChannel = null;
+	}
 
-		this.out = new DataOutputStream(new BufferedOutputStream(gzo));
+	/**
+	 * Writes the stripped dump uncompressed, for analyzing locally
+	 */
+	public HProfStripper(File in, File out) throws IOException
+	{
+		this.inFile = in;
+		this.in = SeekFile.open(in);
+		var fos = new FileOutputStream(out);
+		this.out = new DataOutputStream(new BufferedOutputStream(fos));
+		this.outChannel = fos.getChannel();
+		this.zstdOut = null;
 	}
 
 	public HProfStripper(File in) throws IOException
 	{
-		this.in = new SeekFile(in);
+		this.inFile = in;
+		this.in = SeekFile.open(in);
 		this.out = null;
+		this.outChannel = null;
+		this.zstdOut = null;
 	}
 
 	@Override
@@ -139,7 +278,7 @@ public class HProfStripper implements AutoCloseable
 
 		var fk = new FindKeepers();
 		fk.run();
-		var emit = new Emit(fk.keepObjects);
+		var emit = new Emit(fk.keepObjects, fk.classes);
 		emit.run();
 	}
 
@@ -163,48 +302,101 @@ public class HProfStripper implements AutoCloseable
 
 		start = in.offset();
 
-		var dv = new RetainedSizeComputer();
-		dv.run();
-		return dv.computeRetainedSizes();
+		try (var storage = graphStorage != null ? graphStorage : defaultGraphStorage())
+		{
+			var dv = new RetainedSizeComputer(storage);
+			dv.run();
+			progress("Resolving names", -1);
+			dv.resolveNames();
+			return dv.computeRetainedSizes();
+		}
 	}
 
-	protected long readId() throws IOException
+	// reports progress, and stops the analysis if the thread running it has been interrupted
+	private void progress(String stage, double fraction) throws InterruptedIOException
 	{
-		if (identSize == 4)
+		if (Thread.currentThread().isInterrupted())
 		{
-			return in.readU4();
+			throw new InterruptedIOException();
 		}
-		else if (identSize == 8)
+		if (progressListener != null)
 		{
-			return in.readLong();
+			progressListener.progress(stage, fraction);
 		}
-		throw new UnsupportedOperationException("" + identSize);
 	}
 
-	protected void writeId(long id) throws IOException
+	private GraphStorage defaultGraphStorage()
+	{
+		// a compressed stream doesn't know its size, so guess by a typical compression ratio
+		long size = in.length() != Long.MAX_VALUE ? in.length() : inFile.length() * 8;
+		return GraphStorage.forDump(size, inFile.getAbsoluteFile().getParentFile());
+	}
+
+	private class DumpVisitor
 	{
-		if (identSize == 4)
+		// visitors default to the stripper's streams, but parallel workers bring their own
+		protected SeekFile in = HProfStripper.this.in;
+		protected DataOutputStream out = HProfStripper.this.out;
+
+		protected long readId() throws IOException
+		{
+			if (identSize == 4)
+			{
+				return in.readU4();
+			}
+			else if (identSize == 8)
+			{
+				return in.readLong();
+			}
+			throw new UnsupportedOperationException("" + identSize);
+		}
+
+		protected void writeId(long id) throws IOException
 		{
-			out.writeInt((int) id);
+			if (identSize == 4)
+			{
+				out.writeInt((int) id);
+			}
+			else if (identSize == 8)
+			{
+				out.writeLong(id);
+			}
+			else
+			{
+				throw new UnsupportedOperationException("" + identSize);
+			}
 		}
-		else if (identSize == 8)
+
+		protected void zero(int bytes) throws IOException
 		{
-			out.writeLong(id);
+			skip(bytes);
+			for (; bytes > 0; )
+			{
+				int chunk = Math.min(zero.length, bytes);
+				out.write(zero, 0, chunk);
+				bytes -= chunk;
+			}
 		}
-		else
+
+		protected void skip(int bytes) throws IOException
 		{
-			throw new UnsupportedOperationException("" + identSize);
+			for (; bytes > 0; )
+			{
+				int read = in.skipBytes(bytes);
+				if (read < 0)
+				{
+					throw new EOFException();
+				}
+				bytes -= read;
+			}
 		}
-	}
 
-	private class DumpVisitor
-	{
 		public void run() throws IOException
 		{
 			try
 			{
 				in.seek(start);
-				for (; in.offset() != in.length(); )
+				for (; !in.atEnd(); )
 				{
 					int tag = in.readByte();
 					int ts = in.readInt();
@@ -212,6 +404,11 @@ public class HProfStripper implements AutoCloseable
 					section(tag, ts, bytes);
 				}
 			}
+			catch (HeapBudgetExceededException e)
+			{
+				// callers fall back on it, so it isn't wrapped like errors in the dump are
+				throw e;
+			}
 			catch (Exception e)
 			{
 				throw new IOException(e.getMessage() + " @ " + in.offset(), e);
@@ -321,30 +518,99 @@ public class HProfStripper implements AutoCloseable
 
 	private class FindKeepers extends DumpVisitor
 	{
+		private static final int MAX_DEPTH = 3;
+		// upper bound of the index's footprint per entry, right after it has grown
+		private static final int INDEX_ENTRY_BYTES = 64;
+
 		int pass = 0;
-		Map<Long, ClassMetadata> keepObjects = new HashMap<>();
-		Map<Long, Integer> recursiveKeepObjects = new HashMap<>();
+		LongHashSet keepObjects = new LongHashSet();
+		LongObjectHashMap<ClassMetadata> classes = new LongObjectHashMap<>();
+		LongIntHashMap recursiveKeepObjects = new LongIntHashMap();
 		boolean added;
 
+		// object id -> offset of its record, for instance and object array dumps
+		LongLongHashMap index;
+		long maxIndexSize;
+		LongArrayList[] pending;
+
 		@Override
 		public void run() throws IOException
 		{
+			// seeking around a compressed dump means decompressing it again, which is slower than extra passes
+			if (indexKeepers && !in.isSequential())
+			{
+				Runtime rt = Runtime.getRuntime();
+				long free = rt.maxMemory() - (rt.totalMemory() - rt.freeMemory());
+				maxIndexSize = free / 2 / INDEX_ENTRY_BYTES;
+				index = new LongLongHashMap();
+			}
+
 			for (pass = 0; pass == 0 || (recursiveKeepObjects.size() > 0 && added); pass++)
 			{
 				added = false;
 				super.run();
 				//System.out.println(pass + " " + recursiveKeepObjects.size() + " " + added);
+
+				if (index != null)
+				{
+					resolve();
+					return;
+				}
 			}
 		}
 
+		// walk the remaining recursive keeps through the index, instead of doing more passes
+		private void resolve() throws IOException
+		{
+			pass++;
+			pending = new LongArrayList[MAX_DEPTH + 1];
+			for (int i = 1; i < pending.length; i++)
+			{
+				pending[i] = new LongArrayList();
+			}
+			recursiveKeepObjects.forEach((id, depth) -> pending[depth].add(id));
+
+			// deepest first, so an object isn't walked at less than the depth it's reachable at
+			for (int depth = MAX_DEPTH; depth > 0; depth--)
+			{
+				LongArrayList queue = pending[depth];
+				for (; !queue.isEmpty(); )
+				{
+					long id = queue.pop();
+					if (recursiveKeepObjects.get(id, 0) != depth)
+					{
+						// already walked
+						continue;
+					}
+
+					long offset = index.get(id, -1);
+					if (offset < 0)
+					{
+						// a primitive array or something else without references
+						recursiveKeepObjects.remove(id, 0);
+						keepObjects.add(id);
+						continue;
+					}
+
+					in.seek(offset);
+					int tag = in.readByte();
+					readId();
+					readTag(tag, id);
+				}
+			}
+
+			index = null;
+			pending = null;
+		}
+
 		@Override
 		protected void section(int tag, int ts, int bytes) throws IOException
 		{
 			if (tag == HPROF_UTF8)
 			{
 				long id = readId();
-				recursiveKeepObjects.remove(id);
-				keepObjects.putIfAbsent(id, null);
+				recursiveKeepObjects.remove(id, 0);
+				keepObjects.add(id);
 				skip(bytes - identSize);
 				return;
 			}
@@ -382,15 +648,25 @@ public class HProfStripper implements AutoCloseable
 		@Override
 		protected void readTag(int tag, long id) throws IOException
 		{
-			Integer keep = recursiveKeepObjects.remove(id);
-			if (keep != null)
+			if (pass == 0 && index != null && (tag == HPROF_GC_INSTANCE_DUMP || tag == HPROF_GC_OBJ_ARRAY_DUMP))
+			{
+				index.put(id, in.offset() - 1 - identSize);
+				if (index.size() > maxIndexSize)
+				{
+					// not enough heap for it, fall back to doing multiple passes
+					index = null;
+				}
+			}
+
+			int keep = recursiveKeepObjects.remove(id, 0);
+			if (keep > 0)
 			{
-				keepObjects.putIfAbsent(id, null);
+				keepObjects.add(id);
 			}
 			switch (tag)
 			{
 				case HPROF_GC_INSTANCE_DUMP:
-					if (keep != null)
+					if (keep > 0)
 					{
 						skip(4);
 						long clazz = readId();
@@ -401,7 +677,7 @@ public class HProfStripper implements AutoCloseable
 
 						for (; clazz != 0; )
 						{
-							ClassMetadata meta = keepObjects.get(clazz);
+							ClassMetadata meta = classes.get(clazz);
 							if (meta == null)
 							{
 								recursiveKeepObjects.put(id, keep);
@@ -426,7 +702,7 @@ public class HProfStripper implements AutoCloseable
 					}
 					break;
 				case HPROF_GC_OBJ_ARRAY_DUMP:
-					if (keep != null)
+					if (keep > 0)
 					{
 						skip(4);
 						int count = in.readInt();
@@ -472,7 +748,8 @@ public class HProfStripper implements AutoCloseable
 							keep(name, 2);
 							types[i] = ty;
 						}
-						keepObjects.put(id, new ClassMetadata(superclass, types));
+						keepObjects.add(id);
+						classes.put(id, new ClassMetadata(superclass, types));
 						return;
 					}
 					break;
@@ -488,10 +765,14 @@ public class HProfStripper implements AutoCloseable
 				return;
 			}
 
-			Long id0 = id;
-			if (!keepObjects.containsKey(id0))
+			if (!keepObjects.contains(id) && depth >= recursiveKeepObjects.get(id, 0))
 			{
-				added |= recursiveKeepObjects.compute(id0, (_k, v) -> Math.max(v == null ? 0 : v, depth)) == depth;
+				recursiveKeepObjects.put(id, depth);
+				added = true;
+				if (pending != null)
+				{
+					pending[depth].add(id);
+				}
 			}
 		}
 	}
@@ -500,12 +781,141 @@ public class HProfStripper implements AutoCloseable
 	@RequiredArgsConstructor
 	private class Emit extends DumpVisitor
 	{
-		final Map<Long, ClassMetadata> keepObjects;
+		// heap dump sub-records are handed to workers in runs of about this many bytes
+		private static final int CHUNK_SIZE = 4 << 20;
+		// verbatim ranges at least this big are transferred between the files when writing uncompressed
+		private static final int TRANSFER_THRESHOLD = 64 << 10;
+		// how long workers get to finish their chunk once the emit is over or has failed
+		private static final int WORKER_STOP_SECONDS = 30;
+
+		final LongHashSet keepObjects;
+		final LongObjectHashMap<ClassMetadata> classes;
 		final Map<Integer, Long> sizes = new HashMap<>();
 
+		// input offset that corresponds to the start of out
+		long outBase;
+
+		private ExecutorService pool;
+		private DumpVisitor scanner;
+		private int maxInFlight;
+		private final Deque<Future<ByteArrayOutputStream>> inFlight = new ArrayDeque<>();
+		private final ThreadLocal<EmitWorker> worker = new ThreadLocal<>();
+		private final List<EmitWorker> workers = new ArrayList<>();
+
+		@Override
+		public void run() throws IOException
+		{
+			// uncompressed output is bound by the disk, not by how fast records can be parsed
+			if (emitThreads <= 1 || in.isSequential() || outChannel != null)
+			{
+				super.run();
+				return;
+			}
+
+			pool = Executors.newFixedThreadPool(emitThreads, r ->
+			{
+				Thread t = new Thread(r, "hprof-emit");
+				t.setDaemon(true);
+				return t;
+			});
+			scanner = new DumpVisitor();
+			maxInFlight = emitThreads * 2;
+			try
+			{
+				super.run();
+				drain(0);
+			}
+			finally
+			{
+				pool.shutdownNow();
+				// a worker can be in the middle of a chunk when another one fails, and closing a zstd input frees the
+				// decompressor it's using, so theirs are only closed once they have all stopped. If they don't, they're
+				// left open rather than freed from under them
+				boolean stopped;
+				try
+				{
+					stopped = pool.awaitTermination(WORKER_STOP_SECONDS, TimeUnit.SECONDS);
+				}
+				catch (InterruptedException e)
+				{
+					Thread.currentThread().interrupt();
+					stopped = false;
+				}
+				if (stopped)
+				{
+					synchronized (workers)
+					{
+						for (EmitWorker w : workers)
+						{
+							w.in.close();
+						}
+					}
+				}
+			}
+		}
+
+		// sub-records don't depend on each other once the keep set is known, and are emitted at the same size
+		// they are read at, so they can be split up anywhere between records and concatenated back in order
+		private void emitParallel(long end) throws IOException
+		{
+			long chunkStart = in.offset();
+			for (; in.offset() < end; )
+			{
+				int dtag = in.readByte();
+				long id = readId();
+				scanner.readTag(dtag, id);
+
+				long offset = in.offset();
+				if (offset - chunkStart >= CHUNK_SIZE || offset >= end)
+				{
+					long from = chunkStart;
+					drain(maxInFlight - 1);
+					inFlight.add(pool.submit(() -> worker().emit(from, offset)));
+					chunkStart = offset;
+				}
+			}
+		}
+
+		private EmitWorker worker() throws IOException
+		{
+			EmitWorker w = worker.get();
+			if (w == null)
+			{
+				w = new EmitWorker(this);
+				worker.set(w);
+				synchronized (workers)
+				{
+					workers.add(w);
+				}
+			}
+			return w;
+		}
+
+		private void drain(int keep) throws IOException
+		{
+			for (; inFlight.size() > keep; )
+			{
+				try
+				{
+					inFlight.poll().get().writeTo(out);
+				}
+				catch (ExecutionException e)
+				{
+					throw new IOException(e.getCause());
+				}
+				catch (InterruptedException e)
+				{
+					Thread.currentThread().interrupt();
+					throw new InterruptedIOException();
+				}
+			}
+		}
+
 		@Override
 		protected void section(int tag, int ts, int bytes) throws IOException
 		{
+			drain(0);
+
 			out.writeByte(tag);
 			out.writeInt(ts);
 			out.writeInt(bytes);
@@ -517,25 +927,64 @@ public class HProfStripper implements AutoCloseable
 				long id = readId();
 				writeId(id);
 				int rem = bytes - identSize;
-				if (keepObjects.containsKey(id))
+				if (keepObjects.contains(id))
 				{
-					in.copyTo(out, rem);
+					copy(rem);
 				}
 				else
 				{
 					zero(rem);
 				}
 			}
+			else if (pool != null && (tag == HPROF_HEAP_DUMP || tag == HPROF_HEAP_DUMP_SEGMENT))
+			{
+				emitParallel(in.offset() + Integer.toUnsignedLong(bytes));
+			}
 			else
 			{
 				super.section(tag, ts, bytes);
 			}
 		}
 
+		private void copy(long bytes) throws IOException
+		{
+			if (zstdOut != null && out == HProfStripper.this.out && bytes >= TRANSFER_THRESHOLD)
+			{
+				// out doesn't buffer in front of zstd, and mapped input hands it its windows without copying them
+				in.copyTo(zstdOut, bytes);
+				// these never pass through out, so it's behind by that much
+				outBase += bytes;
+				return;
+			}
+
+			FileChannel inChannel = in.channel();
+			if (outChannel == null || inChannel == null || out != HProfStripper.this.out || bytes < TRANSFER_THRESHOLD)
+			{
+				in.copyTo(out, bytes);
+				return;
+			}
+
+			// whatever is still buffered has to be in the file before the transferred bytes
+			out.flush();
+			long from = in.offset();
+			for (long done = 0; done < bytes; )
+			{
+				long n = inChannel.transferTo(from + done, bytes - done, outChannel);
+				if (n <= 0)
+				{
+					throw new EOFException();
+				}
+				done += n;
+			}
+			in.seek(from + bytes);
+			// these never pass through out, so it's behind by that much
+			outBase += bytes;
+		}
+
 		@Override
 		protected void unknownSection(int tag, int ts, int bytes) throws IOException
 		{
-			in.copyTo(out, bytes);
+			copy(bytes);
 		}
 
 		@Override
@@ -575,7 +1024,7 @@ public class HProfStripper implements AutoCloseable
 					break;
 				case HPROF_GC_CLASS_DUMP:
 				{
-					in.copyTo(out, 4 + identSize + identSize + identSize + identSize + identSize + identSize + 4);
+					copy(4 + identSize + identSize + identSize + identSize + identSize + identSize + 4);
 					int cpsize = in.readUnsignedShort();
 					out.writeShort(cpsize);
 					if (cpsize != 0)
@@ -595,12 +1044,12 @@ public class HProfStripper implements AutoCloseable
 						}
 						else
 						{
-							in.copyTo(out, typeSizes[ty]);
+							copy(typeSizes[ty]);
 						}
 					}
 					int numInsts = in.readUnsignedShort();
 					out.writeShort(numInsts);
-					in.copyTo(out, numInsts * (identSize + 1L));
+					copy(numInsts * (identSize + 1L));
 					break;
 				}
 				case HPROF_GC_INSTANCE_DUMP:
@@ -610,15 +1059,15 @@ public class HProfStripper implements AutoCloseable
 					writeId(clazz);
 					int size = in.readInt();
 					out.writeInt(size);
-					if (keepObjects.containsKey(obj))
+					if (keepObjects.contains(obj))
 					{
-						in.copyTo(out, size);
+						copy(size);
 					}
 					else
 					{
 						for (; clazz != 0; )
 						{
-							ClassMetadata meta = keepObjects.get(clazz);
+							ClassMetadata meta = classes.get(clazz);
 							for (byte ty : meta.types)
 							{
 								if (ty == HPROF_ARRAY_OBJECT || ty == HPROF_NORMAL_OBJECT)
@@ -640,7 +1089,7 @@ public class HProfStripper implements AutoCloseable
 					out.writeInt(in.readInt());
 					int count = in.readInt();
 					out.writeInt(count);
-					in.copyTo(out, identSize + ((long) count * identSize));
+					copy(identSize + ((long) count * identSize));
 					break;
 				}
 				case HPROF_GC_PRIM_ARRAY_DUMP:
@@ -651,9 +1100,9 @@ public class HProfStripper implements AutoCloseable
 					int type = in.readByte();
 					out.writeByte(type);
 					int size = count * typeSizes[type];
-					if (keepObjects.containsKey(obj))
+					if (keepObjects.contains(obj))
 					{
-						in.copyTo(out, size);
+						copy(size);
 					}
 					else
 					{
@@ -665,21 +1114,67 @@ public class HProfStripper implements AutoCloseable
 					throw new IllegalArgumentException("" + tag);
 			}
 
-			assert out.size() == (int) Math.min(Integer.MAX_VALUE, in.offset()) : tag;
+			assert out.size() == (int) Math.min(Integer.MAX_VALUE, in.offset() - outBase) : tag;
 		}
 	}
 
-	private static class RetainedClassMetadata
+	private class EmitWorker extends Emit
 	{
+		EmitWorker(Emit parent) throws IOException
+		{
+			super(parent.keepObjects, parent.classes);
+			in = SeekFile.open(inFile);
+		}
+
+		ByteArrayOutputStream emit(long from, long to) throws IOException
+		{
+			var buf = new ByteArrayOutputStream((int) (to - from));
+			out = new DataOutputStream(buf);
+			outBase = from;
+			try
+			{
+				in.seek(from);
+				for (; in.offset() < to; )
+				{
+					int tag = in.readByte();
+					long id = readId();
+					readTag(tag, id);
+				}
+			}
+			catch (Exception e)
+			{
+				throw new IOException(e.getMessage() + " @ " + in.offset(), e);
+			}
+			out.flush();
+			return buf;
+		}
+	}
+
+	static class RetainedClassMetadata
+	{
+		private static final int UNRESOLVED = -2;
+
+		final int index;
 		long superClassId = -1;
+		// names are read after the rest of the dump, see RetainedSizeComputer.resolveNames
+		long nameId;
 		String name;
-		int size;
+		// of an instance, which is resolved once the whole dump has been read, see RetainedSizeComputer.instanceSize
+		int size = -1;
+		// the hprof basic type of the elements if this is an array class, otherwise -1
+		int arrayType = -1;
 		byte[] fields;
+		long[] fieldNameIds;
 		String[] fieldNames;
 		long[] statics;
+		// which of an instance's reference fields is a Reference's referent, or -1 if none. Resolved on the first
+		// instance, when the class dumps of its superclasses have been read
+		int referentField = UNRESOLVED;
+		boolean softReference;
 
-		RetainedClassMetadata(String name)
+		RetainedClassMetadata(int index, String name)
 		{
+			this.index = index;
 			this.name = name;
 		}
 
@@ -697,33 +1192,43 @@ public class HProfStripper implements AutoCloseable
 		}
 	}
 
-	private static class RetainedObjectMetadata
-	{
-		int size;
-		RetainedClassMetadata rcm;
-		List<Long> succs;
-	}
-
 	@AllArgsConstructor
 	public static class RetainedSizeResult
 	{
 		final int num;
-		private final Map<Long, RetainedClassMetadata> classes;
-		private final List<RetainedObjectMetadata> objects;
+		final Map<Long, RetainedClassMetadata> classes;
+		final List<RetainedClassMetadata> classList;
+		// class index of each node
+		final int[] nodeClasses;
+		// immediate dominator of each node, or -1
+		final int[] idom;
 		final long[] retainedSize;
 		final int[] numObjects;
+		final ClassHistogram histogram;
+		// the histogram of just the objects the root dominates directly, which everything else hangs off
+		final ClassHistogram dominatorRoots;
+		// what the objects each kind of gc root references retain, indexed like GC_ROOT_NAMES. An object referenced
+		// by more than one kind is counted in each
+		final ClassHistogram gcRoots;
+		final boolean weakReferences;
+		// bytes only reachable through the referents of soft references, and of any other kind of reference. 0
+		// unless weakReferences
+		final long softlyRetained;
+		final long weaklyRetained;
+		// what the shallow sizes are of
+		final String layout;
+		// null unless queries were asked for
+		final HeapQuery query;
 
 		public String clazz(int n)
 		{
-			var obj = objects.get(n);
-			var c = obj.rcm;
+			var c = rcm(n);
 			return c != null ? c.name : null;
 		}
 
 		public String parentClazz(int n)
 		{
-			var obj = objects.get(n);
-			var c = obj.rcm;
+			var c = rcm(n);
 			if (c == null)
 			{
 				return null;
@@ -735,28 +1240,209 @@ public class HProfStripper implements AutoCloseable
 			}
 			return c.name;
 		}
+
+		private RetainedClassMetadata rcm(int n)
+		{
+			int c = nodeClasses[n];
+			return c >= 0 ? classList.get(c) : null;
+		}
 	}
 
 	private class RetainedSizeComputer extends DumpVisitor
 	{
-		private static final int OBJECT_HEADER_SIZE = 16;
-		private static final int ARRAY_LENGTH_SIZE = 8;
-
-		private final Map<Long, String> strings = new HashMap<>();
+		// the node class, idom, retained size and object count arrays of the result, which with mapped storage are most
+		// of the heap the analysis needs
+		private static final int RESULT_BYTES_PER_NODE = 4 + 4 + 8 + 4;
+		// a class' metadata and its entries in classes and classList, not counting its fields and statics
+		private static final int CLASS_BYTES = 160;
+		private static final int PROGRESS_INTERVAL = 1 << 16;
+
+		// body offset of each utf8 record, which are only decoded if a class or field is named by them
+		private final LongLongHashMap utf8Offsets = new LongLongHashMap();
 		private final Map<Long, RetainedClassMetadata> classes = new HashMap<>();
-		private final List<RetainedObjectMetadata> objects = new ArrayList<>();
-		private final Map<Long, Integer> objIdToNodeId = new HashMap<>();
+		private final List<RetainedClassMetadata> classList = new ArrayList<>();
+		// heap the class metadata takes, see parseHeapBytes
+		private long classBytes;
+		private final GraphStorage storage;
+		private ObjectGraph.Builder graph;
+		private int objectsRead;
+		private final int[] arrayClasses = new int[ARRAY_CLASS_NAMES.length];
+		// instances by class index
+		private int[] classInstances = new int[256];
+		// the highest object address, and every address or'd together, for inferring the layout
+		private long maxAddress;
+		private long addressBits;
+		// ids referenced by each kind of gc root, in the order they were read
+		private final LongArrayList[] gcRoots = new LongArrayList[GC_ROOT_TAGS.length];
+		// with weakReferences, the strings, classes and referents that make up references
+		private long referenceNameId;
+		private long softReferenceNameId;
+		private long referentNameId;
+		private RetainedClassMetadata referenceClass;
+		private RetainedClassMetadata softReferenceClass;
+		// the node of each reference followed by the id of its referent
+		private final LongArrayList softReferents = new LongArrayList();
+		private final LongArrayList weakReferents = new LongArrayList();
+
+		RetainedSizeComputer(GraphStorage storage)
+		{
+			this.storage = storage;
+			graph = new ObjectGraph.Builder(storage);
+			Arrays.fill(arrayClasses, -1);
+			for (int i = 0; i < gcRoots.length; i++)
+			{
+				gcRoots[i] = new LongArrayList();
+			}
+		}
+
+		private void addGcRoot(int tag, long id)
+		{
+			if (id == 0)
+			{
+				return;
+			}
+			for (int i = 0; i < GC_ROOT_TAGS.length; i++)
+			{
+				if (GC_ROOT_TAGS[i] == tag)
+				{
+					gcRoots[i].add(id);
+					return;
+				}
+			}
+		}
+
+		// the node's size is the array length for now, or 0 for an instance, until the layout is known
+		private void addObject(long id, int length, int classIndex)
+		{
+			graph.addNode(id, length, classIndex);
+			maxAddress = Math.max(maxAddress, id);
+			addressBits |= id;
+			if (classIndex >= classInstances.length)
+			{
+				classInstances = Arrays.copyOf(classInstances, Math.max(classInstances.length * 2, classIndex + 1));
+			}
+			classInstances[classIndex]++;
+		}
+
+		// the index of the referent among the reference fields of an instance, which are laid out from the class
+		// itself up through its superclasses
+		private int referentField(RetainedClassMetadata clazz)
+		{
+			if (clazz.referentField != RetainedClassMetadata.UNRESOLVED)
+			{
+				return clazz.referentField;
+			}
+
+			clazz.referentField = -1;
+			int objectFields = 0;
+			for (var rcm = clazz; rcm != null && rcm.fields != null; rcm = classes.get(rcm.superClassId))
+			{
+				if (rcm == softReferenceClass)
+				{
+					clazz.softReference = true;
+				}
+				for (int i = 0; i < rcm.fields.length; i++)
+				{
+					if (rcm.fields[i] != HPROF_ARRAY_OBJECT && rcm.fields[i] != HPROF_NORMAL_OBJECT)
+					{
+						continue;
+					}
+					if (rcm == referenceClass && rcm.fieldNameIds[i] == referentNameId)
+					{
+						clazz.referentField = objectFields;
+					}
+					objectFields++;
+				}
+			}
+			return clazz.referentField;
+		}
+
+		private int arrayClass(int type)
+		{
+			int index = arrayClasses[type];
+			if (index < 0)
+			{
+				index = classList.size();
+				var rcm = new RetainedClassMetadata(index, ARRAY_CLASS_NAMES[type]);
+				rcm.arrayType = type;
+				classList.add(rcm);
+				classBytes += CLASS_BYTES;
+				arrayClasses[type] = index;
+			}
+			return index;
+		}
+
+		// sets every object's shallow size from the layout, which could only be inferred once every address was read
+		private ObjectLayout resolveSizes(ObjectGraph graph, long[] classShallowSize)
+		{
+			ObjectLayout layout = objectLayout != null
+				? objectLayout
+				: HotSpotLayout.infer(identSize, maxAddress, addressBits);
+			for (int v = 0; v < graph.nodeCount; v++)
+			{
+				int c = graph.classes.get(v);
+				if (c < 0)
+				{
+					continue;
+				}
+				var rcm = classList.get(c);
+				int size = rcm.arrayType < 0
+					? instanceSize(layout, rcm)
+					: (int) Math.min(Integer.MAX_VALUE, layout.arraySize(rcm.arrayType, graph.sizes.get(v)));
+				graph.sizes.set(v, size);
+				classShallowSize[c] += size;
+			}
+			return layout;
+		}
+
+		private int instanceSize(ObjectLayout layout, RetainedClassMetadata clazz)
+		{
+			if (clazz.size < 0)
+			{
+				List<byte[]> fields = new ArrayList<>();
+				for (var rcm = clazz; rcm != null && rcm.fields != null; rcm = classes.get(rcm.superClassId))
+				{
+					fields.add(rcm.fields);
+				}
+				Collections.reverse(fields);
+				clazz.size = layout.instanceSize(fields);
+			}
+			return clazz.size;
+		}
 
 		@Override
 		protected void section(int tag, int ts, int bytes) throws IOException
 		{
 			if (tag == HPROF_UTF8)
 			{
+				long offset = in.offset();
 				long id = readId();
-				byte[] b = new byte[bytes - identSize];
-				in.readFully(b);
-				String s = new String(b);
-				strings.put(id, s);
+				utf8Offsets.put(id, offset);
+				if (utf8Offsets.size() % PROGRESS_INTERVAL == 0)
+				{
+					checkParseBudget();
+				}
+				int length = bytes - identSize;
+				if (weakReferences && (length == REFERENCE_CLASS.length || length == SOFT_REFERENCE_CLASS.length
+					|| length == REFERENT_FIELD.length))
+				{
+					byte[] b = new byte[length];
+					in.readFully(b);
+					if (Arrays.equals(b, REFERENCE_CLASS))
+					{
+						referenceNameId = id;
+					}
+					else if (Arrays.equals(b, SOFT_REFERENCE_CLASS))
+					{
+						softReferenceNameId = id;
+					}
+					else if (Arrays.equals(b, REFERENT_FIELD))
+					{
+						referentNameId = id;
+					}
+					return;
+				}
+				skip(length);
 				return;
 			}
 			if (tag == HPROF_LOAD_CLASS)
@@ -765,7 +1451,19 @@ public class HProfStripper implements AutoCloseable
 				long objectId = readId();
 				skip(4); // stack trace serial
 				long classNameId = readId();
-				classes.put(objectId, new RetainedClassMetadata(strings.get(classNameId)));
+				var rcm = new RetainedClassMetadata(classList.size(), null);
+				rcm.nameId = classNameId;
+				classList.add(rcm);
+				classes.put(objectId, rcm);
+				classBytes += CLASS_BYTES;
+				if (classNameId != 0 && classNameId == referenceNameId)
+				{
+					referenceClass = rcm;
+				}
+				else if (classNameId != 0 && classNameId == softReferenceNameId)
+				{
+					softReferenceClass = rcm;
+				}
 				return;
 			}
 
@@ -775,8 +1473,26 @@ public class HProfStripper implements AutoCloseable
 		@Override
 		protected void readTag(int tag, long obj) throws IOException
 		{
+			if (++objectsRead % PROGRESS_INTERVAL == 0)
+			{
+				progress("Reading heap dump", in.length() != Long.MAX_VALUE ? (double) in.offset() / in.length() : -1);
+				checkParseBudget();
+			}
+
 			switch (tag)
 			{
+				case HPROF_GC_ROOT_UNKNOWN:
+				case HPROF_GC_ROOT_THREAD_OBJ:
+				case HPROF_GC_ROOT_JNI_GLOBAL:
+				case HPROF_GC_ROOT_JNI_LOCAL:
+				case HPROF_GC_ROOT_JAVA_FRAME:
+				case HPROF_GC_ROOT_NATIVE_STACK:
+				case HPROF_GC_ROOT_STICKY_CLASS:
+				case HPROF_GC_ROOT_THREAD_BLOCK:
+				case HPROF_GC_ROOT_MONITOR_USED:
+					// the rest of the record is skipped below
+					addGcRoot(tag, obj);
+					break;
 				case HPROF_GC_CLASS_DUMP:
 				{
 					RetainedClassMetadata rcm = classes.get(obj);
@@ -787,8 +1503,7 @@ public class HProfStripper implements AutoCloseable
 					skip(identSize);
 					skip(identSize);
 					skip(identSize);
-					rcm.size = in.readInt(); // sum of field sizes, which doesn't account for compressed oops
-					rcm.size += OBJECT_HEADER_SIZE;
+					skip(4); // instance size, which doesn't account for headers, compressed oops or padding
 					int cpsize = in.readUnsignedShort();
 					if (cpsize != 0)
 					{
@@ -811,19 +1526,17 @@ public class HProfStripper implements AutoCloseable
 					}
 					int numInsts = in.readUnsignedShort();
 					rcm.fields = new byte[numInsts];
-					rcm.fieldNames = new String[numInsts];
+					rcm.fieldNameIds = new long[numInsts];
 					for (int i = 0; i < numInsts; ++i)
 					{
 						long symId = readId();
 						int type = in.readByte(); // see sig2tag
 						rcm.fields[i] = (byte) type;
-						rcm.fieldNames[i] = strings.get(symId);
+						rcm.fieldNameIds[i] = symId;
 					}
+					classBytes += numInsts * 9L + (rcm.statics != null ? rcm.statics.length * 8L : 0);
 
-					RetainedObjectMetadata rom = new RetainedObjectMetadata();
-					objects.add(rom);
-					objIdToNodeId.put(obj, objects.size() - 1);
-
+					graph.addNode(obj, 0, -1);
 					return;
 				}
 				case HPROF_GC_INSTANCE_DUMP:
@@ -834,12 +1547,12 @@ public class HProfStripper implements AutoCloseable
 					int sz = in.readInt();
 					long end = sz + in.offset();
 
-					RetainedObjectMetadata rom = new RetainedObjectMetadata();
-					rom.rcm = rcm;
-					rom.size = rcm.size;
-					objects.add(rom);
-					objIdToNodeId.put(obj, objects.size() - 1);
+					addObject(obj, 0, rcm.index);
 
+					int node = graph.nodeCount() - 1;
+					int referent = weakReferences ? referentField(rcm) : -1;
+					LongArrayList referents = rcm.softReference ? softReferents : weakReferents;
+					int objectField = 0;
 					int fieldIdx = 0;
 					while (in.offset() < end)
 					{
@@ -849,13 +1562,17 @@ public class HProfStripper implements AutoCloseable
 							if (typ == HPROF_ARRAY_OBJECT || typ == HPROF_NORMAL_OBJECT)
 							{
 								long fieldObjectId = readId();
-								if (fieldObjectId > 0)
+								if (objectField++ == referent)
 								{
-									if (rom.succs == null)
+									if (fieldObjectId > 0)
 									{
-										rom.succs = new ArrayList<>();
+										referents.add(node);
+										referents.add(fieldObjectId);
 									}
-									rom.succs.add(fieldObjectId);
+								}
+								else if (fieldObjectId > 0)
+								{
+									graph.addEdge(fieldObjectId);
 								}
 							}
 							else
@@ -883,23 +1600,19 @@ public class HProfStripper implements AutoCloseable
 					long arrayClassId = readId();
 
 					RetainedClassMetadata rcm = classes.get(arrayClassId);
+					if (rcm != null)
+					{
+						rcm.arrayType = HPROF_NORMAL_OBJECT;
+					}
 
-					RetainedObjectMetadata rom = new RetainedObjectMetadata();
-					rom.rcm = rcm;
-					rom.size = size * identSize + OBJECT_HEADER_SIZE + ARRAY_LENGTH_SIZE;
-					objects.add(rom);
-					objIdToNodeId.put(obj, objects.size() - 1);
+					addObject(obj, size, rcm != null ? rcm.index : arrayClass(HPROF_NORMAL_OBJECT));
 
 					for (int i = 0; i < size; ++i)
 					{
 						long elementObjectId = readId();
 						if (elementObjectId > 0)
 						{
-							if (rom.succs == null)
-							{
-								rom.succs = new ArrayList<>();
-							}
-							rom.succs.add(elementObjectId);
+							graph.addEdge(elementObjectId);
 						}
 					}
 					return;
@@ -911,10 +1624,7 @@ public class HProfStripper implements AutoCloseable
 					int typ = in.readByte();
 					skip(size * typeSizes[typ]);
 
-					RetainedObjectMetadata rom = new RetainedObjectMetadata();
-					rom.size = size * typeSizes[typ] + OBJECT_HEADER_SIZE + ARRAY_LENGTH_SIZE;
-					objects.add(rom);
-					objIdToNodeId.put(obj, objects.size() - 1);
+					addObject(obj, size, arrayClass(typ));
 					return;
 				}
 			}
@@ -922,96 +1632,187 @@ public class HProfStripper implements AutoCloseable
 			super.readTag(tag, obj);
 		}
 
-		RetainedSizeResult computeRetainedSizes()
+		// reads the names of classes and their fields in file order, so a compressed stream is only rewound once
+		void resolveNames() throws IOException
 		{
-			addRoot();
-
-			int[][] succs = new int[objects.size()][];
-			for (int i = 0; i < succs.length; ++i)
+			LongArrayList offsets = new LongArrayList();
+			for (var rcm : classList)
 			{
-				var rom = objects.get(i);
-				succs[i] = new int[rom.succs != null ? rom.succs.size() : 0];
-				int k = 0;
-				for (int j = 0; j < succs[i].length; ++j)
+				addNameOffset(offsets, rcm.nameId);
+				if (rcm.fieldNameIds != null)
 				{
-					Integer node = objIdToNodeId.get(rom.succs.get(j));
-					if (node != null)
+					for (long id : rcm.fieldNameIds)
 					{
-						succs[i][k++] = node;
+						addNameOffset(offsets, id);
 					}
 				}
-				if (k != succs[i].length)
+			}
+
+			long[] sorted = offsets.toArray();
+			Arrays.sort(sorted);
+			LongObjectHashMap<String> names = new LongObjectHashMap<>(sorted.length);
+			for (int i = 0; i < sorted.length; i++)
+			{
+				if (i > 0 && sorted[i] == sorted[i - 1])
 				{
-					succs[i] = Arrays.copyOf(succs[i], k);
+					continue;
 				}
-				rom.succs = null;
+				in.seek(sorted[i] - 4);
+				int bytes = in.readInt();
+				long id = readId();
+				byte[] b = new byte[bytes - identSize];
+				in.readFully(b);
+				names.put(id, new String(b, StandardCharsets.UTF_8));
 			}
-			int rootNode = objIdToNodeId.get(-1L);
-			objIdToNodeId.clear();
 
-			var dom = new LengauerTarjan(objects.size(), rootNode, succs);
-			int[] idom = dom.computeIdom();
+			for (var rcm : classList)
+			{
+				if (rcm.nameId != 0)
+				{
+					rcm.name = names.get(rcm.nameId);
+				}
+				if (rcm.fieldNameIds != null)
+				{
+					rcm.fieldNames = new String[rcm.fieldNameIds.length];
+					for (int i = 0; i < rcm.fieldNames.length; i++)
+					{
+						long id = rcm.fieldNameIds[i];
+						rcm.fieldNames[i] = id != 0 ? names.get(id) : null;
+					}
+				}
+			}
+		}
+
+		private void addNameOffset(LongArrayList offsets, long id)
+		{
+			long offset = id != 0 ? utf8Offsets.get(id, -1) : -1;
+			if (offset >= 0)
+			{
+				offsets.add(offset);
+			}
+		}
+
+		RetainedSizeResult computeRetainedSizes() throws IOException
+		{
+			int rootNode = addRoot();
+			int n = graph.nodeCount();
+			long resultBytes = (long) n * RESULT_BYTES_PER_NODE;
+			checkHeapBudget(ObjectIdIndex.heapBytes(n), "indexing " + n + " objects");
+			checkHeapBudget(resultBytes, "the retained sizes of " + n + " objects");
+
+			progress("Resolving references", -1);
+			ObjectGraph graph = this.graph.build();
+			this.graph = null;
+			int numClasses = classList.size();
+			long[] classShallowSize = new long[numClasses];
+			ObjectLayout layout = resolveSizes(graph, classShallowSize);
+			if (buildQueries)
+			{
+				// ids, predecessors and dominator tree children, which each have an entry per node or edge
+				long queryBytes = (long) n * (8 + 4 + 4 + 4) + (long) graph.succStart.get(n) * 4;
+				checkHeapBudget(resultBytes + queryBytes, "queries over " + n + " objects");
+			}
+
+			progress("Computing dominators", -1);
+			IntArray idom = dominatorAlgorithm.computeIdom(graph, rootNode);
 //			System.out.println("done computing immediate dominators");
 
-			List<Integer>[] domTree = computeDomTree(idom);
+			progress("Computing retained sizes", -1);
+			var domTree = new DominatorTree(storage, idom);
 //			System.out.println("done computing dominator tree");
 
-			long[] retainedSize = new long[idom.length];
-			computeRetained(domTree, rootNode, retainedSize);
+			long[] retainedSize = new long[n];
+			int[] numObjects = new int[n];
+			domTree.aggregate(rootNode, graph.sizes, retainedSize, numObjects);
 //			System.out.println("done computing retained size");
 
-			int[] numObjects = new int[idom.length];
-			computeObjects(domTree, rootNode, numObjects);
-//			System.out.println("done computing retained objects");
-
-			return new RetainedSizeResult(idom.length, classes, objects, retainedSize, numObjects);
-		}
-
-		private List<Integer>[] computeDomTree(int[] idom)
-		{
-			int n = idom.length;
-			List<Integer>[] children = new List[n];
-			for (int i = 0; i < n; i++)
+			long[] classRetainedSize = new long[numClasses];
+			domTree.retainedByClass(rootNode, graph.classes, retainedSize, classRetainedSize);
+			String[] classNames = new String[numClasses];
+			for (int i = 0; i < numClasses; i++)
 			{
-				children[i] = new ArrayList<>();
+				classNames[i] = classList.get(i).name;
 			}
-			for (int i = 0; i < n; i++)
+			var histogram = new ClassHistogram(classNames, Arrays.copyOf(classInstances, numClasses),
+				classShallowSize, classRetainedSize);
+
+			var dominatorRoots = new ClassHistogram(classNames, new int[numClasses], new long[numClasses], new long[numClasses]);
+			for (int e = domTree.start.get(rootNode), end = domTree.start.get(rootNode + 1); e < end; e++)
 			{
-				if (idom[i] != -1)
+				int v = domTree.children.get(e);
+				int c = graph.classes.get(v);
+				if (c >= 0)
 				{
-					children[idom[i]].add(i);
+					dominatorRoots.instances[c]++;
+					dominatorRoots.shallowSize[c] += graph.sizes.get(v);
+					dominatorRoots.retainedSize[c] += retainedSize[v];
 				}
 			}
-			return children;
+
+			int[] idoms = idom.toArray();
+			HeapQuery query = null;
+			if (buildQueries)
+			{
+				long[] ids = new long[n];
+				graph.ids.get(0, ids, 0, n);
+				query = new HeapQuery(rootNode, ids, idoms, retainedSize, graph.predStart().toArray(n + 1),
+					graph.preds().toArray(graph.succStart.get(n)), domTree.start.toArray(n + 1), domTree.children.toArray(n));
+			}
+
+			var gcRootHistogram = gcRootHistogram(graph, rootNode, retainedSize);
+			long softlyRetained = 0;
+			long weaklyRetained = 0;
+			if (weakReferences)
+			{
+				var referentNodes = referentNodes(graph);
+				// soft references go first, so what both kinds refer to is counted as softly retained
+				long[] visited = new long[(n + 63) >> 6];
+				softlyRetained = unreachableSize(graph, idoms, softReferents, referentNodes, visited);
+				weaklyRetained = unreachableSize(graph, idoms, weakReferents, referentNodes, visited);
+			}
+
+			domTree.free();
+			var rsr = new RetainedSizeResult(n, classes, classList, graph.classes.toArray(n), idoms, retainedSize,
+				numObjects, histogram, dominatorRoots, gcRootHistogram, weakReferences, softlyRetained, weaklyRetained,
+				layout.toString(), query);
+			storage.free(idom);
+			return rsr;
 		}
 
-		private long computeRetained(List<Integer>[] domTree, int node, long[] retainedSize)
+		// heap taken by what the parse keeps outside the graph storage, which lives until the result is built
+		private long parseHeapBytes()
 		{
-			var rom = objects.get(node);
-			long sum = rom.size;
-			for (int child : domTree[node])
+			long bytes = utf8Offsets.heapBytes() + classBytes + softReferents.heapBytes() + weakReferents.heapBytes()
+				+ classInstances.length * 4L;
+			for (var ids : gcRoots)
 			{
-				sum += computeRetained(domTree, child, retainedSize);
+				bytes += ids.heapBytes();
 			}
-			return retainedSize[node] = sum;
+			return bytes;
+		}
+
+		// so a dump with more classes, names or roots than the budget allows is given up on while it's being read,
+		// rather than once it's all been
+		private void checkParseBudget() throws HeapBudgetExceededException
+		{
+			checkHeapBudget(0, "reading the dump");
 		}
 
-		private int computeObjects(List<Integer>[] domTree, int node, int[] numObjects)
+		private void checkHeapBudget(long bytes, String what) throws HeapBudgetExceededException
 		{
-			int n = 0;
-			for (int child : domTree[node])
+			long total = parseHeapBytes() + bytes;
+			if (total > storage.heapBudget())
 			{
-				n += computeObjects(domTree, child, numObjects);
+				throw new HeapBudgetExceededException(what + " needs " + (total >> 20)
+					+ "MiB of heap, which is over the budget of " + (storage.heapBudget() >> 20) + "MiB");
 			}
-			return numObjects[node] = n + 1;
 		}
 
-		private void addRoot()
+		// links every gc root to a synthetic root node, grouped by kind. Stack frames can reference the same object
+		// many times over, so each object only gets one edge
+		private int addRoot()
 		{
-			RetainedObjectMetadata rom = new RetainedObjectMetadata();
-			objects.add(rom);
-			objIdToNodeId.put(-1L, objects.size() - 1);
-			rom.succs = new ArrayList<>();
+			int root = graph.addNode(0, 0, -1);
 
 			for (var rcm : classes.values())
 			{
@@ -1021,11 +1822,128 @@ public class HProfStripper implements AutoCloseable
 					{
 						if (rootObjId > 0)
 						{
-							rom.succs.add(rootObjId);
+							gcRoots[GC_ROOT_STATIC].add(rootObjId);
 						}
 					}
 				}
 			}
+
+			LongHashSet rooted = new LongHashSet();
+			for (var ids : gcRoots)
+			{
+				for (int i = 0; i < ids.size(); i++)
+				{
+					long id = ids.get(i);
+					if (rooted.add(id))
+					{
+						graph.addEdge(id);
+					}
+				}
+			}
+			return root;
+		}
+
+		// the node of every referent id, which the graph builder has already forgotten
+		private LongIntHashMap referentNodes(ObjectGraph graph)
+		{
+			LongIntHashMap nodes = new LongIntHashMap((softReferents.size() + weakReferents.size()) / 2);
+			for (var referents : new LongArrayList[]{softReferents, weakReferents})
+			{
+				for (int i = 1; i < referents.size(); i += 2)
+				{
+					nodes.put(referents.get(i), -1);
+				}
+			}
+			for (int v = 0; v < graph.nodeCount; v++)
+			{
+				long id = graph.ids.get(v);
+				if (id != 0 && nodes.get(id, -2) != -2)
+				{
+					nodes.put(id, v);
+				}
+			}
+			return nodes;
+		}
+
+		// the shallow size of everything reachable from the referents of reachable references, without passing
+		// through a node the root reaches or one already visited
+		private long unreachableSize(ObjectGraph graph, int[] idom, LongArrayList referents, LongIntHashMap referentNodes,
+			long[] visited)
+		{
+			IntArray queue = storage.ints(graph.nodeCount);
+			int tail = 0;
+			long size = 0;
+			for (int i = 0; i < referents.size(); i += 2)
+			{
+				int reference = (int) referents.get(i);
+				int w = referentNodes.get(referents.get(i + 1), -1);
+				if (idom[reference] != -1 && w >= 0 && visit(w, idom, visited))
+				{
+					size += graph.sizes.get(w);
+					queue.set(tail++, w);
+				}
+			}
+			for (int head = 0; head < tail; head++)
+			{
+				int v = queue.get(head);
+				for (int e = graph.succStart.get(v), end = graph.succStart.get(v + 1); e < end; e++)
+				{
+					int w = graph.succs.get(e);
+					if (visit(w, idom, visited))
+					{
+						size += graph.sizes.get(w);
+						queue.set(tail++, w);
+					}
+				}
+			}
+			storage.free(queue);
+			return size;
+		}
+
+		// marks a node the root doesn't reach as visited, unless it already was
+		private boolean visit(int v, int[] idom, long[] visited)
+		{
+			if (idom[v] != -1 || (visited[v >> 6] & (1L << v)) != 0)
+			{
+				return false;
+			}
+			visited[v >> 6] |= 1L << v;
+			return true;
+		}
+
+		private ClassHistogram gcRootHistogram(ObjectGraph graph, int rootNode, long[] retainedSize)
+		{
+			// what the root references, by id. Roots to ids that aren't in the dump were dropped
+			int first = graph.succStart.get(rootNode);
+			int end = graph.succStart.get(rootNode + 1);
+			LongIntHashMap nodes = new LongIntHashMap(end - first);
+			for (int e = first; e < end; e++)
+			{
+				int v = graph.succs.get(e);
+				nodes.put(graph.ids.get(v), v);
+			}
+
+			int kinds = GC_ROOT_TAGS.length;
+			var h = new ClassHistogram(GC_ROOT_NAMES.clone(), new int[kinds], new long[kinds], new long[kinds]);
+			// the last kind each node was counted for, so roots repeated within a kind are only counted once
+			LongIntHashMap counted = new LongIntHashMap();
+			for (int k = 0; k < kinds; k++)
+			{
+				var ids = gcRoots[k];
+				for (int i = 0; i < ids.size(); i++)
+				{
+					int v = nodes.get(ids.get(i), -1);
+					if (v < 0 || counted.get(ids.get(i), -1) == k)
+					{
+						continue;
+					}
+					counted.put(ids.get(i), k);
+					h.instances[k]++;
+					h.shallowSize[k] += graph.sizes.get(v);
+					h.retainedSize[k] += retainedSize[v];
+				}
+			}
+			return h;
 		}
 
 //		void dumpTree(List<Integer>[] domTree, int node, int level, long[] retainedSizes, int[] numObjects)
@@ -1046,30 +1964,6 @@ public class HProfStripper implements AutoCloseable
 
 	private final byte[] zero = new byte[256];
 
-	private void zero(int bytes) throws IOException
-	{
-		skip(bytes);
-		for (; bytes > 0; )
-		{
-			int chunk = Math.min(zero.length, bytes);
-			out.write(zero, 0, chunk);
-			bytes -= chunk;
-		}
-	}
-
-	private void skip(int bytes) throws IOException
-	{
-		for (; bytes > 0; )
-		{
-			int read = in.skipBytes(bytes);
-			if (read < 0)
-			{
-				throw new EOFException();
-			}
-			bytes -= read;
-		}
-	}
-
 	public static void main(String... args) throws IOException
 	{
 		ZstdOutputStream.init();
@@ -0,0 +1,118 @@
+package abex.os.debug;
+
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import lombok.Value;
+
+/**
+ * What changed between two dumps of the same process, by class and by the class of the objects at the top of the
+ * dominator tree. Only the histograms of each dump are kept, so comparing takes no more memory than analyzing
+ * the bigger of the two
+ */
+class HeapDiff
+{
+	@Value
+	static class Delta
+	{
+		String name;
+		int instancesBefore;
+		int instancesAfter;
+		long shallowBefore;
+		long shallowAfter;
+		long retainedBefore;
+		long retainedAfter;
+
+		int instancesDelta()
+		{
+			return instancesAfter - instancesBefore;
+		}
+
+		long shallowDelta()
+		{
+			return shallowAfter - shallowBefore;
+		}
+
+		long retainedDelta()
+		{
+			return retainedAfter - retainedBefore;
+		}
+	}
+
+	private final ClassHistogram classesBefore;
+	private final ClassHistogram rootsBefore;
+	private final ClassHistogram classesAfter;
+	private final ClassHistogram rootsAfter;
+	// largest retained growth first
+	final List<Delta> classes;
+	final List<Delta> dominatorRoots;
+
+	HeapDiff(HProfStripper.RetainedSizeResult before, HProfStripper.RetainedSizeResult after)
+	{
+		this(before.histogram, before.dominatorRoots, after.histogram, after.dominatorRoots);
+	}
+
+	HeapDiff(ClassHistogram classesBefore, ClassHistogram rootsBefore, ClassHistogram classesAfter, ClassHistogram rootsAfter)
+	{
+		this.classesBefore = classesBefore;
+		this.rootsBefore = rootsBefore;
+		this.classesAfter = classesAfter;
+		this.rootsAfter = rootsAfter;
+		classes = compare(classesBefore, classesAfter);
+		dominatorRoots = compare(rootsBefore, rootsAfter);
+	}
+
+	// class indexes are different in every dump, and a class can be loaded more than once, so classes are matched up
+	// by name and the ones with the same name summed
+	private static List<Delta> compare(ClassHistogram before, ClassHistogram after)
+	{
+		// instances, shallow and retained before, then the same after
+		Map<String, long[]> totals = new HashMap<>();
+		add(totals, before, 0);
+		add(totals, after, 3);
+
+		List<Delta> deltas = new ArrayList<>(totals.size());
+		for (var e : totals.entrySet())
+		{
+			long[] t = e.getValue();
+			deltas.add(new Delta(e.getKey(), (int) t[0], (int) t[3], t[1], t[4], t[2], t[5]));
+		}
+		deltas.sort(Comparator.comparingLong(Delta::retainedDelta).reversed()
+			.thenComparing(Comparator.comparingLong(Delta::shallowDelta).reversed())
+			.thenComparing(Delta::getName));
+		return deltas;
+	}
+
+	private static void add(Map<String, long[]> totals, ClassHistogram h, int offset)
+	{
+		for (int i = 0; i < h.size(); i++)
+		{
+			if (h.instances[i] == 0)
+			{
+				continue;
+			}
+			long[] t = totals.computeIfAbsent(String.valueOf(h.names[i]), k -> new long[6]);
+			t[offset] += h.instances[i];
+			t[offset + 1] += h.shallowSize[i];
+			t[offset + 2] += h.retainedSize[i];
+		}
+	}
+
+	void write(DataOutputStream out) throws IOException
+	{
+		classesBefore.write(out);
+		rootsBefore.write(out);
+		classesAfter.write(out);
+		rootsAfter.write(out);
+	}
+
+	static HeapDiff read(DataInputStream in) throws IOException
+	{
+		return new HeapDiff(ClassHistogram.read(in), ClassHistogram.read(in), ClassHistogram.read(in), ClassHistogram.read(in));
+	}
+}
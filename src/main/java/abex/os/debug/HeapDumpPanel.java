@@ -26,15 +26,23 @@ package abex.os.debug;
 
 import com.google.common.reflect.ClassPath;
 import com.sun.management.HotSpotDiagnosticMXBean;
+import com.sun.management.OperatingSystemMXBean;
 import java.awt.Window;
 import java.awt.event.ActionEvent;
+import java.io.BufferedInputStream;
+import java.io.DataInputStream;
 import java.io.File;
 import java.io.IOException;
 import java.io.InputStream;
+import java.io.InterruptedIOException;
 import java.lang.management.ManagementFactory;
 import java.nio.file.Files;
 import java.nio.file.Path;
 import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.function.Function;
 import javax.inject.Inject;
 import javax.inject.Named;
 import javax.inject.Singleton;
@@ -46,10 +54,14 @@ import javax.swing.JFrame;
 import javax.swing.JLabel;
 import javax.swing.JOptionPane;
 import javax.swing.JPanel;
+import javax.swing.JProgressBar;
+import javax.swing.JTable;
+import javax.swing.SwingUtilities;
 import javax.swing.Timer;
 import javax.swing.border.EmptyBorder;
 import javax.swing.filechooser.FileNameExtensionFilter;
 import javax.swing.filechooser.FileSystemView;
+import javax.swing.table.DefaultTableModel;
 import lombok.extern.slf4j.Slf4j;
 import net.runelite.api.Client;
 import net.runelite.client.RuneLite;
@@ -61,10 +73,22 @@ import net.runelite.client.util.OSType;
 @Singleton
 public class HeapDumpPanel extends JPanel
 {
+	// the client keeps running while its heap is analyzed, so the analysis only gets this share of it
+	private static final int IN_PROCESS_HEAP_FRACTION = 4;
+	private static final long MIN_SUBPROCESS_HEAP = 256 << 20;
+	// classes that grew the most shown in the panel after comparing dumps
+	private static final int COMPARISON_ROWS = 10;
+
 	private final Client client;
 	private final ConfigManager configManager;
 	private final Object[] oomer = new Object[1];
 	private final JCheckBox heapDumpOnOOM;
+	private final JButton analyzeHeap;
+	private final JButton compareDumps;
+	// progress of the running analysis, or the results of the last one
+	private final JPanel analysis = new JPanel(new DynamicGridLayout(0, 1, 0, 3));
+	private final JLabel analysisStage = new JLabel();
+	private final JProgressBar analysisProgress = new JProgressBar(0, 1000);
 	private final File oomDumpFile = new File(RuneLite.LOGS_DIR, "oom_heap_dump.hprof");
 	private File lastDump;
 
@@ -80,10 +104,32 @@ public class HeapDumpPanel extends JPanel
 		add(heapDump);
 		heapDump.addActionListener(ev -> dumpHeap());
 
-		JButton analyzeHeap = new JButton("Analyze Heap");
+		analyzeHeap = new JButton("Analyze Heap");
 		add(analyzeHeap);
 		analyzeHeap.addActionListener(this::analyzeHeap);
 
+		compareDumps = new JButton("Compare dumps");
+		add(compareDumps);
+		compareDumps.addActionListener(this::compareDumps);
+
+		JCheckBox analyzeInSubprocess = new JCheckBox("Analyze in separate process");
+		analyzeInSubprocess.setSelected(configManager.getConfiguration(DebugConfig.GROUP, DebugConfig.ANALYZE_HEAP_IN_SUBPROCESS, boolean.class) == Boolean.TRUE);
+		analyzeInSubprocess.addChangeListener(_ev ->
+		{
+			configManager.setConfiguration(DebugConfig.GROUP, DebugConfig.ANALYZE_HEAP_IN_SUBPROCESS, analyzeInSubprocess.isSelected());
+		});
+		add(analyzeInSubprocess);
+
+		JCheckBox weakReferences = new JCheckBox("Don't count references' referents");
+		weakReferences.setToolTipText("Treat soft, weak and phantom references as not retaining what they refer to");
+		weakReferences.setSelected(configManager.getConfiguration(DebugConfig.GROUP, DebugConfig.HEAP_WEAK_REFERENCES, boolean.class) == Boolean.TRUE);
+		weakReferences.addChangeListener(_ev ->
+		{
+			configManager.setConfiguration(DebugConfig.GROUP, DebugConfig.HEAP_WEAK_REFERENCES, weakReferences.isSelected());
+		});
+		add(weakReferences);
+		add(analysis);
+
 		heapDumpOnOOM = new JCheckBox("Heap dump on OOM");
 		heapDumpOnOOM.setSelected(configManager.getConfiguration(DebugConfig.GROUP, DebugConfig.CREATE_HEAP_DUMP, boolean.class) == Boolean.TRUE);
 		heapDumpOnOOM.addChangeListener(_ev ->
@@ -267,7 +313,22 @@ public class HeapDumpPanel extends JPanel
 				new String[]{String.class.getName(), boolean.class.getName()}
 			);
 
-			runRetainedSizeComputer(file);
+			// the dump is thrown away afterwards, so there's no point caching its results. It's of this jvm, so its
+			// object layout doesn't have to be inferred
+			boolean weakReferences = weakReferences();
+			HotSpotLayout layout = HotSpotLayout.current();
+			List<String> args = analyzerArgs(weakReferences, "--layout", layout.toArgument(), "--delete",
+				file.getAbsolutePath());
+			if (analyzeInSubprocess())
+			{
+				runInSubprocess(args, file.length(), RetainedSizeAnalyzer.Summary.class, file);
+			}
+			else
+			{
+				runInProcess(storage -> RetainedSizeAnalyzer.summarize(RetainedSizeAnalyzer.analyze(file, false,
+						weakReferences, false, layout, storage.apply(file), this::analysisProgress)),
+					args, file.length(), RetainedSizeAnalyzer.Summary.class, file);
+			}
 		}
 		catch (Exception ex)
 		{
@@ -276,39 +337,345 @@ public class HeapDumpPanel extends JPanel
 		}
 	}
 
-	private void runRetainedSizeComputer(File hprof) throws IOException
+	private void compareDumps(ActionEvent ev)
 	{
-		Path java = Path.of(System.getProperty("java.home"), "bin", OSType.getOSType() == OSType.Windows ? "java.exe" : "java");
-		Process process = new ProcessBuilder(
-			java.toString(),
-			"-Xmx2G",
-			"-cp",
-			RetainedSizeAnalyzer.class.getProtectionDomain().getCodeSource().getLocation().getPath(),
-			RetainedSizeAnalyzer.class.getName(),
-			hprof.getAbsolutePath()
-		)
-			.inheritIO()
-			.start();
-
-		Thread waiter = new Thread(() ->
+		File before = chooseDump("Open earlier heap dump");
+		if (before == null)
 		{
+			return;
+		}
+		File after = chooseDump("Open later heap dump");
+		if (after == null)
+		{
+			return;
+		}
+
+		// these are kept, so their results are cached next to them in case they're compared again
+		boolean weakReferences = weakReferences();
+		List<String> args = analyzerArgs(weakReferences, "--compare", before.getAbsolutePath(), after.getAbsolutePath());
+		long size = Math.max(before.length(), after.length());
+		if (analyzeInSubprocess())
+		{
+			runInSubprocess(args, size, HeapDiff.class, null);
+		}
+		else
+		{
+			runInProcess(storage -> RetainedSizeAnalyzer.compare(before, after, true, weakReferences, storage,
+					this::analysisProgress),
+				args, size, HeapDiff.class, null);
+		}
+	}
+
+	private File chooseDump(String title)
+	{
+		JFileChooser fc = new JFileChooser();
+		fc.setDialogTitle(title);
+		fc.setSelectedFile(lastDump != null ? lastDump : FileSystemView.getFileSystemView().getDefaultDirectory());
+		fc.setFileFilter(new FileNameExtensionFilter("Heap dump", "hprof"));
+		if (fc.showOpenDialog(this) != JFileChooser.APPROVE_OPTION)
+		{
+			return null;
+		}
+		lastDump = fc.getSelectedFile();
+		return lastDump;
+	}
+
+	private boolean analyzeInSubprocess()
+	{
+		return configManager.getConfiguration(DebugConfig.GROUP, DebugConfig.ANALYZE_HEAP_IN_SUBPROCESS, boolean.class) == Boolean.TRUE;
+	}
+
+	private boolean weakReferences()
+	{
+		return configManager.getConfiguration(DebugConfig.GROUP, DebugConfig.HEAP_WEAK_REFERENCES, boolean.class) == Boolean.TRUE;
+	}
+
+	private static List<String> analyzerArgs(boolean weakReferences, String... args)
+	{
+		List<String> list = new ArrayList<>(List.of(args));
+		if (weakReferences)
+		{
+			list.add(0, "--weak-references");
+		}
+		return list;
+	}
+
+	private interface InProcessAnalysis<T>
+	{
+		/**
+		 * @param storage the graph storage to analyze a dump with
+		 */
+		T run(Function<File, GraphStorage> storage) throws IOException;
+	}
+
+	/**
+	 * Analyzes on a low priority thread. Graphs are kept in mapped files next to their dump, so only the results are
+	 * on the heap, and if they don't fit in the budget the analysis is run in a separate process instead
+	 *
+	 * @param subprocessArgs analyzer arguments that do the same in a separate process
+	 * @param temp a dump to delete once the analysis is done, or null
+	 */
+	private <T> void runInProcess(InProcessAnalysis<T> analysis, List<String> subprocessArgs, long dumpSize,
+		Class<T> type, File temp)
+	{
+		long budget = Runtime.getRuntime().maxMemory() / IN_PROCESS_HEAP_FRACTION;
+		Thread thread = new Thread(() ->
+		{
+			T result = null;
+			boolean inSubprocess = false;
 			try
 			{
-				int exit = process.waitFor();
-				if (exit != 0)
+				result = analysis.run(file -> GraphStorage.mapped(file.getAbsoluteFile().getParentFile(), budget));
+			}
+			catch (HProfStripper.HeapBudgetExceededException e)
+			{
+				log.info("analyzing heap dump in a separate process: {}", e.getMessage());
+				inSubprocess = true;
+				SwingUtilities.invokeLater(() -> runInSubprocess(subprocessArgs, dumpSize, type, temp));
+			}
+			catch (Exception | OutOfMemoryError e)
+			{
+				// cancelling interrupts the analysis, which may also show up as a mapped file being closed
+				if (e instanceof InterruptedIOException || Thread.currentThread().isInterrupted())
 				{
-					log.warn("retained size analyzer exited with {}", exit);
+					log.debug("heap analysis cancelled", e);
 				}
 				else
 				{
-					log.info("retained size analyzer exited with {}", exit);
+					analysisFailed(e);
+				}
+			}
+			finally
+			{
+				// anything else that escapes still has to give the panel back
+				if (!inSubprocess)
+				{
+					if (temp != null)
+					{
+						temp.delete();
+					}
+					analysisFinished(result);
+				}
+			}
+		}, "retained-size-analyzer");
+		thread.setPriority(Thread.MIN_PRIORITY);
+		thread.setDaemon(true);
+
+		analysisStarted(thread::interrupt);
+		thread.start();
+	}
+
+	/**
+	 * Analyzes in another jvm, which streams its progress and results back over its stdout
+	 *
+	 * @param args analyzer arguments, without --stream
+	 * @param temp a dump to delete once the analysis is done, or null
+	 */
+	private <T> void runInSubprocess(List<String> args, long dumpSize, Class<T> type, File temp)
+	{
+		Process process;
+		try
+		{
+			long heap = subprocessHeapSize(dumpSize);
+			log.debug("analyzing {} byte heap dump with a {}MiB heap", dumpSize, heap >> 20);
+
+			Path java = Path.of(System.getProperty("java.home"), "bin", OSType.getOSType() == OSType.Windows ? "java.exe" : "java");
+			List<String> command = new ArrayList<>(List.of(
+				java.toString(),
+				"-Xmx" + (heap >> 20) + "m",
+				"-cp",
+				RetainedSizeAnalyzer.class.getProtectionDomain().getCodeSource().getLocation().getPath(),
+				RetainedSizeAnalyzer.class.getName(),
+				"--stream"
+			));
+			command.addAll(args);
+			process = new ProcessBuilder(command)
+				.redirectError(ProcessBuilder.Redirect.INHERIT)
+				.start();
+		}
+		catch (IOException e)
+		{
+			if (temp != null)
+			{
+				temp.delete();
+			}
+			analysisFailed(e);
+			analysisFinished(null);
+			return;
+		}
+
+		AtomicBoolean cancelled = new AtomicBoolean();
+		Thread reader = new Thread(() ->
+		{
+			T result = null;
+			try (var in = new DataInputStream(new BufferedInputStream(process.getInputStream())))
+			{
+				result = RetainedSizeAnalyzer.readStream(in, this::analysisProgress, type);
+			}
+			catch (IOException | RuntimeException e)
+			{
+				if (!cancelled.get())
+				{
+					analysisFailed(e);
 				}
 			}
-			catch (InterruptedException ignored)
+			finally
 			{
+				finishSubprocess(process, temp, result);
 			}
 		}, "retained-size-analyzer");
-		waiter.setDaemon(true);
-		waiter.start();
+		reader.setDaemon(true);
+
+		analysisStarted(() ->
+		{
+			cancelled.set(true);
+			process.destroyForcibly();
+		});
+		reader.start();
+	}
+
+	private void finishSubprocess(Process process, File temp, Object result)
+	{
+		try
+		{
+			int exit = process.waitFor();
+			log.debug("retained size analyzer exited with {}", exit);
+		}
+		catch (InterruptedException e)
+		{
+			process.destroyForcibly();
+		}
+		// the analyzer deletes a temporary dump once it has read it, unless it was killed first
+		if (temp != null)
+		{
+			temp.delete();
+		}
+		analysisFinished(result);
+	}
+
+	static long subprocessHeapSize(long dumpSize)
+	{
+		// the analyzer keeps its graph on the heap if it has ~3x the dump, and otherwise maps it to disk and needs the
+		// ~20 bytes of results per object, where an object is at least ~25 bytes of dump. Never take more than half of
+		// what's free, even if that means the graph is mapped, so the rest of the system isn't pushed into swap
+		var os = (OperatingSystemMXBean) ManagementFactory.getOperatingSystemMXBean();
+		long free = os.getFreePhysicalMemorySize();
+		long heap = Math.min(dumpSize * 3, free / 2);
+		return Math.max(heap, MIN_SUBPROCESS_HEAP);
+	}
+
+	// replaces the last analysis' results with its progress. cancel is run on the event thread
+	private void analysisStarted(Runnable cancel)
+	{
+		analyzeHeap.setEnabled(false);
+		compareDumps.setEnabled(false);
+		analysisStage.setText("Reading heap dump");
+		analysisProgress.setIndeterminate(true);
+
+		JButton cancelButton = new JButton("Cancel analysis");
+		cancelButton.addActionListener(_ev ->
+		{
+			cancelButton.setEnabled(false);
+			cancel.run();
+		});
+
+		analysis.removeAll();
+		analysis.add(analysisStage);
+		analysis.add(analysisProgress);
+		analysis.add(cancelButton);
+		analysis.revalidate();
+		analysis.repaint();
+	}
+
+	private void analysisProgress(String stage, double fraction)
+	{
+		SwingUtilities.invokeLater(() ->
+		{
+			analysisStage.setText(stage);
+			analysisProgress.setIndeterminate(fraction < 0);
+			analysisProgress.setValue((int) (Math.max(fraction, 0) * analysisProgress.getMaximum()));
+		});
+	}
+
+	private void analysisFailed(Throwable e)
+	{
+		log.error("heap analysis failed", e);
+		SwingUtilities.invokeLater(() ->
+			JOptionPane.showMessageDialog(this, e.toString(), "Memory Analyzer", JOptionPane.ERROR_MESSAGE));
+	}
+
+	// shows a Summary or HeapDiff, or nothing if the analysis didn't finish
+	private void analysisFinished(Object result)
+	{
+		SwingUtilities.invokeLater(() ->
+		{
+			analysis.removeAll();
+			if (result instanceof RetainedSizeAnalyzer.Summary)
+			{
+				var summary = (RetainedSizeAnalyzer.Summary) result;
+				var model = resultModel("Plugin");
+				for (var size : summary.getPlugins())
+				{
+					model.addRow(new Object[]{
+						simpleName(size.getName()),
+						String.format("%,d", size.getRetainedSize() / 1024)
+					});
+				}
+				addResultTable(model);
+				if (summary.getSoftlyRetained() > 0 || summary.getWeaklyRetained() > 0)
+				{
+					analysis.add(new JLabel(RetainedSizeAnalyzer.referencesText(summary)));
+				}
+
+				JButton histogram = new JButton("Class histogram");
+				histogram.addActionListener(_ev -> RetainedSizeAnalyzer.showHistogram(summary.getHistogram()));
+				analysis.add(histogram);
+			}
+			else if (result instanceof HeapDiff)
+			{
+				var diff = (HeapDiff) result;
+				var model = resultModel("Growth");
+				for (var d : diff.classes.subList(0, Math.min(COMPARISON_ROWS, diff.classes.size())))
+				{
+					model.addRow(new Object[]{
+						simpleName(d.getName()),
+						String.format("%+,d", d.retainedDelta() / 1024)
+					});
+				}
+				addResultTable(model);
+
+				JButton details = new JButton("Show comparison");
+				details.addActionListener(_ev -> RetainedSizeAnalyzer.showComparison(diff, JFrame.DISPOSE_ON_CLOSE));
+				analysis.add(details);
+			}
+			analysis.revalidate();
+			analysis.repaint();
+			analyzeHeap.setEnabled(true);
+			compareDumps.setEnabled(true);
+		});
+	}
+
+	private static DefaultTableModel resultModel(String name)
+	{
+		return new DefaultTableModel(new Object[]{name, "Size (KB)"}, 0)
+		{
+			@Override
+			public boolean isCellEditable(int row, int column)
+			{
+				return false;
+			}
+		};
+	}
+
+	private void addResultTable(DefaultTableModel model)
+	{
+		JTable table = new JTable(model);
+		analysis.add(table.getTableHeader());
+		analysis.add(table);
+	}
+
+	private static String simpleName(String className)
+	{
+		return className.substring(className.lastIndexOf('/') + 1);
 	}
 }
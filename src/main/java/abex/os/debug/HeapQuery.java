@@ -0,0 +1,215 @@
+package abex.os.debug;
+
+import java.util.Arrays;
+
+/**
+ * Answers why an object is alive and what it keeps alive, for drilling down into an analyzed dump. Built from the
+ * graph before it is freed, so it only exists if {@link HProfStripper#setBuildQueries} was set. Everything is on the
+ * heap, and a query only touches the part of the graph it needs
+ */
+class HeapQuery
+{
+	// the synthetic node every gc root hangs off
+	final int root;
+	// object id of each node
+	final long[] ids;
+	private final int[] idom;
+	private final long[] retainedSize;
+	// predecessors and dominator tree children in the same form as ObjectGraph's
+	final int[] predStart;
+	final int[] preds;
+	final int[] domStart;
+	final int[] domChildren;
+
+	// bfs state, reused so a query doesn't clear an array the size of the heap. A node has been reached in this query
+	// if seen[node] == generation
+	private int[] seen;
+	private int[] parent;
+	private int[] queue = new int[1024];
+	private int generation;
+
+	HeapQuery(int root, long[] ids, int[] idom, long[] retainedSize, int[] predStart, int[] preds, int[] domStart,
+		int[] domChildren)
+	{
+		this.root = root;
+		this.ids = ids;
+		this.idom = idom;
+		this.retainedSize = retainedSize;
+		this.predStart = predStart;
+		this.preds = preds;
+		this.domStart = domStart;
+		this.domChildren = domChildren;
+	}
+
+	/**
+	 * Shortest chain of references keeping {@code node} alive, found by searching its referrers breadth first
+	 *
+	 * @return node, then what references it, and so on up to an object referenced by a gc root. null if it is
+	 * unreachable
+	 */
+	synchronized int[] pathToRoot(int node)
+	{
+		if (node == root)
+		{
+			return new int[0];
+		}
+		if (idom[node] == -1)
+		{
+			return null;
+		}
+
+		if (seen == null)
+		{
+			seen = new int[idom.length];
+			parent = new int[idom.length];
+		}
+		if (++generation == 0)
+		{
+			Arrays.fill(seen, 0);
+			generation = 1;
+		}
+
+		int head = 0;
+		int tail = 0;
+		seen[node] = generation;
+		parent[node] = -1;
+		queue[tail++] = node;
+		for (; head < tail; )
+		{
+			int v = queue[head++];
+			for (int e = predStart[v], end = predStart[v + 1]; e < end; e++)
+			{
+				int p = preds[e];
+				if (p == root)
+				{
+					return path(v);
+				}
+				if (seen[p] != generation)
+				{
+					seen[p] = generation;
+					parent[p] = v;
+					if (tail == queue.length)
+					{
+						queue = Arrays.copyOf(queue, queue.length * 2);
+					}
+					queue[tail++] = p;
+				}
+			}
+		}
+		// every node with a dominator is reachable, so this doesn't happen
+		return null;
+	}
+
+	// follows parent from the object a root references back down to the node the search started at
+	private int[] path(int top)
+	{
+		int length = 0;
+		for (int v = top; v != -1; v = parent[v])
+		{
+			length++;
+		}
+		int[] path = new int[length];
+		for (int i = length - 1, v = top; v != -1; i--, v = parent[v])
+		{
+			path[i] = v;
+		}
+		return path;
+	}
+
+	int childCount(int node)
+	{
+		return domStart[node + 1] - domStart[node];
+	}
+
+	long childrenRetainedSize(int node)
+	{
+		long size = 0;
+		for (int e = domStart[node], end = domStart[node + 1]; e < end; e++)
+		{
+			size += retainedSize[domChildren[e]];
+		}
+		return size;
+	}
+
+	/**
+	 * @return up to {@code limit} of the nodes {@code node} dominates directly, largest retained size first
+	 */
+	int[] topRetainedChildren(int node, int limit)
+	{
+		int begin = domStart[node];
+		int count = Math.min(limit, domStart[node + 1] - begin);
+
+		// min heap of the largest seen so far, so the root can have millions of children without sorting them all
+		int[] heap = new int[count];
+		int size = 0;
+		for (int e = begin, end = domStart[node + 1]; e < end; e++)
+		{
+			int c = domChildren[e];
+			if (size < count)
+			{
+				heap[size] = c;
+				siftUp(heap, size++);
+			}
+			else if (count > 0 && retainedSize[c] > retainedSize[heap[0]])
+			{
+				heap[0] = c;
+				siftDown(heap, size);
+			}
+		}
+
+		// popping the smallest to the back leaves it largest first
+		for (; size > 1; )
+		{
+			int smallest = heap[0];
+			heap[0] = heap[--size];
+			siftDown(heap, size);
+			heap[size] = smallest;
+		}
+		return heap;
+	}
+
+	private void siftUp(int[] heap, int i)
+	{
+		for (; i > 0; )
+		{
+			int p = (i - 1) >> 1;
+			if (retainedSize[heap[p]] <= retainedSize[heap[i]])
+			{
+				break;
+			}
+			swap(heap, p, i);
+			i = p;
+		}
+	}
+
+	private void siftDown(int[] heap, int size)
+	{
+		for (int i = 0; ; )
+		{
+			int smallest = i;
+			int l = 2 * i + 1;
+			int r = l + 1;
+			if (l < size && retainedSize[heap[l]] < retainedSize[heap[smallest]])
+			{
+				smallest = l;
+			}
+			if (r < size && retainedSize[heap[r]] < retainedSize[heap[smallest]])
+			{
+				smallest = r;
+			}
+			if (smallest == i)
+			{
+				return;
+			}
+			swap(heap, i, smallest);
+			i = smallest;
+		}
+	}
+
+	private static void swap(int[] a, int i, int j)
+	{
+		int t = a[i];
+		a[i] = a[j];
+		a[j] = t;
+	}
+}
@@ -0,0 +1,234 @@
+package abex.os.debug;
+
+import com.sun.management.HotSpotDiagnosticMXBean;
+import java.lang.management.ManagementFactory;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import lombok.Value;
+
+/**
+ * HotSpot's object layout, on 64 bit unless addressSize is 4. Fields are packed the way JDK 15 and later do it: each
+ * class' fields go after its superclass', largest first, each into the first gap left before it that fits
+ */
+@Value
+class HotSpotLayout implements ObjectLayout
+{
+	// hprof basic types
+	private static final int
+		ARRAY_OBJECT = 1,
+		NORMAL_OBJECT = 2,
+		BOOLEAN = 4,
+		CHAR = 5,
+		FLOAT = 6,
+		DOUBLE = 7,
+		BYTE = 8,
+		SHORT = 9,
+		INT = 10,
+		LONG = 11;
+	private static final int ARRAY_LENGTH_SIZE = 4;
+	private static final int MAX_ALIGNMENT = 256;
+
+	int addressSize;
+	boolean compressedOops;
+	boolean compressedClassPointers;
+	boolean compactHeaders;
+	int alignment;
+
+	/**
+	 * Guesses the layout from the addresses of the objects in a dump, which are what their ids are. Only the address
+	 * size, alignment and whether oops are compressed show in the addresses. The rest is taken to be JDK 15 and later's
+	 * defaults, so a dump of a jvm run with -XX:-UseCompressedClassPointers or -XX:+UseCompactObjectHeaders, or of one
+	 * before JDK 15 without compressed oops, has its objects sized wrong unless the layout is passed in. So does one
+	 * whose compressed oops heap was placed above 32GB with a base, which looks like it has none
+	 *
+	 * @param addressBits every address or'd together
+	 */
+	static HotSpotLayout infer(int identSize, long maxAddress, long addressBits)
+	{
+		if (identSize == 4)
+		{
+			return new HotSpotLayout(4, false, false, false, 8);
+		}
+
+		int alignment = (int) Math.max(8, Math.min(MAX_ALIGNMENT, Long.lowestOneBit(addressBits)));
+		// compressed oops address 4G objects' worth of alignment, and the jvm puts the heap below that so it can decode
+		// them without a base. Heaps that don't fit are mapped wherever the os likes, as are ones without compressed
+		// oops, which are then taken to be uncompressed. Since JDK 15 class pointers are compressed either way
+		boolean compressedOops = maxAddress < (long) alignment << 32;
+		return new HotSpotLayout(8, compressedOops, true, false, alignment);
+	}
+
+	// the layout of the jvm this is running in, from its vm options
+	static HotSpotLayout current()
+	{
+		var hsd = ManagementFactory.getPlatformMXBean(HotSpotDiagnosticMXBean.class);
+		return new HotSpotLayout(
+			"32".equals(System.getProperty("sun.arch.data.model")) ? 4 : 8,
+			Boolean.parseBoolean(vmOption(hsd, "UseCompressedOops", "false")),
+			Boolean.parseBoolean(vmOption(hsd, "UseCompressedClassPointers", "false")),
+			Boolean.parseBoolean(vmOption(hsd, "UseCompactObjectHeaders", "false")),
+			Integer.parseInt(vmOption(hsd, "ObjectAlignmentInBytes", "8"))
+		);
+	}
+
+	// options that don't exist on this jvm, like compact headers before JDK 24, are the default
+	private static String vmOption(HotSpotDiagnosticMXBean hsd, String name, String missing)
+	{
+		try
+		{
+			return hsd.getVMOption(name).getValue();
+		}
+		catch (IllegalArgumentException e)
+		{
+			return missing;
+		}
+	}
+
+	// for passing to the analyzer, see parse
+	String toArgument()
+	{
+		return addressSize + "," + compressedOops + "," + compressedClassPointers + "," + compactHeaders + "," + alignment;
+	}
+
+	static HotSpotLayout parse(String argument)
+	{
+		String[] parts = argument.split(",");
+		if (parts.length != 5)
+		{
+			throw new IllegalArgumentException("invalid object layout " + argument);
+		}
+		return new HotSpotLayout(Integer.parseInt(parts[0]), Boolean.parseBoolean(parts[1]),
+			Boolean.parseBoolean(parts[2]), Boolean.parseBoolean(parts[3]), Integer.parseInt(parts[4]));
+	}
+
+	@Override
+	public String toString()
+	{
+		if (addressSize == 4)
+		{
+			return "32 bit";
+		}
+		return "64 bit" + (compressedOops ? ", compressed oops" : "")
+			+ (compactHeaders ? ", compact headers" : compressedClassPointers ? ", compressed class pointers" : "")
+			+ ", " + alignment + " byte alignment";
+	}
+
+	int referenceSize()
+	{
+		return addressSize == 8 && !compressedOops ? 8 : 4;
+	}
+
+	int headerSize()
+	{
+		if (addressSize == 4 || compactHeaders)
+		{
+			return 8;
+		}
+		return compressedClassPointers ? 12 : 16;
+	}
+
+	private int typeSize(int type)
+	{
+		switch (type)
+		{
+			case ARRAY_OBJECT:
+			case NORMAL_OBJECT:
+				return referenceSize();
+			case BOOLEAN:
+			case BYTE:
+				return 1;
+			case CHAR:
+			case SHORT:
+				return 2;
+			case FLOAT:
+			case INT:
+				return 4;
+			case DOUBLE:
+			case LONG:
+				return 8;
+			default:
+				throw new IllegalArgumentException("type " + type);
+		}
+	}
+
+	@Override
+	public int instanceSize(List<byte[]> fields)
+	{
+		// offset and size of every gap alignment has left so far
+		List<int[]> gaps = new ArrayList<>();
+		int end = headerSize();
+		for (byte[] types : fields)
+		{
+			int[] sizes = new int[types.length];
+			for (int i = 0; i < types.length; i++)
+			{
+				sizes[i] = typeSize(types[i]);
+			}
+			Arrays.sort(sizes);
+
+			for (int i = sizes.length - 1; i >= 0; i--)
+			{
+				int size = sizes[i];
+				if (fillGap(gaps, size))
+				{
+					continue;
+				}
+				int offset = align(end, size);
+				if (offset > end)
+				{
+					gaps.add(new int[]{end, offset - end});
+				}
+				end = offset + size;
+			}
+		}
+		return align(end, alignment);
+	}
+
+	private static boolean fillGap(List<int[]> gaps, int size)
+	{
+		for (int i = 0; i < gaps.size(); i++)
+		{
+			int[] gap = gaps.get(i);
+			int gapEnd = gap[0] + gap[1];
+			int offset = align(gap[0], size);
+			if (offset + size > gapEnd)
+			{
+				continue;
+			}
+
+			gaps.remove(i);
+			if (offset > gap[0])
+			{
+				gaps.add(new int[]{gap[0], offset - gap[0]});
+			}
+			if (offset + size < gapEnd)
+			{
+				gaps.add(new int[]{offset + size, gapEnd - offset - size});
+			}
+			return true;
+		}
+		return false;
+	}
+
+	@Override
+	public long arraySize(int type, int length)
+	{
+		int elementSize = typeSize(type);
+		int header = headerSize() + ARRAY_LENGTH_SIZE;
+		// elements start on a word boundary, except with compact headers and on 32 bit where they're only aligned to
+		// their own size
+		int base = addressSize == 8 && !compactHeaders ? align(header, 8) : align(header, elementSize);
+		return align(base + (long) length * elementSize, alignment);
+	}
+
+	private static int align(int offset, int alignment)
+	{
+		return (offset + alignment - 1) & -alignment;
+	}
+
+	private static long align(long offset, int alignment)
+	{
+		return (offset + alignment - 1) & -alignment;
+	}
+}
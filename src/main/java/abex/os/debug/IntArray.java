@@ -0,0 +1,146 @@
+package abex.os.debug;
+
+import java.nio.IntBuffer;
+import java.util.Arrays;
+
+// int array that lives either on the heap or in a mapped temp file, see GraphStorage
+abstract class IntArray
+{
+	abstract int get(long index);
+
+	abstract void set(long index, int value);
+
+	abstract long length();
+
+	/**
+	 * @return an array of at least {@code length} elements with the contents of this one, which may be this one
+	 */
+	abstract IntArray grow(long length);
+
+	void fill(int value)
+	{
+		for (long i = 0, len = length(); i < len; i++)
+		{
+			set(i, value);
+		}
+	}
+
+	int[] toArray()
+	{
+		return toArray(Math.toIntExact(length()));
+	}
+
+	// the first length elements, for arrays that were grown past what was used
+	int[] toArray(int length)
+	{
+		int[] a = new int[length];
+		for (int i = 0; i < a.length; i++)
+		{
+			a[i] = get(i);
+		}
+		return a;
+	}
+
+	static final class Heap extends IntArray
+	{
+		private final int[] values;
+
+		Heap(int[] values)
+		{
+			this.values = values;
+		}
+
+		@Override
+		int get(long index)
+		{
+			return values[(int) index];
+		}
+
+		@Override
+		void set(long index, int value)
+		{
+			values[(int) index] = value;
+		}
+
+		@Override
+		long length()
+		{
+			return values.length;
+		}
+
+		@Override
+		IntArray grow(long length)
+		{
+			return length <= values.length ? this : new Heap(Arrays.copyOf(values, Math.toIntExact(length)));
+		}
+
+		@Override
+		void fill(int value)
+		{
+			Arrays.fill(values, value);
+		}
+
+		@Override
+		int[] toArray(int length)
+		{
+			return Arrays.copyOf(values, length);
+		}
+	}
+
+	static final class Mapped extends IntArray
+	{
+		private static final int SHIFT = MappedFile.WINDOW_SHIFT - 2;
+		private static final int MASK = (1 << SHIFT) - 1;
+
+		final MappedFile file;
+		private IntBuffer[] windows = new IntBuffer[0];
+		private long length;
+
+		Mapped(MappedFile file, long length)
+		{
+			this.file = file;
+			this.length = length;
+		}
+
+		private IntBuffer window(long index)
+		{
+			int w = (int) (index >>> SHIFT);
+			if (w >= windows.length)
+			{
+				windows = Arrays.copyOf(windows, w + 1);
+			}
+			IntBuffer b = windows[w];
+			if (b == null)
+			{
+				b = windows[w] = file.window(w).asIntBuffer();
+			}
+			return b;
+		}
+
+		@Override
+		int get(long index)
+		{
+			return window(index).get((int) index & MASK);
+		}
+
+		@Override
+		void set(long index, int value)
+		{
+			window(index).put((int) index & MASK, value);
+		}
+
+		@Override
+		long length()
+		{
+			return length;
+		}
+
+		@Override
+		IntArray grow(long length)
+		{
+			// the file grows as windows past its end are mapped
+			this.length = Math.max(this.length, length);
+			return this;
+		}
+	}
+}
@@ -1,171 +1,161 @@
 package abex.os.debug;
 
-import java.util.*;
-
 // this is a slightly modified, chatgpt converted version of a scala script https://gist.github.com/yuzeh/a5e6602dfdb0db3c2130c10537db54d7
 // which is taken from "Modern Compiler Implementation in Java", 2nd ed. chapter 19.2
-public class LengauerTarjan
+// SemiNca is faster and doesn't recurse, this is kept to check it against
+public class LengauerTarjan implements DominatorAlgorithm
 {
-	int nodeCount;
-	int root;
-	int[][] succs;
-	List<Integer>[] preds;
-
-	public LengauerTarjan(int nodeCount, int root, int[][] succs)
-	{
-		this.nodeCount = nodeCount;
-		this.root = root;
-		this.succs = succs;
-		buildPreds();
-	}
-
-	private void buildPreds()
-	{
-		preds = new ArrayList[nodeCount];
-		for (int i = 0; i < nodeCount; i++)
-		{
-			preds[i] = new ArrayList<>();
-		}
-		for (int v = 0; v < nodeCount; v++)
-		{
-			for (int p : succs[v])
-			{
-				// v -> p
-				preds[p].add(v);
-			}
-		}
-	}
-
-	public int[] computeIdom()
+	private IntArray dfnum;
+	private IntArray semi;
+	private IntArray ancestor;
+	private IntArray best;
+
+	// the working arrays come from the graph's storage, so a mapped graph is also solved off the heap
+	@Override
+	public IntArray computeIdom(ObjectGraph graph, int root)
 	{
-		int nNodes = nodeCount;
+		GraphStorage storage = graph.storage;
+		int nNodes = graph.nodeCount;
 		int N = 0;
 
-		@SuppressWarnings("unchecked")
-		Set<Integer>[] bucket = new Set[nNodes];
-		for (int i = 0; i < nNodes; i++)
-		{
-			bucket[i] = new HashSet<>();
-		}
-
-		int[] dfnum = new int[nNodes];
-		Arrays.fill(dfnum, 0);
-		int[] vertex = new int[nNodes];
-		Arrays.fill(vertex, -1);
-		int[] parent = new int[nNodes];
-		Arrays.fill(parent, -1);
-		int[] semi = new int[nNodes];
-		Arrays.fill(semi, -1);
-		int[] ancestor = new int[nNodes];
-		Arrays.fill(ancestor, -1);
-		int[] idom = new int[nNodes];
-		Arrays.fill(idom, -1);
-		int[] samedom = new int[nNodes];
-		Arrays.fill(samedom, -1);
-		int[] best = new int[nNodes];
-		Arrays.fill(best, -1);
-
-		// DFS to number nodes
-		Deque<int[]> stack = new ArrayDeque<>();
-		stack.push(new int[]{-1, root}); // parent, node
-		while (!stack.isEmpty())
+		IntArray succStart = graph.succStart;
+		IntArray succs = graph.succs;
+		IntArray predStart = graph.predStart();
+		IntArray preds = graph.preds();
+
+		// each node is put in exactly one bucket, so they are linked lists through bucketNext
+		IntArray bucketHead = filled(storage, nNodes, -1);
+		IntArray bucketNext = storage.ints(nNodes);
+
+		// -1 until the node is reached
+		dfnum = filled(storage, nNodes, -1);
+		IntArray vertex = filled(storage, nNodes, -1);
+		IntArray parent = filled(storage, nNodes, -1);
+		semi = filled(storage, nNodes, -1);
+		ancestor = filled(storage, nNodes, -1);
+		IntArray idom = filled(storage, nNodes, -1);
+		IntArray samedom = filled(storage, nNodes, -1);
+		best = filled(storage, nNodes, -1);
+
+		// DFS to number nodes. Successors are walked last to first, and a node is numbered when the walk reaches
+		// it, which is the same order as pushing every successor onto a stack and numbering them as they're popped
+		IntArray stack = storage.ints(nNodes);
+		IntArray cursor = storage.ints(nNodes);
+		int sp = 0;
+		stack.set(sp, root);
+		cursor.set(sp++, succStart.get(root + 1));
+		dfnum.set(root, N);
+		vertex.set(N++, root);
+		for (; sp > 0; )
 		{
-			int[] pair = stack.pop();
-			int p = pair[0], v = pair[1];
-			if (dfnum[v] == 0)
+			int v = stack.get(sp - 1);
+			int e = cursor.get(sp - 1) - 1;
+			cursor.set(sp - 1, e);
+			if (e < succStart.get(v))
 			{
-				dfnum[v] = N;
-				vertex[N] = v;
-				parent[v] = p;
-				N++;
-				for (int w : succs[v])
-				{
-					stack.push(new int[]{v, w});
-				}
+				sp--;
+				continue;
 			}
-		}
-
-		// Helper: ancestor with lowest semi
-		final int[] dfnumRef = dfnum;
-		final int[] semiRef = semi;
-		final int[] ancestorRef = ancestor;
-		final int[] bestRef = best;
 
-		class Helper
-		{
-			int ancestorWithLowestSemi(int v)
+			int w = succs.get(e);
+			if (dfnum.get(w) < 0)
 			{
-				int a = ancestorRef[v];
-				if (a >= 0 && ancestorRef[a] >= 0)
-				{
-					int b = ancestorWithLowestSemi(a);
-					ancestorRef[v] = ancestorRef[a];
-					if (dfnumRef[semiRef[b]] < dfnumRef[semiRef[bestRef[v]]])
-					{
-						bestRef[v] = b;
-					}
-				}
-				return bestRef[v];
+				dfnum.set(w, N);
+				vertex.set(N++, w);
+				parent.set(w, v);
+				stack.set(sp, w);
+				cursor.set(sp++, succStart.get(w + 1));
 			}
 		}
-
-		Helper helper = new Helper();
-
-		// Link function
-		class Linker
-		{
-			void link(int p, int n)
-			{
-				ancestor[n] = p;
-				best[n] = n;
-			}
-		}
-		Linker linker = new Linker();
+		storage.free(stack);
+		storage.free(cursor);
 
 		// Main computation
 		for (int i = N - 1; i >= 1; i--)
 		{
-			int n = vertex[i];
-			int p = parent[n];
+			int n = vertex.get(i);
+			int p = parent.get(n);
 			int s = p;
 
-			for (int v : preds[n])
+			for (int e = predStart.get(n), end = predStart.get(n + 1); e < end; e++)
 			{
-				int sPrime = dfnum[v] <= dfnum[n] ? v : semi[helper.ancestorWithLowestSemi(v)];
-				if (dfnum[sPrime] < dfnum[s])
+				int v = preds.get(e);
+				if (dfnum.get(v) < 0)
+				{
+					// nodes the root doesn't reach can't be on a path from it
+					continue;
+				}
+				int sPrime = dfnum.get(v) <= dfnum.get(n) ? v : semi.get(ancestorWithLowestSemi(v));
+				if (dfnum.get(sPrime) < dfnum.get(s))
 				{
 					s = sPrime;
 				}
 			}
 
-			semi[n] = s;
-			bucket[s].add(n);
-			linker.link(p, n);
+			semi.set(n, s);
+			bucketNext.set(n, bucketHead.get(s));
+			bucketHead.set(s, n);
+			link(p, n);
 
-			for (int v : bucket[p])
+			for (int v = bucketHead.get(p); v != -1; v = bucketNext.get(v))
 			{
-				int y = helper.ancestorWithLowestSemi(v);
-				if (semi[y] == semi[v])
+				int y = ancestorWithLowestSemi(v);
+				if (semi.get(y) == semi.get(v))
 				{
-					idom[v] = p;
+					idom.set(v, p);
 				}
 				else
 				{
-					samedom[v] = y;
+					samedom.set(v, y);
 				}
 			}
-			bucket[p].clear();
+			bucketHead.set(p, -1);
 		}
 
 		for (int i = 1; i < N; i++)
 		{
-			int n = vertex[i];
-			if (samedom[n] >= 0)
+			int n = vertex.get(i);
+			int sd = samedom.get(n);
+			if (sd >= 0)
 			{
-				idom[n] = idom[samedom[n]];
+				idom.set(n, idom.get(sd));
 			}
 		}
 
+		for (IntArray a : new IntArray[]{bucketHead, bucketNext, dfnum, vertex, parent, semi, ancestor, samedom, best})
+		{
+			storage.free(a);
+		}
+		dfnum = semi = ancestor = best = null;
 		return idom;
 	}
+
+	private static IntArray filled(GraphStorage storage, int length, int value)
+	{
+		IntArray a = storage.ints(length);
+		a.fill(value);
+		return a;
+	}
+
+	// ancestor with lowest semi
+	private int ancestorWithLowestSemi(int v)
+	{
+		int a = ancestor.get(v);
+		if (a >= 0 && ancestor.get(a) >= 0)
+		{
+			int b = ancestorWithLowestSemi(a);
+			ancestor.set(v, ancestor.get(a));
+			if (dfnum.get(semi.get(b)) < dfnum.get(semi.get(best.get(v))))
+			{
+				best.set(v, b);
+			}
+		}
+		return best.get(v);
+	}
+
+	private void link(int p, int n)
+	{
+		ancestor.set(n, p);
+		best.set(n, n);
+	}
 }
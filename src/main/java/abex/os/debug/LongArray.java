@@ -0,0 +1,212 @@
+package abex.os.debug;
+
+import java.nio.LongBuffer;
+import java.util.Arrays;
+
+// long array that lives either on the heap or in a mapped temp file, see GraphStorage
+abstract class LongArray
+{
+	abstract long get(long index);
+
+	abstract void set(long index, long value);
+
+	abstract long length();
+
+	/**
+	 * @return an array of at least {@code length} elements with the contents of this one, which may be this one
+	 */
+	abstract LongArray grow(long length);
+
+	void fill(long value)
+	{
+		for (long i = 0, len = length(); i < len; i++)
+		{
+			set(i, value);
+		}
+	}
+
+	long[] toArray()
+	{
+		long[] a = new long[Math.toIntExact(length())];
+		get(0, a, 0, a.length);
+		return a;
+	}
+
+	void get(long index, long[] dst, int off, int len)
+	{
+		for (int i = 0; i < len; i++)
+		{
+			dst[off + i] = get(index + i);
+		}
+	}
+
+	void set(long index, long[] src, int off, int len)
+	{
+		for (int i = 0; i < len; i++)
+		{
+			set(index + i, src[off + i]);
+		}
+	}
+
+	// sorts [from, to) in parallel, which for a mapped array means the range has to fit on the heap
+	void sort(long from, long to)
+	{
+		long[] a = new long[Math.toIntExact(to - from)];
+		get(from, a, 0, a.length);
+		Arrays.parallelSort(a);
+		set(from, a, 0, a.length);
+	}
+
+	static final class Heap extends LongArray
+	{
+		private final long[] values;
+
+		Heap(long[] values)
+		{
+			this.values = values;
+		}
+
+		@Override
+		long get(long index)
+		{
+			return values[(int) index];
+		}
+
+		@Override
+		void set(long index, long value)
+		{
+			values[(int) index] = value;
+		}
+
+		@Override
+		long length()
+		{
+			return values.length;
+		}
+
+		@Override
+		LongArray grow(long length)
+		{
+			return length <= values.length ? this : new Heap(Arrays.copyOf(values, Math.toIntExact(length)));
+		}
+
+		@Override
+		void fill(long value)
+		{
+			Arrays.fill(values, value);
+		}
+
+		@Override
+		long[] toArray()
+		{
+			return values.clone();
+		}
+
+		@Override
+		void get(long index, long[] dst, int off, int len)
+		{
+			System.arraycopy(values, (int) index, dst, off, len);
+		}
+
+		@Override
+		void set(long index, long[] src, int off, int len)
+		{
+			System.arraycopy(src, off, values, (int) index, len);
+		}
+
+		@Override
+		void sort(long from, long to)
+		{
+			Arrays.parallelSort(values, (int) from, (int) to);
+		}
+	}
+
+	static final class Mapped extends LongArray
+	{
+		private static final int SHIFT = MappedFile.WINDOW_SHIFT - 3;
+		private static final int MASK = (1 << SHIFT) - 1;
+
+		final MappedFile file;
+		private LongBuffer[] windows = new LongBuffer[0];
+		private long length;
+
+		Mapped(MappedFile file, long length)
+		{
+			this.file = file;
+			this.length = length;
+		}
+
+		private LongBuffer window(long index)
+		{
+			int w = (int) (index >>> SHIFT);
+			if (w >= windows.length)
+			{
+				windows = Arrays.copyOf(windows, w + 1);
+			}
+			LongBuffer b = windows[w];
+			if (b == null)
+			{
+				b = windows[w] = file.window(w).asLongBuffer();
+			}
+			return b;
+		}
+
+		@Override
+		long get(long index)
+		{
+			return window(index).get((int) index & MASK);
+		}
+
+		@Override
+		void set(long index, long value)
+		{
+			window(index).put((int) index & MASK, value);
+		}
+
+		@Override
+		void get(long index, long[] dst, int off, int len)
+		{
+			for (; len > 0; )
+			{
+				LongBuffer b = window(index).duplicate();
+				int i = (int) index & MASK;
+				int n = Math.min(len, MASK + 1 - i);
+				b.position(i);
+				b.get(dst, off, n);
+				index += n;
+				off += n;
+				len -= n;
+			}
+		}
+
+		@Override
+		void set(long index, long[] src, int off, int len)
+		{
+			for (; len > 0; )
+			{
+				LongBuffer b = window(index).duplicate();
+				int i = (int) index & MASK;
+				int n = Math.min(len, MASK + 1 - i);
+				b.position(i);
+				b.put(src, off, n);
+				index += n;
+				off += n;
+				len -= n;
+			}
+		}
+
+		@Override
+		long length()
+		{
+			return length;
+		}
+
+		@Override
+		LongArray grow(long length)
+		{
+			// the file grows as windows past its end are mapped
+			this.length = Math.max(this.length, length);
+			return this;
+		}
+	}
+}
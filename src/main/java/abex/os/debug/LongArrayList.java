@@ -0,0 +1,68 @@
+package abex.os.debug;
+
+import java.util.Arrays;
+
+public class LongArrayList
+{
+	private long[] values;
+	private int size;
+
+	public LongArrayList()
+	{
+		this(16);
+	}
+
+	public LongArrayList(int capacity)
+	{
+		values = new long[Math.max(capacity, 1)];
+	}
+
+	public void add(long value)
+	{
+		if (size == values.length)
+		{
+			values = Arrays.copyOf(values, size * 2);
+		}
+		values[size++] = value;
+	}
+
+	public long get(int index)
+	{
+		if (index >= size)
+		{
+			throw new IndexOutOfBoundsException(index + " >= " + size);
+		}
+		return values[index];
+	}
+
+	public long pop()
+	{
+		return values[--size];
+	}
+
+	public int size()
+	{
+		return size;
+	}
+
+	// including the spare capacity
+	long heapBytes()
+	{
+		return (long) values.length * 8;
+	}
+
+	public boolean isEmpty()
+	{
+		return size == 0;
+	}
+
+	public void clear()
+	{
+		size = 0;
+	}
+
+	public long[] toArray()
+	{
+		return Arrays.copyOf(values, size);
+	}
+}
@@ -0,0 +1,64 @@
+package abex.os.debug;
+
+public class LongHashSet extends LongHashTable
+{
+	public LongHashSet()
+	{
+		this(0);
+	}
+
+	public LongHashSet(int expectedSize)
+	{
+		super(expectedSize);
+	}
+
+	/**
+	 * @return true if the set did not already contain {@code key}
+	 */
+	public boolean add(long key)
+	{
+		int size = this.size;
+		insert(key);
+		return size != this.size;
+	}
+
+	public boolean contains(long key)
+	{
+		return containsKey(key);
+	}
+
+	public boolean remove(long key)
+	{
+		int slot = slot(key);
+		if (slot < 0)
+		{
+			return false;
+		}
+		removeSlot(slot);
+		return true;
+	}
+
+	@Override
+	void resize(int capacity)
+	{
+		long[] oldKeys = keys;
+		allocate(capacity);
+		for (long key : oldKeys)
+		{
+			if (key != 0)
+			{
+				keys[emptySlot(key)] = key;
+			}
+		}
+	}
+
+	@Override
+	void move(int from, int to)
+	{
+	}
+
+	@Override
+	void clear(int slot)
+	{
+	}
+}
@@ -0,0 +1,148 @@
+package abex.os.debug;
+
+// open addressed, linear probed table of long keys. 0 is the null id in hprof, so it marks empty slots
+// and can't be used as a key. Subclasses keep their values in arrays parallel to keys
+abstract class LongHashTable
+{
+	private static final int MIN_CAPACITY = 16;
+
+	long[] keys;
+	int size;
+	private int resizeAt;
+
+	LongHashTable(int expectedSize)
+	{
+		allocate(capacityFor(expectedSize));
+	}
+
+	static int capacityFor(int expectedSize)
+	{
+		long cap = Long.highestOneBit(Math.max(MIN_CAPACITY, expectedSize * 3L / 2) * 2 - 1);
+		if (cap > 1 << 30)
+		{
+			throw new IllegalArgumentException("too many entries: " + expectedSize);
+		}
+		return (int) cap;
+	}
+
+	private static int hash(long key)
+	{
+		long h = key * 0x9E37_79B9_7F4A_7C15L;
+		return (int) (h ^ (h >>> 32));
+	}
+
+	void allocate(int capacity)
+	{
+		keys = new long[capacity];
+		resizeAt = capacity / 3 * 2;
+	}
+
+	/**
+	 * @return the slot containing {@code key}, or {@code -(slot + 1)} of the empty slot it would be put in
+	 */
+	final int slot(long key)
+	{
+		if (key == 0)
+		{
+			throw new IllegalArgumentException("0 cannot be used as a key");
+		}
+
+		long[] keys = this.keys;
+		int mask = keys.length - 1;
+		for (int i = hash(key) & mask; ; i = (i + 1) & mask)
+		{
+			long k = keys[i];
+			if (k == key)
+			{
+				return i;
+			}
+			if (k == 0)
+			{
+				return -i - 1;
+			}
+		}
+	}
+
+	/**
+	 * @return the slot containing {@code key}, adding it to the table if it is not already present
+	 */
+	final int insert(long key)
+	{
+		int slot = slot(key);
+		if (slot >= 0)
+		{
+			return slot;
+		}
+
+		if (size >= resizeAt)
+		{
+			resize(keys.length << 1);
+			slot = slot(key);
+		}
+
+		slot = -slot - 1;
+		keys[slot] = key;
+		size++;
+		return slot;
+	}
+
+	// used when rehashing into a fresh table, where the key is known not to exist yet
+	final int emptySlot(long key)
+	{
+		long[] keys = this.keys;
+		int mask = keys.length - 1;
+		int i = hash(key) & mask;
+		for (; keys[i] != 0; i = (i + 1) & mask)
+		{
+		}
+		return i;
+	}
+
+	final void removeSlot(int slot)
+	{
+		long[] keys = this.keys;
+		int mask = keys.length - 1;
+		size--;
+
+		// shift back any following entries that would no longer be reachable
+		for (int gap = slot, i = (slot + 1) & mask; ; i = (i + 1) & mask)
+		{
+			long k = keys[i];
+			if (k == 0)
+			{
+				keys[gap] = 0;
+				clear(gap);
+				return;
+			}
+
+			int home = hash(k) & mask;
+			if (((i - home) & mask) >= ((i - gap) & mask))
+			{
+				keys[gap] = k;
+				move(i, gap);
+				gap = i;
+			}
+		}
+	}
+
+	abstract void resize(int capacity);
+
+	abstract void move(int from, int to);
+
+	abstract void clear(int slot);
+
+	public boolean containsKey(long key)
+	{
+		return slot(key) >= 0;
+	}
+
+	public int size()
+	{
+		return size;
+	}
+
+	public boolean isEmpty()
+	{
+		return size == 0;
+	}
+}
@@ -0,0 +1,92 @@
+package abex.os.debug;
+
+public class LongIntHashMap extends LongHashTable
+{
+	private int[] values;
+
+	public interface EntryConsumer
+	{
+		void accept(long key, int value);
+	}
+
+	public LongIntHashMap()
+	{
+		this(0);
+	}
+
+	public LongIntHashMap(int expectedSize)
+	{
+		super(expectedSize);
+		values = new int[keys.length];
+	}
+
+	public int get(long key, int missing)
+	{
+		int slot = slot(key);
+		return slot >= 0 ? values[slot] : missing;
+	}
+
+	public void put(long key, int value)
+	{
+		// insert may grow the table, so it has to happen before values is read
+		int slot = insert(key);
+		values[slot] = value;
+	}
+
+	/**
+	 * @return the removed value, or {@code missing} if there was no mapping
+	 */
+	public int remove(long key, int missing)
+	{
+		int slot = slot(key);
+		if (slot < 0)
+		{
+			return missing;
+		}
+		int value = values[slot];
+		removeSlot(slot);
+		return value;
+	}
+
+	public void forEach(EntryConsumer consumer)
+	{
+		long[] keys = this.keys;
+		int[] values = this.values;
+		for (int i = 0; i < keys.length; i++)
+		{
+			if (keys[i] != 0)
+			{
+				consumer.accept(keys[i], values[i]);
+			}
+		}
+	}
+
+	@Override
+	void resize(int capacity)
+	{
+		long[] oldKeys = keys;
+		int[] oldValues = values;
+		allocate(capacity);
+		values = new int[capacity];
+		for (int i = 0; i < oldKeys.length; i++)
+		{
+			if (oldKeys[i] != 0)
+			{
+				int slot = emptySlot(oldKeys[i]);
+				keys[slot] = oldKeys[i];
+				values[slot] = oldValues[i];
+			}
+		}
+	}
+
+	@Override
+	void move(int from, int to)
+	{
+		values[to] = values[from];
+	}
+
+	@Override
+	void clear(int slot)
+	{
+	}
+}
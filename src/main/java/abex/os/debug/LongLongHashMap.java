@@ -0,0 +1,80 @@
+package abex.os.debug;
+
+public class LongLongHashMap extends LongHashTable
+{
+	private long[] values;
+
+	public LongLongHashMap()
+	{
+		this(0);
+	}
+
+	public LongLongHashMap(int expectedSize)
+	{
+		super(expectedSize);
+		values = new long[keys.length];
+	}
+
+	public long get(long key, long missing)
+	{
+		int slot = slot(key);
+		return slot >= 0 ? values[slot] : missing;
+	}
+
+	public void put(long key, long value)
+	{
+		// insert may grow the table, so it has to happen before values is read
+		int slot = insert(key);
+		values[slot] = value;
+	}
+
+	/**
+	 * @return the removed value, or {@code missing} if there was no mapping
+	 */
+	public long remove(long key, long missing)
+	{
+		int slot = slot(key);
+		if (slot < 0)
+		{
+			return missing;
+		}
+		long value = values[slot];
+		removeSlot(slot);
+		return value;
+	}
+
+	// of the keys and values, which is what the map takes
+	long heapBytes()
+	{
+		return (long) keys.length * 16;
+	}
+
+	@Override
+	void resize(int capacity)
+	{
+		long[] oldKeys = keys;
+		long[] oldValues = values;
+		allocate(capacity);
+		values = new long[capacity];
+		for (int i = 0; i < oldKeys.length; i++)
+		{
+			if (oldKeys[i] != 0)
+			{
+				int slot = emptySlot(oldKeys[i]);
+				keys[slot] = oldKeys[i];
+				values[slot] = oldValues[i];
+			}
+		}
+	}
+
+	@Override
+	void move(int from, int to)
+	{
+		values[to] = values[from];
+	}
+
+	@Override
+	void clear(int slot)
+	{
+	}
+}
@@ -0,0 +1,77 @@
+package abex.os.debug;
+
+public class LongObjectHashMap<V> extends LongHashTable
+{
+	private Object[] values;
+
+	public LongObjectHashMap()
+	{
+		this(0);
+	}
+
+	public LongObjectHashMap(int expectedSize)
+	{
+		super(expectedSize);
+		values = new Object[keys.length];
+	}
+
+	@SuppressWarnings("unchecked")
+	public V get(long key)
+	{
+		int slot = slot(key);
+		return slot >= 0 ? (V) values[slot] : null;
+	}
+
+	public void put(long key, V value)
+	{
+		// insert may grow the table, so it has to happen before values is read
+		int slot = insert(key);
+		values[slot] = value;
+	}
+
+	/**
+	 * @return the removed value, or null if there was no mapping
+	 */
+	@SuppressWarnings("unchecked")
+	public V remove(long key)
+	{
+		int slot = slot(key);
+		if (slot < 0)
+		{
+			return null;
+		}
+		V value = (V) values[slot];
+		removeSlot(slot);
+		return value;
+	}
+
+	@Override
+	void resize(int capacity)
+	{
+		long[] oldKeys = keys;
+		Object[] oldValues = values;
+		allocate(capacity);
+		values = new Object[capacity];
+		for (int i = 0; i < oldKeys.length; i++)
+		{
+			if (oldKeys[i] != 0)
+			{
+				int slot = emptySlot(oldKeys[i]);
+				keys[slot] = oldKeys[i];
+				values[slot] = oldValues[i];
+			}
+		}
+	}
+
+	@Override
+	void move(int from, int to)
+	{
+		values[to] = values[from];
+	}
+
+	@Override
+	void clear(int slot)
+	{
+		values[slot] = null;
+	}
+}
@@ -0,0 +1,64 @@
+package abex.os.debug;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.util.Arrays;
+
+// temp file that is mapped in fixed size windows as they are touched. Untouched parts of the file are sparse on
+// most filesystems, so it only takes as much disk as has been written, and the page cache decides what stays in ram
+class MappedFile implements Closeable
+{
+	static final int WINDOW_SHIFT = 26;
+	static final int WINDOW_SIZE = 1 << WINDOW_SHIFT;
+
+	private final File file;
+	private final RandomAccessFile raf;
+	private final FileChannel channel;
+	private ByteBuffer[] windows = new ByteBuffer[0];
+
+	MappedFile(File dir) throws IOException
+	{
+		file = File.createTempFile("graph", ".bin", dir);
+		raf = new RandomAccessFile(file, "rw");
+		channel = raf.getChannel();
+	}
+
+	ByteBuffer window(int index)
+	{
+		if (index >= windows.length)
+		{
+			windows = Arrays.copyOf(windows, Math.max(index + 1, windows.length * 2));
+		}
+
+		ByteBuffer w = windows[index];
+		if (w == null)
+		{
+			try
+			{
+				w = windows[index] = channel.map(FileChannel.MapMode.READ_WRITE, (long) index << WINDOW_SHIFT, WINDOW_SIZE)
+					.order(ByteOrder.nativeOrder());
+			}
+			catch (IOException e)
+			{
+				throw new UncheckedIOException(e);
+			}
+		}
+		return w;
+	}
+
+	@Override
+	public void close() throws IOException
+	{
+		// the mappings are released when the buffers are collected, which windows won't delete the file before. If
+		// this fails the file stays in the storage's directory, which is swept once nothing has it open
+		windows = null;
+		raf.close();
+		file.delete();
+	}
+}
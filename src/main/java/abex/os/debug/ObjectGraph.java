@@ -0,0 +1,192 @@
+package abex.os.debug;
+
+// object graph in compressed sparse row form. The successors of node n are
+// succs[succStart[n]] until succs[succStart[n + 1]], and predecessors are laid out the same way.
+// The arrays come from a GraphStorage, so they may be memory mapped rather than on the heap
+public class ObjectGraph
+{
+	final GraphStorage storage;
+	final int nodeCount;
+	// object id, shallow size and index of the class of each node, or 0/-1 for nodes without one
+	final LongArray ids;
+	final IntArray sizes;
+	final IntArray classes;
+	final IntArray succStart;
+	final IntArray succs;
+	private IntArray predStart;
+	private IntArray preds;
+
+	ObjectGraph(GraphStorage storage, int nodeCount, LongArray ids, IntArray sizes, IntArray classes, IntArray succStart,
+		IntArray succs)
+	{
+		this.storage = storage;
+		this.nodeCount = nodeCount;
+		this.ids = ids;
+		this.sizes = sizes;
+		this.classes = classes;
+		this.succStart = succStart;
+		this.succs = succs;
+	}
+
+	public static ObjectGraph fromAdjacency(int[][] adjacency)
+	{
+		int n = adjacency.length;
+		int[] start = new int[n + 1];
+		for (int i = 0; i < n; i++)
+		{
+			start[i + 1] = start[i] + adjacency[i].length;
+		}
+		int[] succs = new int[start[n]];
+		for (int i = 0; i < n; i++)
+		{
+			System.arraycopy(adjacency[i], 0, succs, start[i], adjacency[i].length);
+		}
+		return new ObjectGraph(GraphStorage.heap(), n, null, null, null, new IntArray.Heap(start), new IntArray.Heap(succs));
+	}
+
+	IntArray predStart()
+	{
+		buildPreds();
+		return predStart;
+	}
+
+	IntArray preds()
+	{
+		buildPreds();
+		return preds;
+	}
+
+	private void buildPreds()
+	{
+		if (predStart != null)
+		{
+			return;
+		}
+
+		// count into start[w], then sum so it points at the end of w's predecessors. Filling from the back leaves it
+		// at the beginning, with each node's predecessors in ascending order
+		int edges = succStart.get(nodeCount);
+		IntArray start = storage.ints(nodeCount + 1);
+		for (int e = 0; e < edges; e++)
+		{
+			int w = succs.get(e);
+			start.set(w, start.get(w) + 1);
+		}
+		for (int i = 1; i < nodeCount; i++)
+		{
+			start.set(i, start.get(i) + start.get(i - 1));
+		}
+		start.set(nodeCount, edges);
+
+		IntArray preds = storage.ints(edges);
+		for (int v = nodeCount - 1; v >= 0; v--)
+		{
+			for (int e = succStart.get(v + 1) - 1, begin = succStart.get(v); e >= begin; e--)
+			{
+				int w = succs.get(e);
+				int slot = start.get(w) - 1;
+				start.set(w, slot);
+				preds.set(slot, v);
+			}
+		}
+
+		this.predStart = start;
+		this.preds = preds;
+	}
+
+	/**
+	 * Collects nodes as a dump is parsed. Edges are kept as object ids until every node is known
+	 */
+	static class Builder
+	{
+		private final GraphStorage storage;
+		private int nodeCount;
+		private LongArray ids;
+		private IntArray sizes;
+		private IntArray classes;
+		private IntArray edgeStart;
+		private LongArray edgeIds;
+		private long edgeCount;
+
+		Builder(GraphStorage storage)
+		{
+			this.storage = storage;
+			ids = storage.longs(1024);
+			sizes = storage.ints(1024);
+			classes = storage.ints(1024);
+			edgeStart = storage.ints(1025);
+			edgeIds = storage.longs(1024);
+		}
+
+		int nodeCount()
+		{
+			return nodeCount;
+		}
+
+		/**
+		 * @param id object id other nodes reference this one by, or 0 if it can't be referenced
+		 */
+		int addNode(long id, int size, int classIndex)
+		{
+			if (nodeCount == sizes.length())
+			{
+				long cap = sizes.length() * 2;
+				ids = ids.grow(cap);
+				sizes = sizes.grow(cap);
+				classes = classes.grow(cap);
+				edgeStart = edgeStart.grow(cap + 1);
+			}
+			ids.set(nodeCount, id);
+			sizes.set(nodeCount, size);
+			classes.set(nodeCount, classIndex);
+			edgeStart.set(nodeCount, (int) edgeCount);
+			edgeStart.set(nodeCount + 1, (int) edgeCount);
+			return nodeCount++;
+		}
+
+		// adds an edge from the last added node
+		void addEdge(long objectId)
+		{
+			if (edgeCount == edgeIds.length())
+			{
+				if (edgeCount >= Integer.MAX_VALUE)
+				{
+					throw new IllegalStateException("too many references");
+				}
+				edgeIds = edgeIds.grow(Math.min(edgeCount * 2, Integer.MAX_VALUE));
+			}
+			edgeIds.set(edgeCount++, objectId);
+			edgeStart.set(nodeCount, (int) edgeCount);
+		}
+
+		// resolves edges to nodes, dropping any to ids that weren't added
+		ObjectGraph build()
+		{
+			int n = nodeCount;
+			ObjectIdIndex idToNode = new ObjectIdIndex(storage, ids, n);
+			IntArray start = storage.ints(n + 1);
+			IntArray succs = storage.ints(edgeCount);
+			int k = 0;
+			for (int v = 0; v < n; v++)
+			{
+				start.set(v, k);
+				for (int e = edgeStart.get(v), end = edgeStart.get(v + 1); e < end; e++)
+				{
+					int node = idToNode.get(edgeIds.get(e));
+					if (node >= 0)
+					{
+						succs.set(k++, node);
+					}
+				}
+			}
+			start.set(n, k);
+
+			idToNode.free();
+			storage.free(edgeIds);
+			storage.free(edgeStart);
+			edgeIds = null;
+			edgeStart = null;
+			return new ObjectGraph(storage, n, ids, sizes, classes, start, succs);
+		}
+	}
+}
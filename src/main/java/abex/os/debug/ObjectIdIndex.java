@@ -0,0 +1,223 @@
+package abex.os.debug;
+
+import java.util.Arrays;
+
+// object id to node index, built once every node is known. The ids are sorted in parallel, and since they are
+// addresses they're spread evenly enough that a table of where each range of high bits starts narrows a lookup
+// down to a handful of keys, which are then binary searched. 0 is the null id and is never in the index
+class ObjectIdIndex
+{
+	// runs a mapped array is sorted in before they're merged, which have to fit on the heap
+	private static final int RUN_LENGTH = 1 << 23;
+	private static final int COPY_LENGTH = 1 << 16;
+	// average number of keys per bucket
+	private static final int BUCKET_KEYS = 4;
+
+	private final GraphStorage storage;
+	private final LongArray keys;
+	private final IntArray nodes;
+	private final int size;
+	private long min;
+	private long max;
+	private int shift;
+	// keys with bucket b are keys[buckets[b]] until keys[buckets[b + 1]]
+	private IntArray buckets;
+
+	// heap building an index of that many nodes takes on top of the storage: the copy buffer, and a sorted run with
+	// parallelSort's scratch space
+	static long heapBytes(int nodeCount)
+	{
+		return (Math.min(nodeCount, COPY_LENGTH) + 2L * Math.min(nodeCount, RUN_LENGTH)) * 8;
+	}
+
+	/**
+	 * @param ids object id of each node, or 0 if the node can't be referenced. If an id is used by more than one
+	 * node it maps to the last of them
+	 */
+	ObjectIdIndex(GraphStorage storage, LongArray ids, int nodeCount)
+	{
+		this.storage = storage;
+		keys = storage.longs(nodeCount);
+		long[] buf = new long[Math.min(nodeCount, COPY_LENGTH)];
+		for (int i = 0; i < nodeCount; i += buf.length)
+		{
+			int len = Math.min(buf.length, nodeCount - i);
+			ids.get(i, buf, 0, len);
+			keys.set(i, buf, 0, len);
+		}
+		sort(nodeCount);
+
+		// drop the 0s and any duplicates
+		int n = 0;
+		for (int i = 0; i < nodeCount; i++)
+		{
+			long k = keys.get(i);
+			if (k != 0 && (n == 0 || k != keys.get(n - 1)))
+			{
+				keys.set(n++, k);
+			}
+		}
+		size = n;
+
+		buildBuckets();
+
+		nodes = storage.ints(size);
+		for (int v = 0; v < nodeCount; v++)
+		{
+			long id = ids.get(v);
+			if (id != 0)
+			{
+				nodes.set(find(id), v);
+			}
+		}
+	}
+
+	private void sort(int count)
+	{
+		if (count <= RUN_LENGTH || !storage.isMapped())
+		{
+			keys.sort(0, count);
+			return;
+		}
+
+		// a mapped array is too big to sort on the heap, so sort it in runs and merge them
+		LongArray runs = storage.longs(count);
+		long[] buf = new long[RUN_LENGTH];
+		int numRuns = (count + RUN_LENGTH - 1) / RUN_LENGTH;
+		for (int r = 0; r < numRuns; r++)
+		{
+			int from = r * RUN_LENGTH;
+			int len = Math.min(RUN_LENGTH, count - from);
+			keys.get(from, buf, 0, len);
+			Arrays.parallelSort(buf, 0, len);
+			runs.set(from, buf, 0, len);
+		}
+
+		// heap of runs ordered by their next key
+		int[] pos = new int[numRuns];
+		int[] heap = new int[numRuns];
+		for (int r = 0; r < numRuns; r++)
+		{
+			pos[r] = r * RUN_LENGTH;
+			heap[r] = r;
+		}
+		int heapSize = numRuns;
+		for (int i = heapSize / 2 - 1; i >= 0; i--)
+		{
+			siftDown(runs, pos, heap, heapSize, i);
+		}
+		for (int out = 0; heapSize > 0; out++)
+		{
+			int r = heap[0];
+			keys.set(out, runs.get(pos[r]++));
+			if (pos[r] == Math.min((r + 1) * RUN_LENGTH, count))
+			{
+				heap[0] = heap[--heapSize];
+			}
+			siftDown(runs, pos, heap, heapSize, 0);
+		}
+		storage.free(runs);
+	}
+
+	private static void siftDown(LongArray runs, int[] pos, int[] heap, int heapSize, int i)
+	{
+		for (; ; )
+		{
+			int least = i;
+			int l = i * 2 + 1;
+			if (l < heapSize && runs.get(pos[heap[l]]) < runs.get(pos[heap[least]]))
+			{
+				least = l;
+			}
+			if (l + 1 < heapSize && runs.get(pos[heap[l + 1]]) < runs.get(pos[heap[least]]))
+			{
+				least = l + 1;
+			}
+			if (least == i)
+			{
+				return;
+			}
+			int t = heap[i];
+			heap[i] = heap[least];
+			heap[least] = t;
+			i = least;
+		}
+	}
+
+	private void buildBuckets()
+	{
+		if (size == 0)
+		{
+			buckets = storage.ints(2);
+			return;
+		}
+
+		min = keys.get(0);
+		max = keys.get(size - 1);
+		int bits = 64 - Long.numberOfLeadingZeros(Math.max(1, size / BUCKET_KEYS));
+		int rangeBits = 64 - Long.numberOfLeadingZeros(max - min);
+		shift = Math.max(0, rangeBits - bits);
+
+		int numBuckets = (int) ((max - min) >>> shift) + 1;
+		buckets = storage.ints(numBuckets + 1);
+		int b = 0;
+		for (int i = 0; i < size; i++)
+		{
+			int kb = (int) ((keys.get(i) - min) >>> shift);
+			for (; b <= kb; b++)
+			{
+				buckets.set(b, i);
+			}
+		}
+		for (; b <= numBuckets; b++)
+		{
+			buckets.set(b, size);
+		}
+	}
+
+	private int find(long id)
+	{
+		if (id < min || id > max || size == 0)
+		{
+			return -1;
+		}
+
+		int b = (int) ((id - min) >>> shift);
+		int lo = buckets.get(b);
+		int hi = buckets.get(b + 1) - 1;
+		for (; lo <= hi; )
+		{
+			int mid = (lo + hi) >>> 1;
+			long k = keys.get(mid);
+			if (k < id)
+			{
+				lo = mid + 1;
+			}
+			else if (k > id)
+			{
+				hi = mid - 1;
+			}
+			else
+			{
+				return mid;
+			}
+		}
+		return -1;
+	}
+
+	/**
+	 * @return the node with {@code id}, or -1 if there isn't one
+	 */
+	int get(long id)
+	{
+		int i = find(id);
+		return i < 0 ? -1 : nodes.get(i);
+	}
+
+	void free()
+	{
+		storage.free(keys);
+		storage.free(nodes);
+		storage.free(buckets);
+	}
+}
@@ -0,0 +1,18 @@
+package abex.os.debug;
+
+import java.util.List;
+
+// how big the jvm that wrote a dump made its objects, which the dump itself doesn't record
+interface ObjectLayout
+{
+	/**
+	 * @param fields the hprof basic type of each instance field of every class of the instance, from its topmost
+	 * superclass down to its own class
+	 */
+	int instanceSize(List<byte[]> fields);
+
+	/**
+	 * @param type hprof basic type of the elements
+	 */
+	long arraySize(int type, int length);
+}
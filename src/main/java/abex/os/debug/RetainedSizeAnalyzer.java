@@ -1,70 +1,435 @@
 package abex.os.debug;
 
+import java.awt.BorderLayout;
 import java.awt.Dimension;
+import java.awt.FlowLayout;
+import java.awt.GridLayout;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
 import java.io.File;
+import java.io.FileDescriptor;
+import java.io.FileOutputStream;
 import java.io.IOException;
-import java.util.HashMap;
-import java.util.LinkedHashMap;
-import java.util.Map;
-import java.util.stream.Collectors;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.function.Function;
+import javax.swing.BorderFactory;
+import javax.swing.DefaultListModel;
+import javax.swing.JButton;
+import javax.swing.JComponent;
+import javax.swing.JFileChooser;
 import javax.swing.JFrame;
+import javax.swing.JLabel;
+import javax.swing.JList;
+import javax.swing.JOptionPane;
+import javax.swing.JPanel;
 import javax.swing.JScrollPane;
+import javax.swing.JSplitPane;
+import javax.swing.JTabbedPane;
 import javax.swing.JTable;
+import javax.swing.JTree;
+import javax.swing.RowSorter;
+import javax.swing.SortOrder;
+import javax.swing.SwingConstants;
+import javax.swing.SwingUtilities;
+import javax.swing.event.ChangeEvent;
+import javax.swing.event.ChangeListener;
+import javax.swing.event.TreeExpansionEvent;
+import javax.swing.event.TreeWillExpandListener;
+import javax.swing.table.DefaultTableCellRenderer;
 import javax.swing.table.DefaultTableModel;
+import javax.swing.tree.DefaultMutableTreeNode;
+import javax.swing.tree.DefaultTreeModel;
+import lombok.Value;
+import lombok.extern.slf4j.Slf4j;
 
+@Slf4j
 public class RetainedSizeAnalyzer
 {
+	// --stream writes this, then messages starting with one of the MSG_ bytes to stdout
+	static final int STREAM_MAGIC = 0x52534131;
+	// utf stage, float fraction
+	private static final int MSG_PROGRESS = 1;
+	// int count, then utf name, long retained size, int number of objects of each plugin
+	private static final int MSG_RESULT = 2;
+	// utf message
+	private static final int MSG_ERROR = 3;
+	// a ClassHistogram, sent before the result
+	private static final int MSG_HISTOGRAM = 4;
+	// a HeapDiff, the result of --compare
+	private static final int MSG_DIFF = 5;
+	// long softly retained, long weakly retained, sent before the result
+	private static final int MSG_REFERENCES = 6;
+
+	// children of a dominator tree node listed before the rest are summed up
+	private static final int DOMINATOR_CHILDREN = 100;
+
+	private static final String PLUGIN_CLASS = "net/runelite/client/plugins/Plugin";
+
+	@Value
+	static class PluginSize
+	{
+		String name;
+		long retainedSize;
+		int numObjects;
+	}
+
+	@Value
+	static class Summary
+	{
+		List<PluginSize> plugins;
+		ClassHistogram histogram;
+		// see HProfStripper.RetainedSizeResult
+		long softlyRetained;
+		long weaklyRetained;
+	}
+
+	// usage: [--delete] [--stream] [--weak-references] [--layout <layout>] <hprof>, or [--stream] [--weak-references]
+	// --compare <earlier hprof> <later hprof>. With --delete the dump is a temporary one and is removed once it has
+	// been read. With --stream progress and results are written to stdout for the client to show, instead of in a
+	// window. With --weak-references what references refer to isn't counted as retained by them. --layout is the
+	// HotSpotLayout of the jvm that wrote the dump, when that is known, instead of inferring it
 	public static void main(String... args) throws Exception
 	{
-		File hprof = args.length > 0 ? new File(args[0]) : null;
+		boolean delete = false;
+		boolean stream = false;
+		boolean compare = false;
+		boolean weakReferences = false;
+		ObjectLayout layout = null;
+		List<File> hprofs = new ArrayList<>();
+		for (int i = 0; i < args.length; i++)
+		{
+			String arg = args[i];
+			if (arg.equals("--delete"))
+			{
+				delete = true;
+			}
+			else if (arg.equals("--stream"))
+			{
+				stream = true;
+			}
+			else if (arg.equals("--compare"))
+			{
+				compare = true;
+			}
+			else if (arg.equals("--weak-references"))
+			{
+				weakReferences = true;
+			}
+			else if (arg.equals("--layout") && i + 1 < args.length)
+			{
+				layout = HotSpotLayout.parse(args[++i]);
+			}
+			else
+			{
+				hprofs.add(new File(arg));
+			}
+		}
+
 		try
 		{
-			if (hprof == null)
+			if (hprofs.size() != (compare ? 2 : 1))
+			{
+				throw new IllegalArgumentException("expected " + (compare ? 2 : 1) + " heap dump paths");
+			}
+
+			OutputStream out = null;
+			if (stream)
+			{
+				// nothing else may write to stdout, so anything logged goes to stderr instead
+				out = new FileOutputStream(FileDescriptor.out);
+				System.setOut(System.err);
+			}
+
+			if (compare)
+			{
+				if (stream)
+				{
+					streamComparison(hprofs.get(0), hprofs.get(1), !delete, weakReferences, out);
+				}
+				else
+				{
+					showComparison(compare(hprofs.get(0), hprofs.get(1), !delete, weakReferences, f -> null, null),
+						JFrame.EXIT_ON_CLOSE);
+				}
+			}
+			else if (stream)
 			{
-				throw new IllegalArgumentException("missing heap dump path");
+				stream(hprofs.get(0), !delete, weakReferences, layout, out);
+			}
+			else
+			{
+				// a dump that's kept can be read again for the dominator tree once it's looked at, so the tables can
+				// come from the cache. One that's about to be deleted needs the graph now
+				File hprof = hprofs.get(0);
+				boolean weak = weakReferences;
+				ObjectLayout objectLayout = layout;
+				var rsr = analyze(hprof, !delete, weak, delete, objectLayout, null, null);
+				showRetainedSizes(summarize(rsr), rsr,
+					delete ? null : () -> analyze(hprof, false, weak, true, objectLayout, null, null));
 			}
-			showRetainedSizes(hprof);
 		}
 		finally
 		{
-			if (hprof != null)
+			if (delete)
+			{
+				for (File hprof : hprofs)
+				{
+					hprof.delete();
+				}
+			}
+		}
+	}
+
+	private interface StreamedJob
+	{
+		// writes the result, after any number of progress messages
+		void run(DataOutputStream out, HProfStripper.ProgressListener progress) throws IOException;
+	}
+
+	static void stream(File hprof, boolean cache, boolean weakReferences, ObjectLayout layout, OutputStream os)
+		throws IOException
+	{
+		stream(os, (out, progress) ->
+		{
+			Summary summary = summarize(analyze(hprof, cache, weakReferences, false, layout, null, progress));
+
+			out.writeByte(MSG_HISTOGRAM);
+			summary.getHistogram().write(out);
+
+			out.writeByte(MSG_REFERENCES);
+			out.writeLong(summary.getSoftlyRetained());
+			out.writeLong(summary.getWeaklyRetained());
+
+			out.writeByte(MSG_RESULT);
+			out.writeInt(summary.getPlugins().size());
+			for (var size : summary.getPlugins())
+			{
+				out.writeUTF(size.getName());
+				out.writeLong(size.getRetainedSize());
+				out.writeInt(size.getNumObjects());
+			}
+		});
+	}
+
+	static void streamComparison(File before, File after, boolean cache, boolean weakReferences, OutputStream os)
+		throws IOException
+	{
+		stream(os, (out, progress) ->
+		{
+			HeapDiff diff = compare(before, after, cache, weakReferences, f -> null, progress);
+			out.writeByte(MSG_DIFF);
+			diff.write(out);
+		});
+	}
+
+	private static void stream(OutputStream os, StreamedJob job) throws IOException
+	{
+		var out = new DataOutputStream(new BufferedOutputStream(os));
+		out.writeInt(STREAM_MAGIC);
+		out.flush();
+
+		try
+		{
+			job.run(out, (stage, fraction) ->
+			{
+				try
+				{
+					out.writeByte(MSG_PROGRESS);
+					out.writeUTF(stage);
+					out.writeFloat((float) fraction);
+					out.flush();
+				}
+				catch (IOException e)
+				{
+					// the client has gone away, so there is no point carrying on
+					System.exit(1);
+				}
+			});
+		}
+		catch (Throwable e)
+		{
+			// including running out of heap, which the client can't tell from being killed otherwise
+			out.writeByte(MSG_ERROR);
+			out.writeUTF(String.valueOf(e));
+			out.flush();
+			throw e;
+		}
+		out.flush();
+	}
+
+	/**
+	 * Reads what {@code --stream} writes until the results arrive
+	 *
+	 * @param type {@link Summary}, or {@link HeapDiff} with {@code --compare}
+	 * @throws IOException if the analyzer failed, or exited before it finished
+	 */
+	static <T> T readStream(DataInputStream in, HProfStripper.ProgressListener progress, Class<T> type)
+		throws IOException
+	{
+		int magic = in.readInt();
+		if (magic != STREAM_MAGIC)
+		{
+			throw new IOException("unexpected analyzer output " + Integer.toHexString(magic));
+		}
+
+		ClassHistogram histogram = null;
+		long softlyRetained = 0;
+		long weaklyRetained = 0;
+		for (; ; )
+		{
+			Object result;
+			int msg = in.readByte();
+			switch (msg)
+			{
+				case MSG_PROGRESS:
+				{
+					String stage = in.readUTF();
+					progress.progress(stage, in.readFloat());
+					continue;
+				}
+				case MSG_RESULT:
+				{
+					int count = in.readInt();
+					List<PluginSize> sizes = new ArrayList<>(count);
+					for (int i = 0; i < count; i++)
+					{
+						sizes.add(new PluginSize(in.readUTF(), in.readLong(), in.readInt()));
+					}
+					result = new Summary(sizes, histogram, softlyRetained, weaklyRetained);
+					break;
+				}
+				case MSG_HISTOGRAM:
+					histogram = ClassHistogram.read(in);
+					continue;
+				case MSG_REFERENCES:
+					softlyRetained = in.readLong();
+					weaklyRetained = in.readLong();
+					continue;
+				case MSG_DIFF:
+					result = HeapDiff.read(in);
+					break;
+				case MSG_ERROR:
+					throw new IOException(in.readUTF());
+				default:
+					throw new IOException("unknown analyzer message " + msg);
+			}
+
+			if (!type.isInstance(result))
 			{
-				hprof.delete();
+				throw new IOException("expected a " + type.getSimpleName() + " from the analyzer");
 			}
+			return type.cast(result);
 		}
 	}
 
-	private static void showRetainedSizes(File hprof) throws IOException
+	/**
+	 * @param storage where to keep the graph, or null to choose by the size of the dump
+	 */
+	static HProfStripper.RetainedSizeResult analyze(File hprof, boolean cache, GraphStorage storage,
+		HProfStripper.ProgressListener progress) throws IOException
 	{
-		HProfStripper.RetainedSizeResult rsr;
-		try (var stripper = new HProfStripper(hprof))
+		return analyze(hprof, cache, false, false, null, storage, progress);
+	}
+
+	/**
+	 * @param weakReferences see {@link HProfStripper#setWeakReferences}
+	 * @param queries whether the result needs a {@link HeapQuery}. The cache doesn't have the graph, so it is only
+	 * written to then
+	 * @param layout see {@link HProfStripper#setObjectLayout}
+	 */
+	static HProfStripper.RetainedSizeResult analyze(File hprof, boolean cache, boolean weakReferences, boolean queries,
+		ObjectLayout layout, GraphStorage storage, HProfStripper.ProgressListener progress) throws IOException
+	{
+		HProfStripper.RetainedSizeResult rsr = cache && !queries
+			? RetainedSizeCache.load(hprof, weakReferences, layout)
+			: null;
+		if (rsr == null)
 		{
-			rsr = stripper.runRetainedSizeComputer();
+			try (var stripper = new HProfStripper(hprof))
+			{
+				stripper.setGraphStorage(storage);
+				stripper.setProgressListener(progress);
+				stripper.setBuildQueries(queries);
+				stripper.setWeakReferences(weakReferences);
+				stripper.setObjectLayout(layout);
+				rsr = stripper.runRetainedSizeComputer();
+			}
+			if (cache)
+			{
+				try
+				{
+					RetainedSizeCache.save(hprof, rsr);
+				}
+				catch (IOException e)
+				{
+					// the result is still good, it just has to be computed again next time
+					log.warn("unable to write retained size cache for {}", hprof, e);
+					RetainedSizeCache.tmp(hprof).delete();
+				}
+			}
 		}
+		return rsr;
+	}
 
-		Map<String, Long> pluginRetainedSizes = new HashMap<>();
-		Map<String, Integer> pluginNumObjects = new HashMap<>();
+	/**
+	 * Analyzes two dumps one after the other, so only one of their graphs is ever in memory
+	 *
+	 * @param storage where to keep the graph of a dump, or null to choose by its size
+	 */
+	static HeapDiff compare(File before, File after, boolean cache, boolean weakReferences,
+		Function<File, GraphStorage> storage, HProfStripper.ProgressListener progress) throws IOException
+	{
+		var b = analyze(before, cache, weakReferences, false, null, storage.apply(before), prefixed(progress, "Earlier dump: "));
+		ClassHistogram classesBefore = b.histogram;
+		ClassHistogram rootsBefore = b.dominatorRoots;
+		b = null;
+
+		var a = analyze(after, cache, weakReferences, false, null, storage.apply(after), prefixed(progress, "Later dump: "));
+		return new HeapDiff(classesBefore, rootsBefore, a.histogram, a.dominatorRoots);
+	}
+
+	private static HProfStripper.ProgressListener prefixed(HProfStripper.ProgressListener progress, String prefix)
+	{
+		return progress == null ? null : (stage, fraction) -> progress.progress(prefix + stage, fraction);
+	}
+
+	static Summary summarize(HProfStripper.RetainedSizeResult rsr)
+	{
+		return new Summary(pluginSizes(rsr), rsr.histogram, rsr.softlyRetained, rsr.weaklyRetained);
+	}
+
+	// what each plugin instance retains, largest first
+	static List<PluginSize> pluginSizes(HProfStripper.RetainedSizeResult rsr)
+	{
+		List<PluginSize> sizes = new ArrayList<>();
 		for (int n = 0; n < rsr.num; ++n)
 		{
-			String parentClazz = rsr.parentClazz(n);
-			if (parentClazz != null && parentClazz.equals("net/runelite/client/plugins/Plugin"))
+			if (PLUGIN_CLASS.equals(rsr.parentClazz(n)))
 			{
-				String clazz = rsr.clazz(n);
-				pluginRetainedSizes.put(clazz, rsr.retainedSize[n]);
-				pluginNumObjects.put(clazz, rsr.numObjects[n]);
+				String name = rsr.clazz(n);
+				sizes.add(new PluginSize(name != null ? name : "?", rsr.retainedSize[n], rsr.numObjects[n]));
 			}
 		}
+		sizes.sort(Comparator.comparingLong(PluginSize::getRetainedSize).reversed());
+		return sizes;
+	}
 
-		Map<String, Long> sorted =
-			pluginRetainedSizes.entrySet().stream()
-				.sorted(Map.Entry.<String, Long>comparingByValue().reversed())
-				.collect(Collectors.toMap(
-					Map.Entry::getKey,
-					Map.Entry::getValue,
-					(a, b) -> a,
-					LinkedHashMap::new
-				));
+	private interface QueryLoader
+	{
+		HProfStripper.RetainedSizeResult load() throws IOException;
+	}
 
+	/**
+	 * @param queries analyzes the dump again with a {@link HeapQuery} if {@code rsr} doesn't have one, or null
+	 */
+	private static void showRetainedSizes(Summary summary, HProfStripper.RetainedSizeResult rsr, QueryLoader queries)
+	{
 		DefaultTableModel model = new DefaultTableModel(
 			new Object[]{"Plugin", "Size (KB)", "Num objects"}, 0
 		)
@@ -76,12 +441,12 @@ public class RetainedSizeAnalyzer
 			}
 		};
 
-		for (var entry : sorted.entrySet())
+		for (var size : summary.getPlugins())
 		{
 			model.addRow(new Object[]{
-				entry.getKey(),
-				String.format("%,d", entry.getValue() / 1024),
-				String.format("%,d", pluginNumObjects.get(entry.getKey()))
+				size.getName(),
+				String.format("%,d", size.getRetainedSize() / 1024),
+				String.format("%,d", size.getNumObjects())
 			});
 		}
 
@@ -100,14 +465,369 @@ public class RetainedSizeAnalyzer
 
 		scrollPane.setPreferredSize(new Dimension(800, 600));
 
-		showFrame(scrollPane);
+		JPanel labels = new JPanel(new GridLayout(0, 1));
+		if (rsr.weakReferences)
+		{
+			labels.add(new JLabel(referencesText(summary)));
+		}
+		labels.add(new JLabel("Object layout: " + rsr.layout));
+
+		JPanel plugins = new JPanel(new BorderLayout());
+		plugins.add(scrollPane, BorderLayout.CENTER);
+		plugins.add(labels, BorderLayout.SOUTH);
+
+		JTabbedPane tabs = new JTabbedPane();
+		tabs.addTab("Plugins", plugins);
+		tabs.addTab("Classes", histogramPanel(summary.getHistogram(), "Class", "class_histogram"));
+		tabs.addTab("GC roots", histogramPanel(rsr.gcRoots, "GC root", "gc_roots"));
+		if (rsr.query != null)
+		{
+			tabs.addTab("Dominators", dominatorPanel(rsr));
+		}
+		else if (queries != null)
+		{
+			tabs.addTab("Dominators", lazyDominatorPanel(tabs, queries));
+		}
+		showFrame(tabs, JFrame.EXIT_ON_CLOSE);
+	}
+
+	// builds the graph the dominator tree needs the first time its tab is opened
+	private static JComponent lazyDominatorPanel(JTabbedPane tabs, QueryLoader queries)
+	{
+		JPanel panel = new JPanel(new BorderLayout());
+		JLabel status = new JLabel("Reading the dump again for the dominator tree", SwingConstants.CENTER);
+		panel.add(status, BorderLayout.CENTER);
+
+		tabs.addChangeListener(new ChangeListener()
+		{
+			@Override
+			public void stateChanged(ChangeEvent ev)
+			{
+				if (tabs.getSelectedComponent() != panel)
+				{
+					return;
+				}
+				tabs.removeChangeListener(this);
+
+				Thread thread = new Thread(() ->
+				{
+					try
+					{
+						var rsr = queries.load();
+						SwingUtilities.invokeLater(() ->
+						{
+							panel.remove(status);
+							panel.add(dominatorPanel(rsr), BorderLayout.CENTER);
+							panel.revalidate();
+						});
+					}
+					catch (Exception | OutOfMemoryError e)
+					{
+						SwingUtilities.invokeLater(() -> status.setText("Couldn't build the dominator tree: " + e));
+					}
+				}, "dominator tree");
+				thread.setDaemon(true);
+				thread.start();
+			}
+		});
+		return panel;
+	}
+
+	// a node of the dominator tree, whose children are only queried once it's expanded
+	private static class DominatorNode extends DefaultMutableTreeNode
+	{
+		final int node;
+		boolean loaded;
+
+		DominatorNode(int node, String label)
+		{
+			super(label);
+			this.node = node;
+		}
+
+		@Override
+		public boolean isLeaf()
+		{
+			return loaded && getChildCount() == 0;
+		}
+	}
+
+	// the dominator tree largest first, with the shortest path keeping the selected object alive below it
+	private static JComponent dominatorPanel(HProfStripper.RetainedSizeResult rsr)
+	{
+		HeapQuery query = rsr.query;
+		DominatorNode top = new DominatorNode(query.root, "GC roots");
+		DefaultTreeModel model = new DefaultTreeModel(top);
+		loadChildren(rsr, top);
+
+		JTree tree = new JTree(model);
+		tree.addTreeWillExpandListener(new TreeWillExpandListener()
+		{
+			@Override
+			public void treeWillExpand(TreeExpansionEvent ev)
+			{
+				var node = (DominatorNode) ev.getPath().getLastPathComponent();
+				if (!node.loaded)
+				{
+					loadChildren(rsr, node);
+					model.nodeStructureChanged(node);
+				}
+			}
+
+			@Override
+			public void treeWillCollapse(TreeExpansionEvent ev)
+			{
+			}
+		});
+
+		DefaultListModel<String> path = new DefaultListModel<>();
+		tree.addTreeSelectionListener(ev ->
+		{
+			path.clear();
+			var selected = ev.getNewLeadSelectionPath();
+			if (selected == null || !(selected.getLastPathComponent() instanceof DominatorNode))
+			{
+				return;
+			}
+			int[] nodes = query.pathToRoot(((DominatorNode) selected.getLastPathComponent()).node);
+			if (nodes != null)
+			{
+				for (int n : nodes)
+				{
+					path.addElement(describe(rsr, n));
+				}
+				path.addElement("GC roots");
+			}
+		});
+
+		JScrollPane treeScroll = new JScrollPane(tree);
+		treeScroll.setPreferredSize(new Dimension(800, 400));
+		JScrollPane pathScroll = new JScrollPane(new JList<>(path));
+		pathScroll.setBorder(BorderFactory.createTitledBorder("Shortest path to GC roots"));
+		pathScroll.setPreferredSize(new Dimension(800, 200));
+
+		JSplitPane split = new JSplitPane(JSplitPane.VERTICAL_SPLIT, treeScroll, pathScroll);
+		split.setResizeWeight(.7);
+		return split;
+	}
+
+	private static void loadChildren(HProfStripper.RetainedSizeResult rsr, DominatorNode parent)
+	{
+		int[] children = rsr.query.topRetainedChildren(parent.node, DOMINATOR_CHILDREN);
+		long shown = 0;
+		for (int c : children)
+		{
+			parent.add(new DominatorNode(c, describe(rsr, c)));
+			shown += rsr.retainedSize[c];
+		}
+
+		int rest = rsr.query.childCount(parent.node) - children.length;
+		if (rest > 0)
+		{
+			long restSize = rsr.query.childrenRetainedSize(parent.node) - shown;
+			parent.add(new DefaultMutableTreeNode(String.format("%,d more retaining %,d KB", rest, restSize / 1024), false));
+		}
+		parent.loaded = true;
+	}
+
+	private static String describe(HProfStripper.RetainedSizeResult rsr, int node)
+	{
+		String name = rsr.clazz(node);
+		return String.format("%s@%x  %,d KB, %,d objects", name != null ? name : "?", rsr.query.ids[node],
+			rsr.retainedSize[node] / 1024, rsr.numObjects[node]);
+	}
+
+	// what isn't counted as retained by anything, because only references refer to it
+	static String referencesText(Summary summary)
+	{
+		return String.format("Only softly reachable: %,d KB, only weakly reachable: %,d KB",
+			summary.getSoftlyRetained() / 1024, summary.getWeaklyRetained() / 1024);
+	}
+
+	static void showHistogram(ClassHistogram histogram)
+	{
+		showFrame(histogramPanel(histogram, "Class", "class_histogram"), JFrame.DISPOSE_ON_CLOSE);
+	}
+
+	// every class with instances, sortable by any column, and buttons to save it as fileName.csv or .bin
+	private static JComponent histogramPanel(ClassHistogram histogram, String kind, String fileName)
+	{
+		DefaultTableModel model = new DefaultTableModel(
+			new Object[]{kind, "Instances", "Shallow size", "Retained size"}, 0
+		)
+		{
+			@Override
+			public boolean isCellEditable(int row, int column)
+			{
+				return false;
+			}
+
+			@Override
+			public Class<?> getColumnClass(int column)
+			{
+				return column == 0 ? String.class : column == 1 ? Integer.class : Long.class;
+			}
+		};
+
+		for (int i = 0; i < histogram.size(); i++)
+		{
+			if (histogram.instances[i] > 0)
+			{
+				model.addRow(new Object[]{
+					histogram.names[i],
+					histogram.instances[i],
+					histogram.shallowSize[i],
+					histogram.retainedSize[i]
+				});
+			}
+		}
+
+		JTable table = new JTable(model);
+		table.setFillsViewportHeight(true);
+		table.setAutoCreateRowSorter(true);
+		table.getRowSorter().setSortKeys(List.of(new RowSorter.SortKey(3, SortOrder.DESCENDING)));
+		table.setDefaultRenderer(Integer.class, numberRenderer("%,d"));
+		table.setDefaultRenderer(Long.class, numberRenderer("%,d"));
+		table.getColumnModel().getColumn(0).setPreferredWidth(400);
+
+		JScrollPane scrollPane = new JScrollPane(
+			table,
+			JScrollPane.VERTICAL_SCROLLBAR_AS_NEEDED,
+			JScrollPane.HORIZONTAL_SCROLLBAR_NEVER
+		);
+		scrollPane.setPreferredSize(new Dimension(800, 600));
+
+		JButton csv = new JButton("Export CSV");
+		csv.addActionListener(_ev -> export(scrollPane, fileName + ".csv", file ->
+		{
+			try (var w = Files.newBufferedWriter(file.toPath(), StandardCharsets.UTF_8))
+			{
+				histogram.writeCsv(w);
+			}
+		}));
+		JButton binary = new JButton("Export binary");
+		binary.addActionListener(_ev -> export(scrollPane, fileName + ".bin", file ->
+		{
+			try (var out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(file))))
+			{
+				histogram.write(out);
+			}
+		}));
+
+		JPanel buttons = new JPanel(new FlowLayout(FlowLayout.RIGHT));
+		buttons.add(csv);
+		buttons.add(binary);
+
+		JPanel panel = new JPanel(new BorderLayout());
+		panel.add(scrollPane, BorderLayout.CENTER);
+		panel.add(buttons, BorderLayout.SOUTH);
+		return panel;
+	}
+
+	private interface Exporter
+	{
+		void write(File file) throws IOException;
+	}
+
+	private static void export(JComponent parent, String name, Exporter exporter)
+	{
+		JFileChooser fc = new JFileChooser();
+		fc.setSelectedFile(new File(name));
+		if (fc.showSaveDialog(parent) != JFileChooser.APPROVE_OPTION)
+		{
+			return;
+		}
+
+		try
+		{
+			exporter.write(fc.getSelectedFile());
+		}
+		catch (IOException e)
+		{
+			JOptionPane.showMessageDialog(parent, e.toString(), "Export failed", JOptionPane.ERROR_MESSAGE);
+		}
+	}
+
+	static void showComparison(HeapDiff diff, int closeOperation)
+	{
+		JTabbedPane tabs = new JTabbedPane();
+		tabs.addTab("Classes", diffTable(diff.classes));
+		tabs.addTab("Dominator roots", diffTable(diff.dominatorRoots));
+		showFrame(tabs, closeOperation);
+	}
+
+	// sortable by any column, starting with what grew the most
+	private static JComponent diffTable(List<HeapDiff.Delta> deltas)
+	{
+		DefaultTableModel model = new DefaultTableModel(
+			new Object[]{"Class", "Instances", "Change", "Retained size", "Change", "Shallow size change"}, 0
+		)
+		{
+			@Override
+			public boolean isCellEditable(int row, int column)
+			{
+				return false;
+			}
+
+			@Override
+			public Class<?> getColumnClass(int column)
+			{
+				return column == 0 ? String.class : column <= 2 ? Integer.class : Long.class;
+			}
+		};
+
+		for (var d : deltas)
+		{
+			model.addRow(new Object[]{
+				d.getName(),
+				d.getInstancesAfter(),
+				d.instancesDelta(),
+				d.getRetainedAfter(),
+				d.retainedDelta(),
+				d.shallowDelta()
+			});
+		}
+
+		JTable table = new JTable(model);
+		table.setFillsViewportHeight(true);
+		table.setAutoCreateRowSorter(true);
+		table.getRowSorter().setSortKeys(List.of(new RowSorter.SortKey(4, SortOrder.DESCENDING)));
+		table.setDefaultRenderer(Integer.class, numberRenderer("%,d"));
+		table.setDefaultRenderer(Long.class, numberRenderer("%,d"));
+		for (int column : new int[]{2, 4, 5})
+		{
+			table.getColumnModel().getColumn(column).setCellRenderer(numberRenderer("%+,d"));
+		}
+		table.getColumnModel().getColumn(0).setPreferredWidth(400);
+
+		JScrollPane scrollPane = new JScrollPane(
+			table,
+			JScrollPane.VERTICAL_SCROLLBAR_AS_NEEDED,
+			JScrollPane.HORIZONTAL_SCROLLBAR_NEVER
+		);
+		scrollPane.setPreferredSize(new Dimension(900, 600));
+		return scrollPane;
+	}
+
+	private static DefaultTableCellRenderer numberRenderer(String format)
+	{
+		DefaultTableCellRenderer renderer = new DefaultTableCellRenderer()
+		{
+			@Override
+			protected void setValue(Object value)
+			{
+				setText(String.format(format, value));
+			}
+		};
+		renderer.setHorizontalAlignment(SwingConstants.RIGHT);
+		return renderer;
 	}
 
-	private static void showFrame(JScrollPane scrollPane)
+	private static void showFrame(JComponent content, int closeOperation)
 	{
 		JFrame frame = new JFrame("Memory Analyzer");
-		frame.setDefaultCloseOperation(JFrame.EXIT_ON_CLOSE);
-		frame.add(scrollPane);
+		frame.setDefaultCloseOperation(closeOperation);
+		frame.add(content);
 		frame.pack();
 		frame.setLocationByPlatform(true);
 		frame.setVisible(true);
@@ -0,0 +1,228 @@
+package abex.os.debug;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.zip.CRC32;
+import lombok.extern.slf4j.Slf4j;
+
+/**
+ * Keeps a {@link HProfStripper.RetainedSizeResult} in a sidecar file next to its dump, so opening the same dump
+ * again doesn't have to parse it or compute dominators. The sidecar is only used if the dump still has the same
+ * size, modification time and first bytes as when it was written
+ */
+@Slf4j
+class RetainedSizeCache
+{
+	private static final int MAGIC = 0x52534331; // RSC1
+	private static final int VERSION = 6;
+	private static final int HASHED_BYTES = 1 << 20;
+	private static final int CHUNK_BYTES = 1 << 16;
+
+	static File sidecar(File hprof)
+	{
+		return new File(hprof.getPath() + ".retained");
+	}
+
+	// written first and moved over the sidecar, so a save that fails partway doesn't leave a broken one
+	static File tmp(File hprof)
+	{
+		return new File(sidecar(hprof).getPath() + ".tmp");
+	}
+
+	static HProfStripper.RetainedSizeResult load(File hprof, boolean weakReferences)
+	{
+		return load(hprof, weakReferences, null);
+	}
+
+	/**
+	 * @param weakReferences what {@link HProfStripper#setWeakReferences} the result has to have been computed with
+	 * @param layout the object layout the result has to have been computed with, or null for any
+	 * @return the cached result for {@code hprof}, or null if there isn't one or it is for a different dump
+	 */
+	static HProfStripper.RetainedSizeResult load(File hprof, boolean weakReferences, ObjectLayout layout)
+	{
+		File file = sidecar(hprof);
+		if (!file.exists())
+		{
+			return null;
+		}
+
+		try (var in = new DataInputStream(new BufferedInputStream(new FileInputStream(file), 1 << 16)))
+		{
+			if (in.readInt() != MAGIC || in.readInt() != VERSION
+				|| in.readLong() != hprof.length() || in.readLong() != hprof.lastModified()
+				|| in.readLong() != headerHash(hprof) || in.readBoolean() != weakReferences)
+			{
+				return null;
+			}
+			String computedLayout = in.readUTF();
+			if (layout != null && !layout.toString().equals(computedLayout))
+			{
+				return null;
+			}
+
+			int num = in.readInt();
+			int numClasses = in.readInt();
+			Map<Long, HProfStripper.RetainedClassMetadata> classes = new HashMap<>();
+			List<HProfStripper.RetainedClassMetadata> classList = new ArrayList<>(numClasses);
+			for (int i = 0; i < numClasses; i++)
+			{
+				long id = in.readLong();
+				long superClassId = in.readLong();
+				String name = in.readBoolean() ? in.readUTF() : null;
+				var rcm = new HProfStripper.RetainedClassMetadata(i, name);
+				rcm.superClassId = superClassId;
+				classList.add(rcm);
+				if (id != 0)
+				{
+					classes.put(id, rcm);
+				}
+			}
+
+			int[] nodeClasses = readInts(in, num);
+			int[] idom = readInts(in, num);
+			long[] retainedSize = readLongs(in, num);
+			int[] numObjects = readInts(in, num);
+			var histogram = ClassHistogram.read(in);
+			var dominatorRoots = ClassHistogram.read(in);
+			var gcRoots = ClassHistogram.read(in);
+			long softlyRetained = in.readLong();
+			long weaklyRetained = in.readLong();
+			return new HProfStripper.RetainedSizeResult(num, classes, classList, nodeClasses, idom, retainedSize, numObjects,
+				histogram, dominatorRoots, gcRoots, weakReferences, softlyRetained, weaklyRetained, computedLayout, null);
+		}
+		catch (IOException e)
+		{
+			log.info("unable to read retained size cache {}", file, e);
+			return null;
+		}
+	}
+
+	static void save(File hprof, HProfStripper.RetainedSizeResult rsr) throws IOException
+	{
+		File file = sidecar(hprof);
+		File tmp = tmp(hprof);
+		try (var out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(tmp), 1 << 16)))
+		{
+			out.writeInt(MAGIC);
+			out.writeInt(VERSION);
+			out.writeLong(hprof.length());
+			out.writeLong(hprof.lastModified());
+			out.writeLong(headerHash(hprof));
+			out.writeBoolean(rsr.weakReferences);
+			out.writeUTF(rsr.layout);
+
+			out.writeInt(rsr.num);
+			out.writeInt(rsr.classList.size());
+			long[] classIds = new long[rsr.classList.size()];
+			for (var e : rsr.classes.entrySet())
+			{
+				classIds[e.getValue().index] = e.getKey();
+			}
+			for (var rcm : rsr.classList)
+			{
+				out.writeLong(classIds[rcm.index]);
+				out.writeLong(rcm.superClassId);
+				out.writeBoolean(rcm.name != null);
+				if (rcm.name != null)
+				{
+					out.writeUTF(rcm.name);
+				}
+			}
+
+			writeInts(out, rsr.nodeClasses);
+			writeInts(out, rsr.idom);
+			writeLongs(out, rsr.retainedSize);
+			writeInts(out, rsr.numObjects);
+			rsr.histogram.write(out);
+			rsr.dominatorRoots.write(out);
+			rsr.gcRoots.write(out);
+			out.writeLong(rsr.softlyRetained);
+			out.writeLong(rsr.weaklyRetained);
+		}
+		Files.move(tmp.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING);
+	}
+
+	private static long headerHash(File hprof) throws IOException
+	{
+		try (var raf = new RandomAccessFile(hprof, "r"))
+		{
+			byte[] b = new byte[(int) Math.min(HASHED_BYTES, raf.length())];
+			raf.readFully(b);
+			CRC32 crc = new CRC32();
+			crc.update(b);
+			return crc.getValue();
+		}
+	}
+
+	// arrays go through a byte[] in chunks, rather than a DataStream call per element
+	private static void writeInts(DataOutputStream out, int[] values) throws IOException
+	{
+		ByteBuffer buf = ByteBuffer.allocate(CHUNK_BYTES);
+		for (int off = 0; off < values.length; )
+		{
+			int n = Math.min(values.length - off, CHUNK_BYTES / 4);
+			buf.clear();
+			buf.asIntBuffer().put(values, off, n);
+			out.write(buf.array(), 0, n * 4);
+			off += n;
+		}
+	}
+
+	private static void writeLongs(DataOutputStream out, long[] values) throws IOException
+	{
+		ByteBuffer buf = ByteBuffer.allocate(CHUNK_BYTES);
+		for (int off = 0; off < values.length; )
+		{
+			int n = Math.min(values.length - off, CHUNK_BYTES / 8);
+			buf.clear();
+			buf.asLongBuffer().put(values, off, n);
+			out.write(buf.array(), 0, n * 8);
+			off += n;
+		}
+	}
+
+	private static int[] readInts(DataInputStream in, int length) throws IOException
+	{
+		int[] values = new int[length];
+		ByteBuffer buf = ByteBuffer.allocate(CHUNK_BYTES);
+		for (int off = 0; off < length; )
+		{
+			int n = Math.min(length - off, CHUNK_BYTES / 4);
+			in.readFully(buf.array(), 0, n * 4);
+			buf.clear();
+			buf.asIntBuffer().get(values, off, n);
+			off += n;
+		}
+		return values;
+	}
+
+	private static long[] readLongs(DataInputStream in, int length) throws IOException
+	{
+		long[] values = new long[length];
+		ByteBuffer buf = ByteBuffer.allocate(CHUNK_BYTES);
+		for (int off = 0; off < length; )
+		{
+			int n = Math.min(length - off, CHUNK_BYTES / 8);
+			in.readFully(buf.array(), 0, n * 8);
+			buf.clear();
+			buf.asLongBuffer().get(values, off, n);
+			off += n;
+		}
+		return values;
+	}
+}
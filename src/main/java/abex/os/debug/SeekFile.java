@@ -3,18 +3,37 @@ package abex.os.debug;
 import java.io.DataInputStream;
 import java.io.EOFException;
 import java.io.File;
+import java.io.FileInputStream;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
+import java.io.PushbackInputStream;
 import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
 
 public class SeekFile extends DataInputStream
 {
+	// files at least this big are read through mapped windows instead of the page buffer
+	static final long MAP_THRESHOLD = 256L << 20;
+
+	// a 32 bit jvm doesn't have the address space to keep a multi-gb dump mapped
+	private static final boolean CAN_MAP = !"32".equals(System.getProperty("sun.arch.data.model"));
+
 	private final Input input;
 
 	public SeekFile(File file) throws IOException
 	{
-		this(new Input(file));
+		this(file, CAN_MAP && file.length() >= MAP_THRESHOLD);
+	}
+
+	public SeekFile(File file, boolean mapped) throws IOException
+	{
+		this(mapped ? new MappedInput(file) : new PagedInput(file));
 	}
 
 	private SeekFile(Input input)
@@ -23,17 +42,78 @@ public class SeekFile extends DataInputStream
 		this.input = input;
 	}
 
-	private static class Input extends InputStream
+	/**
+	 * Opens {@code file}, decompressing it as it is read if it is zstd compressed
+	 */
+	public static SeekFile open(File file) throws IOException
+	{
+		try (var raf = new RandomAccessFile(file, "r"))
+		{
+			if (raf.length() < 4 || Integer.reverseBytes(raf.readInt()) != ZstdInputStream.MAGIC)
+			{
+				return new SeekFile(file);
+			}
+
+			ZstdInputStream.init();
+			if (raf.length() >= ZstdOutputStream.SEEK_TABLE_FOOTER_SIZE)
+			{
+				raf.seek(raf.length() - 4);
+				if (Integer.reverseBytes(raf.readInt()) == ZstdOutputStream.SEEKABLE_MAGIC)
+				{
+					return new SeekFile(new SeekableInput(file));
+				}
+			}
+			return new SeekFile(new StreamInput(file));
+		}
+	}
+
+	private abstract static class Input extends InputStream
+	{
+		long end;
+		long ptr = 0;
+
+		@Override
+		public long skip(long n) throws IOException
+		{
+			long start = ptr;
+			ptr = Math.min(ptr + n, end);
+			return ptr - start;
+		}
+
+		@Override
+		public int available() throws IOException
+		{
+			return (int) Math.min(Integer.MAX_VALUE, end - ptr);
+		}
+
+		@Override
+		public long transferTo(OutputStream out) throws IOException
+		{
+			return copyTo(out, end - ptr);
+		}
+
+		abstract long copyTo(OutputStream out, long bytes) throws IOException;
+
+		boolean atEnd() throws IOException
+		{
+			return ptr >= end;
+		}
+
+		FileChannel channel()
+		{
+			return null;
+		}
+	}
+
+	private static class PagedInput extends Input
 	{
 		private static final int PAGE_MASK = 4095;
 		private final RandomAccessFile raf;
 		private long rafPtr;
-		private long end;
 		private final byte[] page = new byte[PAGE_MASK + 1];
 		private long pagePtr = -1;
-		private long ptr = 0;
 
-		Input(File file) throws IOException
+		PagedInput(File file) throws IOException
 		{
 			raf = new RandomAccessFile(file, "r");
 			end = raf.length();
@@ -69,6 +149,7 @@ public class SeekFile extends DataInputStream
 				if (read > 0)
 				{
 					rafPtr += read;
+					ptr += read;
 				}
 				return read;
 			}
@@ -81,26 +162,7 @@ public class SeekFile extends DataInputStream
 		}
 
 		@Override
-		public long skip(long n) throws IOException
-		{
-			long start = ptr;
-			ptr = Math.min(ptr + n, end);
-			return ptr - start;
-		}
-
-		@Override
-		public int available() throws IOException
-		{
-			return (int) Math.min(Integer.MAX_VALUE, end - ptr);
-		}
-
-		@Override
-		public long transferTo(OutputStream out) throws IOException
-		{
-			return copyTo(out, end - ptr);
-		}
-
-		public long copyTo(OutputStream out, long bytes) throws IOException
+		long copyTo(OutputStream out, long bytes) throws IOException
 		{
 			long start = ptr;
 			long end = Math.min(this.end, ptr + bytes);
@@ -146,10 +208,471 @@ public class SeekFile extends DataInputStream
 			return (int) (bufEnd - ptr);
 		}
 
+		@Override
+		FileChannel channel()
+		{
+			return raf.getChannel();
+		}
+
+		@Override
+		public void close() throws IOException
+		{
+			raf.close();
+		}
+	}
+
+	private static class MappedInput extends Input
+	{
+		private static final int WINDOW_SHIFT = 28;
+		private static final long WINDOW_SIZE = 1L << WINDOW_SHIFT;
+
+		private final RandomAccessFile raf;
+		private final FileChannel channel;
+		// windows stay mapped until close, remapping on every seek would leak mappings until the next gc
+		private final MappedByteBuffer[] windows;
+		private MappedByteBuffer window;
+		private long windowStart;
+		private long windowEnd;
+		private byte[] copyBuf;
+
+		MappedInput(File file) throws IOException
+		{
+			raf = new RandomAccessFile(file, "r");
+			channel = raf.getChannel();
+			end = channel.size();
+			windows = new MappedByteBuffer[(int) ((end + WINDOW_SIZE - 1) >>> WINDOW_SHIFT)];
+		}
+
+		@Override
+		public int read() throws IOException
+		{
+			if (ptr >= end)
+			{
+				return -1;
+			}
+			if (ptr < windowStart || ptr >= windowEnd)
+			{
+				map();
+			}
+			return window.get((int) (ptr++ - windowStart)) & 0xFF;
+		}
+
+		@Override
+		public int read(byte[] b, int off, int len) throws IOException
+		{
+			if (ptr >= end)
+			{
+				return -1;
+			}
+			if (ptr < windowStart || ptr >= windowEnd)
+			{
+				map();
+			}
+
+			int read = (int) Math.min(len, windowEnd - ptr);
+			int index = (int) (ptr - windowStart);
+			if (read <= 8)
+			{
+				// readLong & friends, which are cheaper without moving the buffer's position
+				for (int i = 0; i < read; i++)
+				{
+					b[off + i] = window.get(index + i);
+				}
+			}
+			else
+			{
+				window.position(index);
+				window.get(b, off, read);
+			}
+			ptr += read;
+			return read;
+		}
+
+		@Override
+		long copyTo(OutputStream out, long bytes) throws IOException
+		{
+			long start = ptr;
+			long end = Math.min(this.end, ptr + bytes);
+			if (out instanceof ZstdOutputStream)
+			{
+				// zstd reads the mapped pages themselves
+				for (; ptr < end; )
+				{
+					if (ptr < windowStart || ptr >= windowEnd)
+					{
+						map();
+					}
+					int index = (int) (ptr - windowStart);
+					int len = (int) (Math.min(end, windowEnd) - ptr);
+					ByteBuffer slice = window.duplicate();
+					slice.position(index).limit(index + len);
+					((ZstdOutputStream) out).write(slice);
+					ptr += len;
+				}
+				return ptr - start;
+			}
+
+			if (copyBuf == null)
+			{
+				copyBuf = new byte[8192];
+			}
+			for (; ptr < end; )
+			{
+				int read = read(copyBuf, 0, (int) Math.min(end - ptr, copyBuf.length));
+				out.write(copyBuf, 0, read);
+			}
+			return ptr - start;
+		}
+
+		private void map() throws IOException
+		{
+			int index = (int) (ptr >>> WINDOW_SHIFT);
+			windowStart = (long) index << WINDOW_SHIFT;
+			windowEnd = Math.min(windowStart + WINDOW_SIZE, end);
+			window = windows[index];
+			if (window == null)
+			{
+				window = windows[index] = channel.map(FileChannel.MapMode.READ_ONLY, windowStart, windowEnd - windowStart);
+			}
+		}
+
+		@Override
+		FileChannel channel()
+		{
+			return channel;
+		}
+
 		@Override
 		public void close() throws IOException
 		{
-			super.close();
+			// the mappings themselves are released when the buffers are collected
+			Arrays.fill(windows, null);
+			window = null;
+			windowStart = windowEnd = 0;
+			raf.close();
+		}
+	}
+
+	// compressed input can only be read forwards, so seeking backwards starts decompressing again from the top.
+	// The length isn't known until the end has been read
+	private static class StreamInput extends Input
+	{
+		private final File file;
+		private PushbackInputStream stream;
+		private long streamPtr;
+		private byte[] copyBuf;
+
+		StreamInput(File file) throws IOException
+		{
+			this.file = file;
+			end = Long.MAX_VALUE;
+			open();
+		}
+
+		private void open() throws IOException
+		{
+			if (stream != null)
+			{
+				stream.close();
+			}
+			stream = new PushbackInputStream(new ZstdInputStream(new FileInputStream(file)), 1);
+			streamPtr = 0;
+		}
+
+		private void position() throws IOException
+		{
+			if (streamPtr > ptr)
+			{
+				open();
+			}
+			for (; streamPtr < ptr; )
+			{
+				long skipped = stream.skip(ptr - streamPtr);
+				if (skipped <= 0)
+				{
+					end = ptr = streamPtr;
+					return;
+				}
+				streamPtr += skipped;
+			}
+		}
+
+		@Override
+		public int read() throws IOException
+		{
+			position();
+			int b = stream.read();
+			if (b < 0)
+			{
+				end = ptr;
+				return -1;
+			}
+			ptr++;
+			streamPtr++;
+			return b;
+		}
+
+		@Override
+		public int read(byte[] b, int off, int len) throws IOException
+		{
+			position();
+			int read = stream.read(b, off, len);
+			if (read < 0)
+			{
+				end = ptr;
+				return -1;
+			}
+			ptr += read;
+			streamPtr += read;
+			return read;
+		}
+
+		@Override
+		long copyTo(OutputStream out, long bytes) throws IOException
+		{
+			if (copyBuf == null)
+			{
+				copyBuf = new byte[8192];
+			}
+
+			long start = ptr;
+			for (; ptr - start < bytes; )
+			{
+				int read = read(copyBuf, 0, (int) Math.min(bytes - (ptr - start), copyBuf.length));
+				if (read < 0)
+				{
+					break;
+				}
+				out.write(copyBuf, 0, read);
+			}
+			return ptr - start;
+		}
+
+		@Override
+		boolean atEnd() throws IOException
+		{
+			if (ptr >= end)
+			{
+				return true;
+			}
+			position();
+			int b = stream.read();
+			if (b < 0)
+			{
+				end = ptr;
+				return true;
+			}
+			stream.unread(b);
+			return false;
+		}
+
+		@Override
+		public void close() throws IOException
+		{
+			stream.close();
+		}
+	}
+
+	// zstd seekable format, where frames can be found through the seek table at the end of the file, and are
+	// decompressed as they are touched
+	private static class SeekableInput extends Input
+	{
+		private static final long CACHE_BYTES = 64L << 20;
+
+		private final RandomAccessFile raf;
+		private final FileChannel channel;
+		// start of each frame, with an extra entry for the end of the last one
+		private final long[] compressedStart;
+		private final long[] start;
+
+		private long stream;
+		private ByteBuffer src;
+		private final LinkedHashMap<Integer, ByteBuffer> cache = new LinkedHashMap<>(16, .75f, true);
+		private long cachedBytes;
+
+		private ByteBuffer frame;
+		private long frameStart;
+		private long frameEnd;
+		private byte[] copyBuf;
+
+		SeekableInput(File file) throws IOException
+		{
+			raf = new RandomAccessFile(file, "r");
+			channel = raf.getChannel();
+
+			long length = channel.size();
+			ByteBuffer footer = read(length - ZstdOutputStream.SEEK_TABLE_FOOTER_SIZE, ZstdOutputStream.SEEK_TABLE_FOOTER_SIZE);
+			int frames = footer.getInt();
+			boolean checksums = (footer.get() & 0x80) != 0;
+			int entrySize = checksums ? 12 : 8;
+
+			long tableStart = length - ZstdOutputStream.SEEK_TABLE_FOOTER_SIZE - (long) frames * entrySize - 8;
+			if (tableStart < 0)
+			{
+				throw new IOException("corrupt seek table");
+			}
+			ByteBuffer table = read(tableStart, (int) (length - tableStart));
+			if (table.getInt() != ZstdOutputStream.SEEK_TABLE_MAGIC)
+			{
+				throw new IOException("corrupt seek table");
+			}
+			table.getInt();
+
+			compressedStart = new long[frames + 1];
+			start = new long[frames + 1];
+			for (int i = 0; i < frames; i++)
+			{
+				compressedStart[i + 1] = compressedStart[i] + Integer.toUnsignedLong(table.getInt());
+				start[i + 1] = start[i] + Integer.toUnsignedLong(table.getInt());
+				if (checksums)
+				{
+					table.getInt();
+				}
+			}
+			end = start[frames];
+
+			stream = ZstdInputStream.new0();
+			if (stream == 0)
+			{
+				throw new RuntimeException();
+			}
+		}
+
+		private ByteBuffer read(long offset, int bytes) throws IOException
+		{
+			ByteBuffer buf = ByteBuffer.allocate(bytes).order(ByteOrder.LITTLE_ENDIAN);
+			for (; buf.hasRemaining(); )
+			{
+				if (channel.read(buf, offset + buf.position()) < 0)
+				{
+					throw new EOFException();
+				}
+			}
+			return buf.flip();
+		}
+
+		@Override
+		public int read() throws IOException
+		{
+			if (ptr >= end)
+			{
+				return -1;
+			}
+			if (ptr < frameStart || ptr >= frameEnd)
+			{
+				load();
+			}
+			return frame.get((int) (ptr++ - frameStart)) & 0xFF;
+		}
+
+		@Override
+		public int read(byte[] b, int off, int len) throws IOException
+		{
+			if (ptr >= end)
+			{
+				return -1;
+			}
+			if (ptr < frameStart || ptr >= frameEnd)
+			{
+				load();
+			}
+
+			int read = (int) Math.min(len, frameEnd - ptr);
+			int index = (int) (ptr - frameStart);
+			if (read <= 8)
+			{
+				for (int i = 0; i < read; i++)
+				{
+					b[off + i] = frame.get(index + i);
+				}
+			}
+			else
+			{
+				frame.position(index);
+				frame.get(b, off, read);
+			}
+			ptr += read;
+			return read;
+		}
+
+		@Override
+		long copyTo(OutputStream out, long bytes) throws IOException
+		{
+			if (copyBuf == null)
+			{
+				copyBuf = new byte[8192];
+			}
+
+			long start = ptr;
+			long end = Math.min(this.end, ptr + bytes);
+			for (; ptr < end; )
+			{
+				int read = read(copyBuf, 0, (int) Math.min(end - ptr, copyBuf.length));
+				out.write(copyBuf, 0, read);
+			}
+			return ptr - start;
+		}
+
+		private void load() throws IOException
+		{
+			int index = Arrays.binarySearch(start, ptr);
+			if (index < 0)
+			{
+				index = -index - 2;
+			}
+			// skip over empty frames
+			for (; start[index + 1] <= ptr; index++)
+			{
+			}
+
+			frameStart = start[index];
+			frameEnd = start[index + 1];
+			frame = cache.get(index);
+			if (frame != null)
+			{
+				return;
+			}
+
+			int compressedSize = (int) (compressedStart[index + 1] - compressedStart[index]);
+			if (src == null || src.capacity() < compressedSize)
+			{
+				src = ByteBuffer.allocateDirect(compressedSize);
+			}
+			src.clear().limit(compressedSize);
+			for (; src.hasRemaining(); )
+			{
+				if (channel.read(src, compressedStart[index] + src.position()) < 0)
+				{
+					throw new EOFException();
+				}
+			}
+
+			int size = (int) (frameEnd - frameStart);
+			frame = ByteBuffer.allocateDirect(size);
+			long res = ZstdInputStream.decompress0(stream, src, 0, compressedSize, frame);
+			if ((res >>> 32) != compressedSize || (((int) res) & 0x7FFF_FFFF) != size || ((res >> 31) & 1) != 0)
+			{
+				throw new IOException("corrupt zstd frame " + index);
+			}
+
+			cache.put(index, frame);
+			cachedBytes += size;
+			for (var it = cache.values().iterator(); cachedBytes > CACHE_BYTES && cache.size() > 1; )
+			{
+				cachedBytes -= it.next().capacity();
+				it.remove();
+			}
+		}
+
+		@Override
+		public void close() throws IOException
+		{
+			ZstdInputStream.free0(stream);
+			stream = 0;
+			cache.clear();
+			frame = null;
+			frameStart = frameEnd = 0;
+			raf.close();
 		}
 	}
 
@@ -179,8 +702,32 @@ public class SeekFile extends DataInputStream
 		return readInt() & 0xFFFF_FFFFL;
 	}
 
+	/**
+	 * @return the length of the file, or {@link Long#MAX_VALUE} for compressed input that hasn't been read to the end
+	 */
 	public long length()
 	{
 		return input.end;
 	}
+
+	/**
+	 * @return the channel of an uncompressed file, which can be read from at any position without affecting this
+	 */
+	public FileChannel channel()
+	{
+		return input.channel();
+	}
+
+	public boolean atEnd() throws IOException
+	{
+		return input.atEnd();
+	}
+
+	/**
+	 * @return if seeking backwards means reading the file again from the start
+	 */
+	public boolean isSequential()
+	{
+		return input instanceof StreamInput;
+	}
 }
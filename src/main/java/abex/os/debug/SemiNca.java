@@ -0,0 +1,142 @@
+package abex.os.debug;
+
+/**
+ * Semi-NCA dominators, from Georgiadis' "Linear-Time Algorithms for Dominators and Related Problems". Semidominators
+ * are computed like Lengauer-Tarjan with path compression, then each immediate dominator is found by walking up
+ * from the node's dfs parent until reaching its semidominator, instead of through buckets. Everything is iterative
+ * and works on arrays indexed by dfs number, so long reference chains don't need a deep stack
+ */
+public class SemiNca implements DominatorAlgorithm
+{
+	@Override
+	public IntArray computeIdom(ObjectGraph graph, int root)
+	{
+		GraphStorage storage = graph.storage;
+		int nodeCount = graph.nodeCount;
+		IntArray succStart = graph.succStart;
+		IntArray succs = graph.succs;
+		IntArray predStart = graph.predStart();
+		IntArray preds = graph.preds();
+
+		// dfs number of each node, or -1 if the root doesn't reach it
+		IntArray dfnum = storage.ints(nodeCount);
+		dfnum.fill(-1);
+		// everything else is indexed by dfs number
+		IntArray vertex = storage.ints(nodeCount);
+		IntArray parent = storage.ints(nodeCount);
+		IntArray stack = storage.ints(nodeCount);
+		IntArray cursor = storage.ints(nodeCount);
+
+		int n = 0;
+		int sp = 0;
+		dfnum.set(root, n);
+		vertex.set(n, root);
+		parent.set(n++, -1);
+		stack.set(sp, root);
+		cursor.set(sp++, succStart.get(root));
+		for (; sp > 0; )
+		{
+			int v = stack.get(sp - 1);
+			int e = cursor.get(sp - 1);
+			if (e == succStart.get(v + 1))
+			{
+				sp--;
+				continue;
+			}
+			cursor.set(sp - 1, e + 1);
+
+			int w = succs.get(e);
+			if (dfnum.get(w) < 0)
+			{
+				dfnum.set(w, n);
+				vertex.set(n, w);
+				parent.set(n++, dfnum.get(v));
+				stack.set(sp, w);
+				cursor.set(sp++, succStart.get(w));
+			}
+		}
+		storage.free(cursor);
+
+		// semi[i] starts as i. ancestor links a node to its dfs parent once its semidominator is known, forming the
+		// forest that eval compresses, and label is the node with the lowest semidominator on the compressed path
+		IntArray semi = storage.ints(n);
+		IntArray label = storage.ints(n);
+		IntArray ancestor = storage.ints(n);
+		for (int i = 0; i < n; i++)
+		{
+			semi.set(i, i);
+			label.set(i, i);
+			ancestor.set(i, -1);
+		}
+
+		for (int i = n - 1; i >= 1; i--)
+		{
+			int w = vertex.get(i);
+			int s = semi.get(i);
+			for (int e = predStart.get(w), end = predStart.get(w + 1); e < end; e++)
+			{
+				int u = dfnum.get(preds.get(e));
+				if (u < 0)
+				{
+					// nodes the root doesn't reach can't be on a path from it
+					continue;
+				}
+				if (ancestor.get(u) >= 0)
+				{
+					compress(u, ancestor, label, semi, stack);
+					u = label.get(u);
+				}
+				s = Math.min(s, semi.get(u));
+			}
+			semi.set(i, s);
+			ancestor.set(i, parent.get(i));
+		}
+		storage.free(label);
+		storage.free(ancestor);
+
+		// the immediate dominator is the nearest common ancestor of the parent and the semidominator, which is the
+		// first ancestor of the parent at or above it. Dominators of earlier nodes are already known, so parent is
+		// overwritten with them as it goes
+		IntArray idom = storage.ints(nodeCount);
+		idom.fill(-1);
+		for (int i = 1; i < n; i++)
+		{
+			int s = semi.get(i);
+			int d = parent.get(i);
+			for (; d > s; )
+			{
+				d = parent.get(d);
+			}
+			parent.set(i, d);
+			idom.set(vertex.get(i), vertex.get(d));
+		}
+
+		storage.free(dfnum);
+		storage.free(vertex);
+		storage.free(parent);
+		storage.free(stack);
+		storage.free(semi);
+		return idom;
+	}
+
+	// points every node on the path from v to the root of its tree in the forest directly at that root, keeping the
+	// lowest semidominator seen above each in its label
+	private static void compress(int v, IntArray ancestor, IntArray label, IntArray semi, IntArray stack)
+	{
+		int sp = 0;
+		for (int x = v; ancestor.get(ancestor.get(x)) >= 0; x = ancestor.get(x))
+		{
+			stack.set(sp++, x);
+		}
+		for (; sp > 0; )
+		{
+			int x = stack.get(--sp);
+			int a = ancestor.get(x);
+			if (semi.get(label.get(a)) < semi.get(label.get(x)))
+			{
+				label.set(x, label.get(a));
+			}
+			ancestor.set(x, ancestor.get(a));
+		}
+	}
+}
@@ -0,0 +1,143 @@
+package abex.os.debug;
+
+import java.io.EOFException;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.ReadableByteChannel;
+
+public class ZstdInputStream extends InputStream
+{
+	// magic number at the start of every zstd frame, little endian
+	static final int MAGIC = 0xFD2FB528;
+
+	private final ReadableByteChannel in;
+	// compressed bytes between position and limit haven't been given to zstd yet
+	private final ByteBuffer inBuf;
+	// decompressed bytes between position and limit haven't been read yet
+	private final ByteBuffer outBuf;
+	private long stream;
+	private boolean eof;
+	private boolean frameOpen;
+	// zstd may be holding more output than fit in the last call, even if it has no input left
+	private boolean outputFull;
+
+	public static void init()
+	{
+		// libprofiler uses zstd too, so we just reuse that
+		Profiler.init();
+	}
+
+	public ZstdInputStream(InputStream in)
+	{
+		this.in = in instanceof FileInputStream ? ((FileInputStream) in).getChannel() : Channels.newChannel(in);
+		this.inBuf = ByteBuffer.allocateDirect(dStreamInSize());
+		this.outBuf = ByteBuffer.allocateDirect(dStreamOutSize());
+		inBuf.limit(0);
+		outBuf.limit(0);
+		this.stream = new0();
+		if (this.stream == 0)
+		{
+			throw new RuntimeException();
+		}
+	}
+
+	@Override
+	public int read() throws IOException
+	{
+		if (!fill())
+		{
+			return -1;
+		}
+		return outBuf.get() & 0xFF;
+	}
+
+	@Override
+	public int read(byte[] b, int off, int len) throws IOException
+	{
+		if (len == 0)
+		{
+			return 0;
+		}
+		if (!fill())
+		{
+			return -1;
+		}
+
+		int read = Math.min(len, outBuf.remaining());
+		outBuf.get(b, off, read);
+		return read;
+	}
+
+	@Override
+	public long skip(long n) throws IOException
+	{
+		long skipped = 0;
+		for (; skipped < n && fill(); )
+		{
+			int s = (int) Math.min(n - skipped, outBuf.remaining());
+			outBuf.position(outBuf.position() + s);
+			skipped += s;
+		}
+		return skipped;
+	}
+
+	@Override
+	public int available()
+	{
+		return outBuf.remaining();
+	}
+
+	@Override
+	public void close() throws IOException
+	{
+		free0(stream);
+		stream = 0;
+		in.close();
+	}
+
+	// decompresses until there is something to read, returning false at the end of the input
+	private boolean fill() throws IOException
+	{
+		for (; !outBuf.hasRemaining(); )
+		{
+			if (!inBuf.hasRemaining() && !outputFull)
+			{
+				if (eof)
+				{
+					if (frameOpen)
+					{
+						throw new EOFException("truncated zstd frame");
+					}
+					return false;
+				}
+
+				inBuf.clear();
+				eof = in.read(inBuf) < 0;
+				inBuf.flip();
+				continue;
+			}
+
+			long res = decompress0(stream, inBuf, inBuf.position(), inBuf.remaining(), outBuf);
+			inBuf.position(inBuf.position() + (int) (res >>> 32));
+			int produced = ((int) res) & 0x7FFF_FFFF;
+			outBuf.position(0);
+			outBuf.limit(produced);
+			outputFull = produced == outBuf.capacity();
+			frameOpen = ((res >> 31) & 1) != 0;
+		}
+		return true;
+	}
+
+	private static native int dStreamInSize();
+
+	private static native int dStreamOutSize();
+
+	static native long new0();
+
+	static native void free0(long stream);
+
+	static native long decompress0(long stream, ByteBuffer in, int off, int len, ByteBuffer out) throws IOException;
+}
@@ -1,7 +1,11 @@
 package abex.os.debug;
 
+import java.io.FileOutputStream;
 import java.io.IOException;
 import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
 
 public class ZstdOutputStream extends OutputStream
 {
@@ -9,12 +13,29 @@ public class ZstdOutputStream extends OutputStream
 	private static final int ZSTD_E_FLUSH = 1;
 	private static final int ZSTD_E_END = 2;
 
+	// zstd seekable format, see contrib/seekable_format in the zstd repo
+	static final int SEEK_TABLE_MAGIC = 0x184D2A5E;
+	static final int SEEKABLE_MAGIC = 0x8F92EAB1;
+	static final int SEEK_TABLE_FOOTER_SIZE = 9;
+
+	// array writes at least this big are compressed from the array instead of being copied into inBuf first
+	private static final int DIRECT_WRITE = 32;
+
 	private final OutputStream out;
-	private final byte[] outBuf;
-	private final byte[] inBuf;
-	private int inBufPtr;
+	// the file's channel, which writes outBuf as is. Other streams need it copied to outArr
+	private final FileChannel outChannel;
+	// zstd reads and writes these through their addresses, so nothing has to be pinned while it compresses
+	private final ByteBuffer inBuf;
+	private final ByteBuffer outBuf;
+	private byte[] outArr;
 	private long stream;
 
+	private final int frameSize;
+	private long frameIn;
+	private long frameOut;
+	// compressed size << 32 | decompressed size of each finished frame
+	private final LongArrayList frames = new LongArrayList();
+
 	public static void init()
 	{
 		// libprofiler uses zstd too, so we just reuse that
@@ -22,11 +43,31 @@ public class ZstdOutputStream extends OutputStream
 	}
 
 	public ZstdOutputStream(OutputStream out, int level)
+	{
+		this(out, level, 0, 0);
+	}
+
+	/**
+	 * @param workers number of background threads to compress on, or 0 to compress on the writing thread
+	 * @param jobSize bytes of input each worker compresses at a time, or 0 for zstd's default
+	 */
+	public ZstdOutputStream(OutputStream out, int level, int workers, int jobSize)
+	{
+		this(out, level, workers, jobSize, 0);
+	}
+
+	/**
+	 * @param frameSize if not 0, the input is split into independent frames of this many bytes, and a seek table is
+	 * written after them so readers can decompress any part of the stream without starting from the top
+	 */
+	public ZstdOutputStream(OutputStream out, int level, int workers, int jobSize, int frameSize)
 	{
 		this.out = out;
-		this.outBuf = new byte[cStreamOutSize()];
-		this.inBuf = new byte[cStreamInSize()];
-		this.stream = new0(level);
+		this.frameSize = frameSize;
+		this.inBuf = ByteBuffer.allocateDirect(cStreamInSize());
+		this.outBuf = ByteBuffer.allocateDirect(cStreamOutSize());
+		this.outChannel = out instanceof FileOutputStream ? ((FileOutputStream) out).getChannel() : null;
+		this.stream = new0(level, workers, jobSize);
 		if (this.stream == 0)
 		{
 			throw new RuntimeException();
@@ -36,34 +77,72 @@ public class ZstdOutputStream extends OutputStream
 	@Override
 	public void write(int b) throws IOException
 	{
-		if (inBufPtr + 1 >= inBuf.length)
+		room();
+		inBuf.put((byte) b);
+	}
+
+	@Override
+	public void write(byte[] b, int off, int len) throws IOException
+	{
+		if (len >= DIRECT_WRITE)
 		{
-			flushBuffer(ZSTD_E_CONTINUE);
+			compressDirect(b, off, len);
+			return;
 		}
 
-		inBuf[inBufPtr++] = (byte) b;
+		for (; len > 0; )
+		{
+			int size = Math.min(len, room());
+			inBuf.put(b, off, size);
+			off += size;
+			len -= size;
+		}
 	}
 
-	@Override
-	public void write(byte[] b, int off, int len) throws IOException
+	/**
+	 * Compresses the remaining bytes of {@code src}. Direct buffers, such as mapped file regions, are handed to zstd
+	 * as is instead of being copied first
+	 */
+	public void write(ByteBuffer src) throws IOException
 	{
-		if (len >= 32)
+		int len = src.remaining();
+		if (src.isDirect())
 		{
-			flushBuffer(ZSTD_E_CONTINUE);
-			compress(b, off, len, ZSTD_E_CONTINUE);
+			compressDirect(src, src.position(), len);
+		}
+		else if (src.hasArray())
+		{
+			write(src.array(), src.arrayOffset() + src.position(), len);
 		}
 		else
 		{
-			int size = Math.min(len, inBuf.length - inBufPtr);
-			System.arraycopy(b, off, inBuf, inBufPtr, size);
-			inBufPtr += size;
-			if (size != len)
+			for (int off = src.position(), end = src.limit(); off < end; )
 			{
+				int size = Math.min(end - off, room());
+				ByteBuffer slice = src.duplicate();
+				slice.position(off).limit(off + size);
+				inBuf.put(slice);
 				off += size;
-				len = len - size;
-				System.arraycopy(b, off, inBuf, inBufPtr, len);
 			}
 		}
+		src.position(src.limit());
+	}
+
+	// compresses straight from src, which is a byte[] or a direct ByteBuffer, after what's buffered already
+	private void compressDirect(Object src, int off, int len) throws IOException
+	{
+		for (; len > 0; )
+		{
+			room();
+			if (inBuf.position() > 0)
+			{
+				flushBuffer(ZSTD_E_CONTINUE);
+			}
+			int size = frameSize > 0 ? (int) Math.min(len, frameSize - frameIn) : len;
+			compress(src, off, size, ZSTD_E_CONTINUE);
+			off += size;
+			len -= size;
+		}
 	}
 
 	@Override
@@ -76,7 +155,18 @@ public class ZstdOutputStream extends OutputStream
 	@Override
 	public void close() throws IOException
 	{
-		flushBuffer(ZSTD_E_END);
+		if (frameSize > 0)
+		{
+			if (frameIn + inBuf.position() > 0 || frames.isEmpty())
+			{
+				endFrame();
+			}
+			writeSeekTable();
+		}
+		else
+		{
+			flushBuffer(ZSTD_E_END);
+		}
 		free();
 		out.close();
 	}
@@ -87,24 +177,76 @@ public class ZstdOutputStream extends OutputStream
 		stream = 0;
 	}
 
+	// makes space in the input buffer, ending the current frame once it is full
+	private int room() throws IOException
+	{
+		if (frameSize > 0 && frameIn + inBuf.position() >= frameSize)
+		{
+			endFrame();
+		}
+		else if (!inBuf.hasRemaining())
+		{
+			flushBuffer(ZSTD_E_CONTINUE);
+		}
+
+		int room = inBuf.remaining();
+		if (frameSize > 0)
+		{
+			room = (int) Math.min(room, frameSize - frameIn - inBuf.position());
+		}
+		return room;
+	}
+
+	private void endFrame() throws IOException
+	{
+		flushBuffer(ZSTD_E_END);
+		frames.add(frameOut << 32 | frameIn);
+		frameIn = 0;
+		frameOut = 0;
+	}
+
+	private void writeSeekTable() throws IOException
+	{
+		int entries = frames.size();
+		ByteBuffer table = ByteBuffer.allocate(8 + entries * 8 + SEEK_TABLE_FOOTER_SIZE)
+			.order(ByteOrder.LITTLE_ENDIAN);
+		table.putInt(SEEK_TABLE_MAGIC);
+		table.putInt(table.capacity() - 8);
+		for (int i = 0; i < entries; i++)
+		{
+			long frame = frames.get(i);
+			table.putInt((int) (frame >>> 32));
+			table.putInt((int) frame);
+		}
+		table.putInt(entries);
+		table.put((byte) 0); // no checksums
+		table.putInt(SEEKABLE_MAGIC);
+		out.write(table.array());
+	}
+
 	private void flushBuffer(int endOp) throws IOException
 	{
-		compress(inBuf, 0, inBufPtr, endOp);
-		inBufPtr = 0;
+		compress(inBuf, 0, inBuf.position(), endOp);
+		inBuf.clear();
 	}
 
-	private void compress(byte[] buf, int off, int len, int endOp) throws IOException
+	private void compress(Object src, int off, int len, int endOp) throws IOException
 	{
 		for (; ; )
 		{
-			long res = compress0(stream, buf, off, len, outBuf, endOp);
+			long res = src instanceof ByteBuffer
+				? compress0(stream, (ByteBuffer) src, off, len, outBuf, endOp)
+				: compressArray0(stream, (byte[]) src, off, len, outBuf, endOp);
 			int wr = (int) (res >> 32);
+			frameIn += wr;
 			off += wr;
 			len -= wr;
 			int outLen = ((int) res) & 0x7FFF_FFFF;
 			if (outLen > 0)
 			{
-				out.write(outBuf, 0, outLen);
+				frameOut += outLen;
+				outBuf.clear().limit(outLen);
+				writeOut();
 			}
 			boolean more = ((res >> 31) & 1) != 0;
 			if (len > 0 || (endOp != ZSTD_E_CONTINUE && more))
@@ -115,13 +257,35 @@ public class ZstdOutputStream extends OutputStream
 		}
 	}
 
+	private void writeOut() throws IOException
+	{
+		if (outChannel != null)
+		{
+			for (; outBuf.hasRemaining(); )
+			{
+				outChannel.write(outBuf);
+			}
+			return;
+		}
+
+		if (outArr == null)
+		{
+			outArr = new byte[outBuf.capacity()];
+		}
+		int len = outBuf.remaining();
+		outBuf.get(outArr, 0, len);
+		out.write(outArr, 0, len);
+	}
+
 	private static native int cStreamInSize();
 
 	private static native int cStreamOutSize();
 
-	private static native long new0(int level);
+	private static native long new0(int level, int workers, int jobSize);
 
 	private static native void free0(long stream);
 
-	private static native long compress0(long stream, byte[] bytes, int off, int len, byte[] out, int endOp) throws IOException;
+	private static native long compress0(long stream, ByteBuffer in, int off, int len, ByteBuffer out, int endOp) throws IOException;
+
+	private static native long compressArray0(long stream, byte[] in, int off, int len, ByteBuffer out, int endOp) throws IOException;
 }
@@ -0,0 +1,199 @@
+package abex.os.debug;
+
+import java.util.ArrayDeque;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.Deque;
+import java.util.Random;
+import org.junit.Assert;
+import org.junit.Test;
+
+public class DominatorTest
+{
+	@Test
+	public void matchesNaive()
+	{
+		Random r = new Random(5);
+		for (int t = 0; t < 2000; t++)
+		{
+			// sparse enough that some nodes aren't reachable from the root, but may still point into the graph
+			int n = 1 + r.nextInt(40);
+			int[][] succs = new int[n][];
+			for (int i = 0; i < n; i++)
+			{
+				succs[i] = new int[r.nextInt(4)];
+				for (int j = 0; j < succs[i].length; j++)
+				{
+					succs[i][j] = r.nextInt(n);
+				}
+			}
+			int root = r.nextInt(n);
+
+			ObjectGraph graph = ObjectGraph.fromAdjacency(succs);
+			int[] expected = naive(succs, root);
+			String msg = "root " + root + " succs " + Arrays.deepToString(succs);
+			Assert.assertArrayEquals(msg, expected, new SemiNca().computeIdom(graph, root).toArray());
+			Assert.assertArrayEquals(msg, expected, new LengauerTarjan().computeIdom(graph, root).toArray());
+		}
+	}
+
+	@Test
+	public void deepChain()
+	{
+		int n = 2_000_000;
+		int[][] succs = new int[n][];
+		for (int i = 0; i < n; i++)
+		{
+			// every node also points back at the root, so each one is linked into a long compressed path
+			succs[i] = i + 1 < n ? new int[]{i + 1, 0} : new int[]{0};
+		}
+
+		int[] idom = new SemiNca().computeIdom(ObjectGraph.fromAdjacency(succs), 0).toArray();
+		Assert.assertEquals(-1, idom[0]);
+		for (int i = 1; i < n; i++)
+		{
+			Assert.assertEquals(i - 1, idom[i]);
+		}
+	}
+
+	@Test
+	public void aggregate()
+	{
+		Random r = new Random(3);
+		int n = 300_000;
+		int[] idom = new int[n];
+		int[] sizes = new int[n];
+		idom[0] = -1;
+		for (int i = 1; i < n; i++)
+		{
+			// long chains with bushy bits hanging off them, and a few nodes that aren't under the root
+			idom[i] = r.nextInt(100) == 0 ? -1 : r.nextInt(3) == 0 ? r.nextInt(i) : i - 1;
+			sizes[i] = r.nextInt(1000);
+		}
+
+		// children always come after their dominator, so a single reverse pass gives the expected totals
+		long[] expectedSize = new long[n];
+		int[] expectedObjects = new int[n];
+		boolean[] underRoot = new boolean[n];
+		underRoot[0] = true;
+		for (int i = 1; i < n; i++)
+		{
+			underRoot[i] = idom[i] >= 0 && underRoot[idom[i]];
+		}
+		for (int i = n - 1; i >= 0; i--)
+		{
+			if (underRoot[i])
+			{
+				expectedSize[i] += sizes[i];
+				expectedObjects[i]++;
+				if (i > 0)
+				{
+					expectedSize[idom[i]] += expectedSize[i];
+					expectedObjects[idom[i]] += expectedObjects[i];
+				}
+			}
+		}
+
+		var tree = new DominatorTree(GraphStorage.heap(), new IntArray.Heap(idom));
+		long[] retainedSize = new long[n];
+		int[] numObjects = new int[n];
+		tree.aggregateSequential(0, new IntArray.Heap(sizes), retainedSize, numObjects);
+		Assert.assertArrayEquals(expectedSize, retainedSize);
+		Assert.assertArrayEquals(expectedObjects, numObjects);
+
+		retainedSize = new long[n];
+		numObjects = new int[n];
+		tree.aggregateParallel(0, new IntArray.Heap(sizes), retainedSize, numObjects);
+		Assert.assertArrayEquals(expectedSize, retainedSize);
+		Assert.assertArrayEquals(expectedObjects, numObjects);
+	}
+
+	// dominator sets solved as a dataflow problem, dom(v) = {v} + the intersection of dom(p) for every reachable pred
+	private static int[] naive(int[][] succs, int root)
+	{
+		int n = succs.length;
+		boolean[] reachable = new boolean[n];
+		Deque<Integer> queue = new ArrayDeque<>();
+		queue.add(root);
+		reachable[root] = true;
+		for (; !queue.isEmpty(); )
+		{
+			for (int w : succs[queue.poll()])
+			{
+				if (!reachable[w])
+				{
+					reachable[w] = true;
+					queue.add(w);
+				}
+			}
+		}
+
+		BitSet all = new BitSet();
+		for (int i = 0; i < n; i++)
+		{
+			if (reachable[i])
+			{
+				all.set(i);
+			}
+		}
+		BitSet[] dom = new BitSet[n];
+		for (int i = 0; i < n; i++)
+		{
+			dom[i] = (BitSet) all.clone();
+		}
+		dom[root] = new BitSet();
+		dom[root].set(root);
+
+		for (boolean changed = true; changed; )
+		{
+			changed = false;
+			for (int v = 0; v < n; v++)
+			{
+				if (v == root || !reachable[v])
+				{
+					continue;
+				}
+				BitSet d = (BitSet) all.clone();
+				for (int p = 0; p < n; p++)
+				{
+					if (!reachable[p])
+					{
+						continue;
+					}
+					for (int w : succs[p])
+					{
+						if (w == v)
+						{
+							d.and(dom[p]);
+						}
+					}
+				}
+				d.set(v);
+				if (!d.equals(dom[v]))
+				{
+					dom[v] = d;
+					changed = true;
+				}
+			}
+		}
+
+		// the immediate dominator is the strict dominator that is itself dominated by all the others
+		int[] idom = new int[n];
+		Arrays.fill(idom, -1);
+		for (int v = 0; v < n; v++)
+		{
+			if (v == root || !reachable[v])
+			{
+				continue;
+			}
+			for (int d = dom[v].nextSetBit(0); d >= 0; d = dom[v].nextSetBit(d + 1))
+			{
+				if (d != v && (idom[v] < 0 || dom[d].cardinality() > dom[idom[v]].cardinality()))
+				{
+					idom[v] = d;
+				}
+			}
+		}
+		return idom;
+	}
+}
@@ -0,0 +1,40 @@
+package abex.os.debug;
+
+import java.io.File;
+import java.io.IOException;
+import org.junit.Assert;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+public class GraphStorageTest
+{
+	@Rule
+	public TemporaryFolder folder = new TemporaryFolder();
+
+	@Test
+	public void sweepsClosedStorages() throws IOException
+	{
+		File root = folder.getRoot();
+		// left by a process that died, or by windows not deleting a file that was still mapped
+		File stale = folder.newFolder("hprof-graph1");
+		Assert.assertTrue(new File(stale, "lock").createNewFile());
+		Assert.assertTrue(new File(stale, "graph1.bin").createNewFile());
+
+		try (var open = GraphStorage.mapped(root))
+		{
+			open.ints(1000);
+			Assert.assertFalse(stale.exists());
+			Assert.assertEquals(1, root.list().length);
+
+			// the open one is locked
+			try (var other = GraphStorage.mapped(root))
+			{
+				other.longs(1000);
+				Assert.assertEquals(2, root.list().length);
+			}
+			Assert.assertEquals(1, root.list().length);
+		}
+		Assert.assertEquals(0, root.list().length);
+	}
+}
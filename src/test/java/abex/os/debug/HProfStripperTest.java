@@ -0,0 +1,153 @@
+package abex.os.debug;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.function.Consumer;
+import java.util.zip.GZIPInputStream;
+import org.junit.Assert;
+import org.junit.Assume;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+public class HProfStripperTest
+{
+	@Rule
+	public TemporaryFolder folder = new TemporaryFolder();
+
+	@Test
+	public void indexKeepsTheSameObjectsAsPasses() throws IOException
+	{
+		File dump = folder.newFile("loaders.hprof");
+		new SyntheticHeapDump(50_000, SyntheticHeapDump.Shape.RANDOM, .5, 8, 1).classLoaders().write(dump);
+
+		byte[] indexed = strip(dump, h -> h.setIndexKeepers(true));
+		byte[] passes = strip(dump, h -> h.setIndexKeepers(false));
+		Assert.assertArrayEquals(passes, indexed);
+
+		// the loaders and what they reference are kept, so there's something for the modes to disagree on
+		File plain = folder.newFile("plain.hprof");
+		new SyntheticHeapDump(50_000, SyntheticHeapDump.Shape.RANDOM, .5, 8, 1).write(plain);
+		Assert.assertTrue(zeros(indexed) < zeros(strip(plain, h -> h.setIndexKeepers(true))));
+	}
+
+	@Test
+	public void parallelEmitMatchesSerial() throws IOException
+	{
+		// segments several times the emit chunk size, so they're split up between workers
+		File dump = folder.newFile("big-segments.hprof");
+		new SyntheticHeapDump(200_000, SyntheticHeapDump.Shape.RANDOM, .5, 8, 2).classLoaders().segmentSize(16 << 20)
+			.write(dump);
+
+		byte[] serial = stripGzip(dump, 1);
+		Assert.assertArrayEquals(serial, stripGzip(dump, 4));
+		Assert.assertArrayEquals(serial, strip(dump, h -> {}));
+	}
+
+	@Test
+	public void failedEmitStopsWorkers() throws IOException
+	{
+		// the first chunk fails while the workers are busy with the ones after it
+		File dump = folder.newFile("unknown-class.hprof");
+		new SyntheticHeapDump(200_000, SyntheticHeapDump.Shape.RANDOM, .5, 8, 5).segmentSize(64 << 20).unknownClass()
+			.write(dump);
+
+		try
+		{
+			stripGzip(dump, 4);
+			Assert.fail();
+		}
+		catch (IOException expected)
+		{
+		}
+		// the pool can count as terminated a moment before its threads are gone, but none may still be on a chunk
+		for (var e : Thread.getAllStackTraces().entrySet())
+		{
+			if (e.getKey().getName().equals("hprof-emit"))
+			{
+				for (StackTraceElement frame : e.getValue())
+				{
+					Assert.assertFalse(frame.toString(), frame.getClassName().startsWith(HProfStripper.class.getName()));
+				}
+			}
+		}
+	}
+
+	@Test
+	public void transferredCopiesMatchBuffered() throws IOException
+	{
+		// big enough for the trace to go straight from file to file when stripping uncompressed
+		File dump = folder.newFile("trace.hprof");
+		new SyntheticHeapDump(20_000, SyntheticHeapDump.Shape.RANDOM, .5, 8, 4).stackTrace(16 << 10).write(dump);
+
+		byte[] transferred = strip(dump, h -> {});
+		Assert.assertEquals(dump.length(), transferred.length);
+		Assert.assertArrayEquals(stripGzip(dump, 1), transferred);
+	}
+
+	@Test
+	public void zstdMatchesUncompressed() throws IOException
+	{
+		Assume.assumeTrue("libprofiler isn't available", SeekFileTest.zstdAvailable());
+		// with a trace big enough to be handed to zstd without going through out
+		File dump = folder.newFile("zstd.hprof");
+		new SyntheticHeapDump(200_000, SyntheticHeapDump.Shape.RANDOM, .5, 8, 3).classLoaders().stackTrace(16 << 10)
+			.write(dump);
+
+		File out = folder.newFile("zstd.hprof.zst");
+		try (var h = new HProfStripper(dump, out, true))
+		{
+			h.runStripper();
+		}
+
+		// read back through the seek table it writes
+		byte[] expected = strip(dump, h -> {});
+		try (var in = SeekFile.open(out))
+		{
+			Assert.assertFalse(in.isSequential());
+			SeekFileTest.assertReads(expected, in);
+		}
+	}
+
+	// parallel emit only happens when compressing, so this decompresses the output again
+	private byte[] stripGzip(File dump, int emitThreads) throws IOException
+	{
+		File out = folder.newFile();
+		try (var h = new HProfStripper(dump, out, false))
+		{
+			h.setEmitThreads(emitThreads);
+			h.runStripper();
+		}
+		try (var in = new GZIPInputStream(new FileInputStream(out)))
+		{
+			return in.readAllBytes();
+		}
+	}
+
+	// strips uncompressed, so the output can be compared as is
+	private byte[] strip(File dump, Consumer<HProfStripper> configure) throws IOException
+	{
+		File out = folder.newFile();
+		try (var h = new HProfStripper(dump, out))
+		{
+			configure.accept(h);
+			h.runStripper();
+		}
+		return Files.readAllBytes(out.toPath());
+	}
+
+	private static int zeros(byte[] b)
+	{
+		int zeros = 0;
+		for (byte v : b)
+		{
+			if (v == 0)
+			{
+				zeros++;
+			}
+		}
+		return zeros;
+	}
+}
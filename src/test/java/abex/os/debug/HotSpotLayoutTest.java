@@ -0,0 +1,83 @@
+package abex.os.debug;
+
+import java.util.List;
+import org.junit.Assert;
+import org.junit.Test;
+
+public class HotSpotLayoutTest
+{
+	private static final byte OBJECT = 2, BYTE = 8, INT = 10, LONG = 11;
+
+	private static final HotSpotLayout COMPRESSED = new HotSpotLayout(8, true, true, false, 8);
+	private static final HotSpotLayout UNCOMPRESSED = new HotSpotLayout(8, false, false, false, 8);
+	private static final HotSpotLayout COMPACT = new HotSpotLayout(8, true, true, true, 8);
+	private static final HotSpotLayout BIT32 = new HotSpotLayout(4, false, false, false, 8);
+
+	@Test
+	public void instances()
+	{
+		// java.lang.Object
+		assertSizes(List.of(), 16, 16, 8, 8);
+		// java.lang.Integer
+		assertSizes(List.of(new byte[]{INT}), 16, 24, 16, 16);
+		// java.lang.Long
+		assertSizes(List.of(new byte[]{LONG}), 24, 24, 16, 16);
+		assertSizes(List.of(new byte[]{OBJECT, OBJECT, LONG, OBJECT, OBJECT}), 40, 56, 32, 32);
+		Assert.assertEquals(32, new HotSpotLayout(8, true, true, false, 16).instanceSize(List.of(new byte[]{LONG})));
+	}
+
+	@Test
+	public void subclassesFillGaps()
+	{
+		// the int can't go in the 3 bytes after the byte
+		assertSizes(List.of(new byte[]{BYTE}, new byte[]{INT}), 24, 24, 16, 16);
+		// with compressed oops the int goes in the gap before the superclass' long, but the byte doesn't fit there too
+		assertSizes(List.of(new byte[]{LONG}, new byte[]{BYTE, INT}), 32, 32, 24, 24);
+	}
+
+	@Test
+	public void arrays()
+	{
+		Assert.assertEquals(16, COMPRESSED.arraySize(BYTE, 0));
+		Assert.assertEquals(24, COMPRESSED.arraySize(BYTE, 1));
+		Assert.assertEquals(32, COMPRESSED.arraySize(INT, 3));
+		Assert.assertEquals(24, COMPRESSED.arraySize(OBJECT, 2));
+		Assert.assertEquals(40, UNCOMPRESSED.arraySize(OBJECT, 2));
+		Assert.assertEquals(32, UNCOMPRESSED.arraySize(INT, 1));
+		Assert.assertEquals(16, COMPACT.arraySize(INT, 1));
+		Assert.assertEquals(24, COMPACT.arraySize(LONG, 1));
+		Assert.assertEquals(16, BIT32.arraySize(INT, 1));
+		Assert.assertEquals(24, BIT32.arraySize(LONG, 1));
+		// padded to the alignment
+		Assert.assertEquals(16L + 4L * Integer.MAX_VALUE + 4, COMPRESSED.arraySize(INT, Integer.MAX_VALUE));
+	}
+
+	@Test
+	public void infer()
+	{
+		Assert.assertEquals(BIT32, HotSpotLayout.infer(4, 0x2000_0000L, 0x3FFF_FFF8L));
+		Assert.assertEquals(COMPRESSED, HotSpotLayout.infer(8, 0xFD87_20A0L, 0xFFFF_FFF8L));
+		// a heap mapped above 32GB can't be addressed with 8 byte aligned compressed oops, but class pointers still are
+		Assert.assertEquals(new HotSpotLayout(8, false, true, false, 8),
+			HotSpotLayout.infer(8, 0x7F16_BAD1_B560L, 0x7FFF_FFFF_FFF8L));
+		Assert.assertEquals(new HotSpotLayout(8, true, true, false, 16),
+			HotSpotLayout.infer(8, 0x8_0000_0000L, 0xF_FFFF_FFF0L));
+	}
+
+	@Test
+	public void argument()
+	{
+		for (var layout : List.of(COMPRESSED, UNCOMPRESSED, COMPACT, BIT32, HotSpotLayout.current()))
+		{
+			Assert.assertEquals(layout, HotSpotLayout.parse(layout.toArgument()));
+		}
+	}
+
+	private static void assertSizes(List<byte[]> fields, int compressed, int uncompressed, int compact, int bit32)
+	{
+		Assert.assertEquals(compressed, COMPRESSED.instanceSize(fields));
+		Assert.assertEquals(uncompressed, UNCOMPRESSED.instanceSize(fields));
+		Assert.assertEquals(compact, COMPACT.instanceSize(fields));
+		Assert.assertEquals(bit32, BIT32.instanceSize(fields));
+	}
+}
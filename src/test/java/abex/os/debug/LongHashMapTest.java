@@ -0,0 +1,152 @@
+package abex.os.debug;
+
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Random;
+import java.util.Set;
+import java.util.function.IntFunction;
+import lombok.extern.slf4j.Slf4j;
+import org.junit.Assert;
+import org.junit.Test;
+
+@Slf4j
+public class LongHashMapTest
+{
+	private static final int FOOTPRINT_ENTRIES = 1 << 20;
+
+	@Test
+	public void matchesHashMap()
+	{
+		Random r = new Random(1);
+		LongIntHashMap ints = new LongIntHashMap();
+		LongObjectHashMap<Integer> objs = new LongObjectHashMap<>();
+		LongHashSet set = new LongHashSet();
+		Map<Long, Integer> expected = new HashMap<>();
+
+		for (int i = 0; i < 500_000; i++)
+		{
+			// small key space so removes hit and probe chains get shifted around
+			long key = (r.nextInt(20_000) + 1) * 8L;
+			if (r.nextInt(3) == 0)
+			{
+				Integer e = expected.remove(key);
+				Assert.assertEquals(e == null ? -1 : e, ints.remove(key, -1));
+				Assert.assertEquals(e, objs.remove(key));
+				Assert.assertEquals(e != null, set.remove(key));
+			}
+			else
+			{
+				int v = r.nextInt();
+				Assert.assertEquals(!expected.containsKey(key), set.add(key));
+				expected.put(key, v);
+				ints.put(key, v);
+				objs.put(key, v);
+			}
+		}
+
+		Assert.assertEquals(expected.size(), ints.size());
+		Assert.assertEquals(expected.size(), objs.size());
+		Assert.assertEquals(expected.size(), set.size());
+		for (long key = 8; key <= 20_000 * 8L; key += 8)
+		{
+			Integer e = expected.get(key);
+			Assert.assertEquals(e == null ? -1 : e, ints.get(key, -1));
+			Assert.assertEquals(e, objs.get(key));
+			Assert.assertEquals(e != null, set.contains(key));
+		}
+	}
+
+	@Test
+	public void nullValues()
+	{
+		LongObjectHashMap<Object> map = new LongObjectHashMap<>();
+		map.put(1, null);
+		Assert.assertTrue(map.containsKey(1));
+		Assert.assertNull(map.get(1));
+		Assert.assertFalse(map.containsKey(2));
+	}
+
+	@Test(expected = IllegalArgumentException.class)
+	public void zeroKey()
+	{
+		new LongHashSet().add(0);
+	}
+
+	@Test
+	public void footprint()
+	{
+		long[] keys = new long[FOOTPRINT_ENTRIES];
+		Random r = new Random(2);
+		for (int i = 0; i < keys.length; i++)
+		{
+			keys[i] = 0x7_0000_0000L + (r.nextInt(1 << 28) * 8L);
+		}
+
+		double boxedIntMap = bytesPerEntry(n ->
+		{
+			Map<Long, Integer> m = new HashMap<>();
+			for (int i = 0; i < n; i++)
+			{
+				m.put(keys[i], i);
+			}
+			return m;
+		});
+		double intMap = bytesPerEntry(n ->
+		{
+			LongIntHashMap m = new LongIntHashMap();
+			for (int i = 0; i < n; i++)
+			{
+				m.put(keys[i], i);
+			}
+			return m;
+		});
+		double boxedSet = bytesPerEntry(n ->
+		{
+			Set<Long> m = new HashSet<>();
+			for (int i = 0; i < n; i++)
+			{
+				m.add(keys[i]);
+			}
+			return m;
+		});
+		double set = bytesPerEntry(n ->
+		{
+			LongHashSet m = new LongHashSet();
+			for (int i = 0; i < n; i++)
+			{
+				m.add(keys[i]);
+			}
+			return m;
+		});
+
+		log.info("bytes per entry: HashMap<Long, Integer> {}, LongIntHashMap {}, HashSet<Long> {}, LongHashSet {}",
+			String.format("%.1f", boxedIntMap), String.format("%.1f", intMap),
+			String.format("%.1f", boxedSet), String.format("%.1f", set));
+
+		// a boxed entry is ~80 bytes, the primitive tables should be 12-24 & 8-16
+		Assert.assertTrue(intMap < boxedIntMap / 2);
+		Assert.assertTrue(set < boxedSet / 2);
+		Assert.assertTrue(intMap <= 32);
+		Assert.assertTrue(set <= 24);
+	}
+
+	private static double bytesPerEntry(IntFunction<Object> fill)
+	{
+		long before = usedHeap();
+		Object map = fill.apply(FOOTPRINT_ENTRIES);
+		long after = usedHeap();
+		Assert.assertNotNull(map);
+		return (after - before) / (double) FOOTPRINT_ENTRIES;
+	}
+
+	private static long usedHeap()
+	{
+		Runtime rt = Runtime.getRuntime();
+		for (int i = 0; i < 3; i++)
+		{
+			System.gc();
+		}
+		return rt.totalMemory() - rt.freeMemory();
+	}
+}
@@ -0,0 +1,72 @@
+package abex.os.debug;
+
+import java.io.IOException;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Random;
+import org.junit.Assert;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+public class ObjectIdIndexTest
+{
+	@Rule
+	public TemporaryFolder folder = new TemporaryFolder();
+
+	@Test
+	public void heap()
+	{
+		matchesHashMap(GraphStorage.heap());
+	}
+
+	@Test
+	public void mapped() throws IOException
+	{
+		try (var storage = GraphStorage.mapped(folder.getRoot()))
+		{
+			matchesHashMap(storage);
+		}
+	}
+
+	private static void matchesHashMap(GraphStorage storage)
+	{
+		Random r = new Random(1);
+		int n = 200_000;
+		LongArray ids = storage.longs(n);
+		Map<Long, Integer> expected = new HashMap<>();
+		for (int i = 0; i < n; i++)
+		{
+			// mostly increasing addresses, with some unreferenceable nodes, duplicates and a few far away ones
+			long id;
+			switch (r.nextInt(20))
+			{
+				case 0:
+					id = 0;
+					break;
+				case 1:
+					id = i > 0 ? ids.get(r.nextInt(i)) : 0;
+					break;
+				case 2:
+					id = 0x7_0000_0000L + r.nextInt(1 << 30) * 8L;
+					break;
+				default:
+					id = 0x1000_0000L + i * 24L;
+			}
+			ids.set(i, id);
+			if (id != 0)
+			{
+				expected.put(id, i);
+			}
+		}
+
+		ObjectIdIndex index = new ObjectIdIndex(storage, ids, n);
+		for (var e : expected.entrySet())
+		{
+			Assert.assertEquals((int) e.getValue(), index.get(e.getKey()));
+		}
+		Assert.assertEquals(-1, index.get(0x1000_0000L + 8));
+		Assert.assertEquals(-1, index.get(1));
+		Assert.assertEquals(-1, index.get(Long.MAX_VALUE));
+	}
+}
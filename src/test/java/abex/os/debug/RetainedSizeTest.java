@@ -0,0 +1,470 @@
+package abex.os.debug;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.StringWriter;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.List;
+import org.junit.Assert;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+public class RetainedSizeTest
+{
+	@Rule
+	public TemporaryFolder folder = new TemporaryFolder();
+
+	@Test
+	public void mappedMatchesHeap() throws IOException
+	{
+		File dump = folder.newFile("random.hprof");
+		new SyntheticHeapDump(50_000, SyntheticHeapDump.Shape.RANDOM, .3, 8, 1).write(dump);
+
+		var heap = retained(dump, GraphStorage.heap());
+		var mapped = retained(dump, GraphStorage.mapped(folder.newFolder()));
+
+		// names are resolved after the parse
+		int plugins = 0;
+		for (int i = 0; i < heap.num; i++)
+		{
+			if ("net/runelite/client/plugins/Plugin".equals(heap.parentClazz(i)))
+			{
+				Assert.assertTrue(heap.clazz(i).startsWith("synthetic/Plugin"));
+				plugins++;
+			}
+		}
+		Assert.assertEquals(16, plugins);
+
+		Assert.assertEquals(heap.num, mapped.num);
+		Assert.assertArrayEquals(heap.retainedSize, mapped.retainedSize);
+		Assert.assertArrayEquals(heap.numObjects, mapped.numObjects);
+		for (int i = 0; i < heap.num; i++)
+		{
+			Assert.assertEquals(heap.clazz(i), mapped.clazz(i));
+		}
+	}
+
+	@Test
+	public void cache() throws IOException
+	{
+		File dump = folder.newFile("tree.hprof");
+		new SyntheticHeapDump(20_000, SyntheticHeapDump.Shape.TREE, .5, 4, 2).write(dump);
+		Assert.assertNull(RetainedSizeCache.load(dump, false));
+
+		var computed = retained(dump, GraphStorage.heap());
+		RetainedSizeCache.save(dump, computed);
+		var loaded = RetainedSizeCache.load(dump, false);
+		Assert.assertNotNull(loaded);
+		Assert.assertEquals(computed.num, loaded.num);
+		Assert.assertArrayEquals(computed.idom, loaded.idom);
+		Assert.assertArrayEquals(computed.retainedSize, loaded.retainedSize);
+		Assert.assertArrayEquals(computed.numObjects, loaded.numObjects);
+		assertHistogramEquals(computed.histogram, loaded.histogram);
+		assertHistogramEquals(computed.dominatorRoots, loaded.dominatorRoots);
+		for (int i = 0; i < computed.num; i++)
+		{
+			Assert.assertEquals(computed.clazz(i), loaded.clazz(i));
+			Assert.assertEquals(computed.parentClazz(i), loaded.parentClazz(i));
+		}
+
+		// a different dump at the same path doesn't use it
+		new SyntheticHeapDump(20_000, SyntheticHeapDump.Shape.CHAIN, .5, 4, 2).write(dump);
+		Assert.assertNull(RetainedSizeCache.load(dump, false));
+	}
+
+	@Test
+	public void cacheFailureKeepsResult() throws IOException
+	{
+		File dump = folder.newFile("unsaved.hprof");
+		new SyntheticHeapDump(20_000, SyntheticHeapDump.Shape.TREE, .5, 4, 2).write(dump);
+		// the sidecar can't be replaced once it's written
+		File sidecar = RetainedSizeCache.sidecar(dump);
+		Assert.assertTrue(new File(sidecar, "in-the-way").mkdirs());
+
+		var rsr = RetainedSizeAnalyzer.analyze(dump, true, false, false, null, GraphStorage.heap(), null);
+		Assert.assertEquals(retained(dump, GraphStorage.heap()).num, rsr.num);
+		Assert.assertTrue(sidecar.isDirectory());
+		Assert.assertFalse(RetainedSizeCache.tmp(dump).exists());
+	}
+
+		@Test
+	public void budget() throws IOException
+	{
+		File dump = folder.newFile("budget.hprof");
+		new SyntheticHeapDump(50_000, SyntheticHeapDump.Shape.TREE, .5, 4, 3).write(dump);
+
+		try
+		{
+			retained(dump, GraphStorage.mapped(folder.newFolder(), 1 << 16));
+			Assert.fail();
+		}
+		catch (HProfStripper.HeapBudgetExceededException expected)
+		{
+		}
+
+		var heap = retained(dump, GraphStorage.heap());
+		List<String> stages = new ArrayList<>();
+		try (var h = new HProfStripper(dump))
+		{
+			h.setGraphStorage(GraphStorage.mapped(folder.newFolder(), 4 << 20));
+			h.setProgressListener((stage, fraction) ->
+			{
+				if (stages.isEmpty() || !stages.get(stages.size() - 1).equals(stage))
+				{
+					stages.add(stage);
+				}
+				Assert.assertTrue(fraction <= 1);
+			});
+			Assert.assertArrayEquals(heap.retainedSize, h.runRetainedSizeComputer().retainedSize);
+		}
+		Assert.assertEquals(List.of("Reading heap dump", "Resolving names", "Resolving references", "Computing dominators",
+			"Computing retained sizes"), stages);
+	}
+
+	@Test
+	public void budgetCheckedWhileReading() throws IOException
+	{
+		File dump = folder.newFile("early.hprof");
+		new SyntheticHeapDump(100_000, SyntheticHeapDump.Shape.TREE, .5, 8, 3).write(dump);
+
+		List<String> stages = new ArrayList<>();
+		try (var h = new HProfStripper(dump))
+		{
+			h.setGraphStorage(GraphStorage.mapped(folder.newFolder(), 1 << 10));
+			h.setProgressListener((stage, fraction) -> stages.add(stage));
+			h.runRetainedSizeComputer();
+			Assert.fail();
+		}
+		catch (HProfStripper.HeapBudgetExceededException expected)
+		{
+			Assert.assertTrue(expected.getMessage(), expected.getMessage().startsWith("reading the dump"));
+		}
+		Assert.assertEquals(List.of("Reading heap dump"), stages);
+	}
+
+	@Test
+	public void stream() throws IOException
+	{
+		File dump = folder.newFile("stream.hprof");
+		new SyntheticHeapDump(100_000, SyntheticHeapDump.Shape.RANDOM, .2, 4, 4).write(dump);
+
+		ByteArrayOutputStream out = new ByteArrayOutputStream();
+		RetainedSizeAnalyzer.stream(dump, false, false, null, out);
+
+		List<String> stages = new ArrayList<>();
+		var summary = RetainedSizeAnalyzer.readStream(new DataInputStream(new ByteArrayInputStream(out.toByteArray())),
+			(stage, fraction) -> stages.add(stage), RetainedSizeAnalyzer.Summary.class);
+		Assert.assertTrue(stages.contains("Reading heap dump"));
+		var rsr = retained(dump, GraphStorage.heap());
+		var sizes = summary.getPlugins();
+		Assert.assertEquals(RetainedSizeAnalyzer.pluginSizes(rsr), sizes);
+		assertHistogramEquals(rsr.histogram, summary.getHistogram());
+		Assert.assertEquals(16, sizes.size());
+		for (int i = 1; i < sizes.size(); i++)
+		{
+			Assert.assertTrue(sizes.get(i - 1).getRetainedSize() >= sizes.get(i).getRetainedSize());
+		}
+	}
+
+	@Test
+	public void histogram() throws IOException
+	{
+		File dump = folder.newFile("histogram.hprof");
+		new SyntheticHeapDump(30_000, SyntheticHeapDump.Shape.RANDOM, .4, 8, 5).write(dump);
+		var rsr = retained(dump, GraphStorage.heap());
+		var h = rsr.histogram;
+
+		// a class retains what its instances do, except those under another instance of it
+		int[] instances = new int[h.size()];
+		long[] retained = new long[h.size()];
+		for (int v = 0; v < rsr.num; v++)
+		{
+			int c = rsr.nodeClasses[v];
+			if (c < 0)
+			{
+				continue;
+			}
+			instances[c]++;
+			boolean counted = rsr.idom[v] >= 0;
+			for (int d = rsr.idom[v]; d >= 0; d = rsr.idom[d])
+			{
+				counted &= rsr.nodeClasses[d] != c;
+			}
+			if (counted)
+			{
+				retained[c] += rsr.retainedSize[v];
+			}
+		}
+		Assert.assertArrayEquals(instances, h.instances);
+		Assert.assertArrayEquals(retained, h.retainedSize);
+
+		int node = index(h, "synthetic/Node");
+		Assert.assertEquals(30_000, h.instances[node]);
+		// compressed oops: a 12 byte header, a reference in the gap before the long, then the other three
+		Assert.assertEquals(30_000L * 40, h.shallowSize[node]);
+		Assert.assertTrue(h.instances[index(h, "[B")] > 0);
+		Assert.assertEquals(h.shallowSize[index(h, "[B")], h.retainedSize[index(h, "[B")]);
+
+		var bytes = new ByteArrayOutputStream();
+		h.write(new DataOutputStream(bytes));
+		assertHistogramEquals(h, ClassHistogram.read(new DataInputStream(new ByteArrayInputStream(bytes.toByteArray()))));
+
+		var csv = new StringWriter();
+		h.writeCsv(csv);
+		String[] lines = csv.toString().split("\n");
+		Assert.assertEquals("class,instances,shallow bytes,retained bytes", lines[0]);
+		Assert.assertTrue(Arrays.asList(lines).contains("synthetic/Node,30000," + h.shallowSize[node] + "," + h.retainedSize[node]));
+	}
+
+	@Test
+	public void histogramChain() throws IOException
+	{
+		// every node but the first is dominated by another node, so the class retains exactly what the first does
+		File dump = folder.newFile("chain.hprof");
+		new SyntheticHeapDump(10_000, SyntheticHeapDump.Shape.CHAIN, 0, 4, 6).write(dump);
+		var rsr = retained(dump, GraphStorage.heap());
+		var h = rsr.histogram;
+		int node = index(h, "synthetic/Node");
+		Assert.assertEquals(h.shallowSize[node], h.retainedSize[node]);
+	}
+
+	@Test
+	public void diff() throws IOException
+	{
+		File before = folder.newFile("before.hprof");
+		File after = folder.newFile("after.hprof");
+		new SyntheticHeapDump(20_000, SyntheticHeapDump.Shape.TREE, .5, 4, 6).write(before);
+		new SyntheticHeapDump(40_000, SyntheticHeapDump.Shape.TREE, .5, 4, 6).write(after);
+
+		var diff = RetainedSizeAnalyzer.compare(before, after, false, false, f -> GraphStorage.heap(), null);
+		var node = delta(diff.classes, "synthetic/Node");
+		Assert.assertEquals(20_000, node.getInstancesBefore());
+		Assert.assertEquals(40_000, node.getInstancesAfter());
+		Assert.assertEquals(node.getShallowBefore(), node.shallowDelta());
+		Assert.assertFalse(diff.dominatorRoots.isEmpty());
+		for (int i = 1; i < diff.classes.size(); i++)
+		{
+			Assert.assertTrue(diff.classes.get(i - 1).retainedDelta() >= diff.classes.get(i).retainedDelta());
+		}
+
+		// comparing a dump with itself finds nothing
+		var same = RetainedSizeAnalyzer.compare(before, before, false, false, f -> GraphStorage.heap(), null);
+		for (var d : same.classes)
+		{
+			Assert.assertEquals(0, d.instancesDelta());
+			Assert.assertEquals(0, d.retainedDelta());
+		}
+
+		ByteArrayOutputStream out = new ByteArrayOutputStream();
+		RetainedSizeAnalyzer.streamComparison(before, after, false, false, out);
+		var streamed = RetainedSizeAnalyzer.readStream(new DataInputStream(new ByteArrayInputStream(out.toByteArray())),
+			(stage, fraction) -> {}, HeapDiff.class);
+		Assert.assertEquals(diff.classes, streamed.classes);
+		Assert.assertEquals(diff.dominatorRoots, streamed.dominatorRoots);
+	}
+
+	@Test
+	public void query() throws IOException
+	{
+		File dump = folder.newFile("query.hprof");
+		new SyntheticHeapDump(50_000, SyntheticHeapDump.Shape.RANDOM, .3, 8, 7).write(dump);
+		HProfStripper.RetainedSizeResult rsr;
+		try (var h = new HProfStripper(dump))
+		{
+			h.setGraphStorage(GraphStorage.mapped(folder.newFolder()));
+			h.setBuildQueries(true);
+			rsr = h.runRetainedSizeComputer();
+		}
+		var q = rsr.query;
+
+		// distance of every node from the root, following references forwards
+		int[] dist = new int[rsr.num];
+		Arrays.fill(dist, -1);
+		int[] queue = new int[rsr.num];
+		int tail = 0;
+		dist[q.root] = 0;
+		queue[tail++] = q.root;
+		List<List<Integer>> succs = new ArrayList<>();
+		for (int v = 0; v < rsr.num; v++)
+		{
+			succs.add(new ArrayList<>());
+		}
+		for (int v = 0; v < rsr.num; v++)
+		{
+			for (int e = q.predStart[v]; e < q.predStart[v + 1]; e++)
+			{
+				succs.get(q.preds[e]).add(v);
+			}
+		}
+		for (int head = 0; head < tail; head++)
+		{
+			int v = queue[head];
+			for (int w : succs.get(v))
+			{
+				if (dist[w] == -1)
+				{
+					dist[w] = dist[v] + 1;
+					queue[tail++] = w;
+				}
+			}
+		}
+
+		for (int v = 0; v < rsr.num; v += 7)
+		{
+			int[] path = q.pathToRoot(v);
+			if (dist[v] == -1)
+			{
+				Assert.assertNull(path);
+				continue;
+			}
+			Assert.assertEquals(dist[v], path.length);
+			if (v == q.root)
+			{
+				continue;
+			}
+			Assert.assertEquals(v, path[0]);
+			for (int i = 0; i < path.length; i++)
+			{
+				int referrer = i + 1 < path.length ? path[i + 1] : q.root;
+				Assert.assertTrue(succs.get(referrer).contains(path[i]));
+			}
+		}
+
+		// the root dominates lots of objects, far more than are asked for
+		List<Long> expected = new ArrayList<>();
+		for (int v = 0; v < rsr.num; v++)
+		{
+			if (rsr.idom[v] == q.root)
+			{
+				expected.add(rsr.retainedSize[v]);
+			}
+		}
+		expected.sort(Comparator.reverseOrder());
+		Assert.assertEquals(expected.size(), q.childCount(q.root));
+		int[] top = q.topRetainedChildren(q.root, 20);
+		Assert.assertEquals(Math.min(20, expected.size()), top.length);
+		for (int i = 0; i < top.length; i++)
+		{
+			Assert.assertEquals(q.root, rsr.idom[top[i]]);
+			Assert.assertEquals((long) expected.get(i), rsr.retainedSize[top[i]]);
+		}
+		Assert.assertEquals(expected.stream().mapToLong(Long::longValue).sum(), q.childrenRetainedSize(q.root));
+	}
+
+	@Test
+	public void gcRoots() throws IOException
+	{
+		File dump = folder.newFile("roots.hprof");
+		new SyntheticHeapDump(20_000, SyntheticHeapDump.Shape.TREE, .5, 8, 8).nativeRoots().write(dump);
+		var rsr = retained(dump, GraphStorage.heap());
+
+		// the plugin only native code holds on to is still counted
+		var sizes = RetainedSizeAnalyzer.pluginSizes(rsr);
+		Assert.assertEquals(16, sizes.size());
+		var held = sizes.stream().filter(s -> s.getName().equals("synthetic/Plugin15")).findFirst().orElseThrow();
+		Assert.assertTrue(held.getRetainedSize() > 0);
+
+		var roots = rsr.gcRoots;
+		int jni = index(roots, "JNI global");
+		int frame = index(roots, "Java frame");
+		Assert.assertEquals(1, roots.instances[jni]);
+		Assert.assertEquals(held.getRetainedSize(), roots.retainedSize[jni]);
+		Assert.assertEquals(1, roots.instances[frame]);
+		Assert.assertEquals(held.getRetainedSize(), roots.retainedSize[frame]);
+		// every class is a sticky class root
+		Assert.assertEquals(rsr.classes.size(), roots.instances[index(roots, "Sticky class")]);
+
+		RetainedSizeCache.save(dump, rsr);
+		assertHistogramEquals(roots, RetainedSizeCache.load(dump, false).gcRoots);
+	}
+
+	@Test
+	public void weakReferences() throws IOException
+	{
+		File dump = folder.newFile("references.hprof");
+		new SyntheticHeapDump(20_000, SyntheticHeapDump.Shape.RANDOM, .5, 4, 9).references().write(dump);
+
+		var strong = RetainedSizeAnalyzer.analyze(dump, false, false, false, null, GraphStorage.heap(), null);
+		var weak = RetainedSizeAnalyzer.analyze(dump, true, true, false, null, GraphStorage.heap(), null);
+		Assert.assertEquals(0, strong.softlyRetained);
+		Assert.assertEquals(0, strong.weaklyRetained);
+
+		// the referenced components are only counted as held by the references, and nothing else changes
+		var strongSizes = RetainedSizeAnalyzer.pluginSizes(strong);
+		var weakSizes = RetainedSizeAnalyzer.pluginSizes(weak);
+		Assert.assertEquals(16, weakSizes.size());
+		long soft = size(strongSizes, "synthetic/Plugin15") - size(weakSizes, "synthetic/Plugin15");
+		long weakly = size(strongSizes, "synthetic/Plugin14") - size(weakSizes, "synthetic/Plugin14");
+		Assert.assertTrue(soft > 10_000 && weakly > 10_000);
+		Assert.assertEquals(soft, weak.softlyRetained);
+		Assert.assertEquals(weakly, weak.weaklyRetained);
+		Assert.assertEquals(size(strongSizes, "synthetic/Plugin0"), size(weakSizes, "synthetic/Plugin0"));
+
+		// the cache keeps both apart
+		Assert.assertNull(RetainedSizeCache.load(dump, false));
+		var cached = RetainedSizeCache.load(dump, true);
+		Assert.assertEquals(weak.softlyRetained, cached.softlyRetained);
+		Assert.assertEquals(weak.weaklyRetained, cached.weaklyRetained);
+		Assert.assertArrayEquals(weak.retainedSize, cached.retainedSize);
+	}
+
+	private static long size(List<RetainedSizeAnalyzer.PluginSize> sizes, String plugin)
+	{
+		for (var s : sizes)
+		{
+			if (s.getName().equals(plugin))
+			{
+				return s.getRetainedSize();
+			}
+		}
+		throw new AssertionError(plugin);
+	}
+
+	private static HeapDiff.Delta delta(List<HeapDiff.Delta> deltas, String name)
+	{
+		for (var d : deltas)
+		{
+			if (d.getName().equals(name))
+			{
+				return d;
+			}
+		}
+		throw new AssertionError(name);
+	}
+
+	private static int index(ClassHistogram h, String name)
+	{
+		for (int i = 0; i < h.size(); i++)
+		{
+			if (name.equals(h.names[i]))
+			{
+				return i;
+			}
+		}
+		throw new AssertionError(name);
+	}
+
+	private static void assertHistogramEquals(ClassHistogram expected, ClassHistogram actual)
+	{
+		Assert.assertArrayEquals(expected.names, actual.names);
+		Assert.assertArrayEquals(expected.instances, actual.instances);
+		Assert.assertArrayEquals(expected.shallowSize, actual.shallowSize);
+		Assert.assertArrayEquals(expected.retainedSize, actual.retainedSize);
+	}
+
+	private static HProfStripper.RetainedSizeResult retained(File dump, GraphStorage storage) throws IOException
+	{
+		try (var h = new HProfStripper(dump))
+		{
+			h.setGraphStorage(storage);
+			return h.runRetainedSizeComputer();
+		}
+	}
+}
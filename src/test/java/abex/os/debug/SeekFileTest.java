@@ -0,0 +1,220 @@
+package abex.os.debug;
+
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
+import java.util.Arrays;
+import java.util.Random;
+import org.junit.Assert;
+import org.junit.Assume;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+public class SeekFileTest
+{
+	@Rule
+	public TemporaryFolder folder = new TemporaryFolder();
+
+	@Test
+	public void pagedAndMapped() throws IOException
+	{
+		File dump = dump();
+		byte[] expected = Files.readAllBytes(dump.toPath());
+		for (boolean mapped : new boolean[]{false, true})
+		{
+			try (var in = new SeekFile(dump, mapped))
+			{
+				Assert.assertFalse(in.isSequential());
+				Assert.assertNotNull(in.channel());
+				assertReads(expected, in);
+			}
+		}
+	}
+
+	@Test
+	public void zstdStream() throws IOException
+	{
+		Assume.assumeTrue("libprofiler isn't available", zstdAvailable());
+		File dump = dump();
+		byte[] expected = Files.readAllBytes(dump.toPath());
+
+		File compressed = folder.newFile("stream.hprof.zst");
+		try (var out = new ZstdOutputStream(new FileOutputStream(compressed), 3))
+		{
+			out.write(expected);
+		}
+
+		try (var in = SeekFile.open(compressed))
+		{
+			Assert.assertTrue(in.isSequential());
+			Assert.assertNull(in.channel());
+			assertReads(expected, in);
+		}
+
+		// and the whole analysis through it
+		Assert.assertArrayEquals(retainedSizes(dump), retainedSizes(compressed));
+	}
+
+	@Test
+	public void zstdSeekable() throws IOException
+	{
+		Assume.assumeTrue("libprofiler isn't available", zstdAvailable());
+		File dump = dump();
+		byte[] expected = Files.readAllBytes(dump.toPath());
+
+		// small frames, so reads and seeks cross lots of them
+		File compressed = folder.newFile("seekable.hprof.zst");
+		try (var out = new ZstdOutputStream(new FileOutputStream(compressed), 3, 0, 0, 64 << 10))
+		{
+			out.write(expected);
+		}
+
+		try (var in = SeekFile.open(compressed))
+		{
+			Assert.assertFalse(in.isSequential());
+			assertReads(expected, in);
+		}
+
+		File empty = folder.newFile("empty.zst");
+		new ZstdOutputStream(new FileOutputStream(empty), 3, 0, 0, 64 << 10).close();
+		try (var in = SeekFile.open(empty))
+		{
+			Assert.assertEquals(0, in.length());
+			Assert.assertTrue(in.atEnd());
+			Assert.assertEquals(-1, in.read());
+		}
+	}
+
+	@Test
+	public void zstdBufferWrites() throws IOException
+	{
+		Assume.assumeTrue("libprofiler isn't available", zstdAvailable());
+		File dump = dump();
+		byte[] expected = Files.readAllBytes(dump.toPath());
+
+		// to a file, which zstd's output goes to through its channel, and to any other stream
+		File toFile = folder.newFile("file.zst");
+		try (var out = new ZstdOutputStream(new FileOutputStream(toFile), 3, 0, 0, 64 << 10))
+		{
+			writeMixed(out, dump, expected);
+		}
+		File toStream = folder.newFile("stream.zst");
+		try (var out = new ZstdOutputStream(new BufferedOutputStream(new FileOutputStream(toStream)), 3, 0, 0, 64 << 10))
+		{
+			writeMixed(out, dump, expected);
+		}
+
+		for (File compressed : new File[]{toFile, toStream})
+		{
+			try (var in = SeekFile.open(compressed))
+			{
+				assertReads(expected, in);
+			}
+		}
+	}
+
+	// the dump in quarters: small writes, a big array, a direct buffer and a read only one, then mapped pages
+	private static void writeMixed(ZstdOutputStream out, File dump, byte[] expected) throws IOException
+	{
+		int q = expected.length / 5;
+		for (int i = 0; i < q; )
+		{
+			if (i % 3 == 0)
+			{
+				out.write(expected[i++]);
+			}
+			else
+			{
+				int len = Math.min(8, q - i);
+				out.write(expected, i, len);
+				i += len;
+			}
+		}
+		out.write(expected, q, q);
+
+		ByteBuffer direct = ByteBuffer.allocateDirect(q);
+		direct.put(expected, 2 * q, q).flip();
+		out.write(direct);
+		Assert.assertFalse(direct.hasRemaining());
+
+		ByteBuffer readOnly = ByteBuffer.wrap(expected, 3 * q, q).asReadOnlyBuffer();
+		out.write(readOnly);
+		Assert.assertFalse(readOnly.hasRemaining());
+
+		try (var in = new SeekFile(dump, true))
+		{
+			in.seek(4 * q);
+			in.copyTo(out, expected.length - 4 * q);
+		}
+	}
+
+	private File dump() throws IOException
+	{
+		File dump = folder.newFile("dump.hprof");
+		new SyntheticHeapDump(30_000, SyntheticHeapDump.Shape.RANDOM, .5, 8, 1).write(dump);
+		return dump;
+	}
+
+	private static long[] retainedSizes(File dump) throws IOException
+	{
+		try (var h = new HProfStripper(dump))
+		{
+			h.setGraphStorage(GraphStorage.heap());
+			return h.runRetainedSizeComputer().retainedSize;
+		}
+	}
+
+	static boolean zstdAvailable()
+	{
+		try
+		{
+			ZstdOutputStream.init();
+			new ZstdOutputStream(OutputStream.nullOutputStream(), 1).free();
+			return true;
+		}
+		catch (RuntimeException | LinkageError e)
+		{
+			return false;
+		}
+	}
+
+	// reads all of it, then seeks around both ways with the small reads the parser does, then copies part of it
+	static void assertReads(byte[] expected, SeekFile in) throws IOException
+	{
+		byte[] all = new byte[expected.length];
+		in.seek(0);
+		in.readFully(all);
+		Assert.assertArrayEquals(expected, all);
+		Assert.assertTrue(in.atEnd());
+		Assert.assertEquals(expected.length, in.length());
+
+		ByteBuffer buf = ByteBuffer.wrap(expected);
+		Random r = new Random(1);
+		for (int i = 0; i < 100; i++)
+		{
+			int off = r.nextInt(expected.length - 64);
+			in.seek(off);
+			Assert.assertEquals(buf.getLong(off), in.readLong());
+			Assert.assertEquals(buf.getInt(off + 8), in.readInt());
+			Assert.assertEquals(expected[off + 12], in.readByte());
+			byte[] b = new byte[r.nextInt(51)];
+			in.readFully(b);
+			Assert.assertArrayEquals(Arrays.copyOfRange(expected, off + 13, off + 13 + b.length), b);
+			Assert.assertEquals(off + 13 + b.length, in.offset());
+		}
+
+		int off = expected.length / 3;
+		int len = expected.length / 2;
+		var out = new ByteArrayOutputStream();
+		in.seek(off);
+		in.copyTo(out, len);
+		Assert.assertArrayEquals(Arrays.copyOfRange(expected, off, off + len), out.toByteArray());
+		Assert.assertEquals(off + len, in.offset());
+	}
+}
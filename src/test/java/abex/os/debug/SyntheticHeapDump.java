@@ -0,0 +1,536 @@
+package abex.os.debug;
+
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.Random;
+
+/**
+ * Writes a deterministic heap dump of {@code objects} nodes. Each node has {@code left} & {@code right} references
+ * laid out according to the {@link Shape}, a {@code payload} long, and a {@code name} String with probability
+ * {@code stringDensity}. A static array on {@code synthetic/Holder} roots one plugin instance per component, and
+ * every plugin references the head of its own component. With {@link #nativeRoots} the last plugin is instead only
+ * referenced by a jni global and a java frame, like one held by native code or a worker thread. With
+ * {@link #references} the last plugin holds its component through a SoftReference and the one before it through a
+ * WeakReference. With {@link #classLoaders} every plugin class is loaded by a node of its component, which the
+ * stripper keeps along with what it references
+ */
+public class SyntheticHeapDump
+{
+	public enum Shape
+	{
+		// complete binary tree
+		TREE,
+		// linked list through left, which is as deep as a graph can get
+		CHAIN,
+		// binary tree where some nodes also hold an Object[] of references to anywhere in their component, so objects
+		// are shared and there are cycles
+		RANDOM,
+	}
+
+	private static final int
+		UTF8 = 0x01,
+		LOAD_CLASS = 0x02,
+		TRACE = 0x05,
+		HEAP_DUMP_SEGMENT = 0x1C,
+		HEAP_DUMP_END = 0x2C,
+		ROOT_JNI_GLOBAL = 0x01,
+		ROOT_JAVA_FRAME = 0x03,
+		ROOT_STICKY_CLASS = 0x05,
+		CLASS_DUMP = 0x20,
+		INSTANCE_DUMP = 0x21,
+		OBJ_ARRAY_DUMP = 0x22,
+		PRIM_ARRAY_DUMP = 0x23,
+		T_OBJECT = 0x02,
+		T_BYTE = 0x08,
+		T_INT = 0x0A,
+		T_LONG = 0x0B;
+
+	private static final double EXTRA_REFS_CHANCE = .1;
+	private static final int MAX_EXTRA_REFS = 8;
+
+	// classes
+	private static final int
+		C_OBJECT = 0,
+		C_STRING = 1,
+		C_OBJECT_ARRAY = 2,
+		C_NODE = 3,
+		C_HOLDER = 4,
+		C_PLUGIN = 5,
+		C_PLUGINS = 6;
+
+	private final int objects;
+	private final Shape shape;
+	private final double stringDensity;
+	private final int identSize;
+	private final long seed;
+	private final int plugins;
+	private boolean nativeRoots;
+	private boolean references;
+	private boolean classLoaders;
+	private int segmentSize = 1 << 20;
+	private int stackFrames;
+	private boolean unknownClass;
+
+	private DataOutputStream out;
+	private ByteArrayOutputStream segmentBuf;
+	private DataOutputStream segment;
+
+	public SyntheticHeapDump(int objects, Shape shape, double stringDensity, int identSize, long seed)
+	{
+		if (identSize != 4 && identSize != 8)
+		{
+			throw new IllegalArgumentException("identSize " + identSize);
+		}
+		this.objects = objects;
+		this.shape = shape;
+		this.stringDensity = stringDensity;
+		this.identSize = identSize;
+		this.seed = seed;
+		this.plugins = Math.max(1, Math.min(16, objects / 1024));
+	}
+
+	public SyntheticHeapDump nativeRoots()
+	{
+		nativeRoots = true;
+		return this;
+	}
+
+	public SyntheticHeapDump references()
+	{
+		references = true;
+		return this;
+	}
+
+	public SyntheticHeapDump classLoaders()
+	{
+		classLoaders = true;
+		return this;
+	}
+
+	// heap dump segments are cut once they reach this many bytes
+	public SyntheticHeapDump segmentSize(int bytes)
+	{
+		segmentSize = bytes;
+		return this;
+	}
+
+	// a stack trace record this many frames deep, which the stripper copies as is
+	public SyntheticHeapDump stackTrace(int frames)
+	{
+		stackFrames = frames;
+		return this;
+	}
+
+	// an instance of a class that has no class dump near the start, which only fails once its fields are zeroed
+	public SyntheticHeapDump unknownClass()
+	{
+		unknownClass = true;
+		return this;
+	}
+
+	public void write(File file) throws IOException
+	{
+		try (var fos = new FileOutputStream(file))
+		{
+			write(fos);
+		}
+	}
+
+	public void write(OutputStream os) throws IOException
+	{
+		out = new DataOutputStream(new BufferedOutputStream(os, 1 << 16));
+		segmentBuf = new ByteArrayOutputStream(segmentSize + (segmentSize >> 2));
+		segment = new DataOutputStream(segmentBuf);
+
+		out.write("JAVA PROFILE 1.0.2\0".getBytes(StandardCharsets.UTF_8));
+		out.writeInt(identSize);
+		out.writeLong(0);
+
+		int referenceClasses = C_PLUGINS + plugins;
+		String[] classNames = new String[referenceClasses + (references ? 3 : 0)];
+		classNames[C_OBJECT] = "java/lang/Object";
+		classNames[C_STRING] = "java/lang/String";
+		classNames[C_OBJECT_ARRAY] = "[Ljava/lang/Object;";
+		classNames[C_NODE] = "synthetic/Node";
+		classNames[C_HOLDER] = "synthetic/Holder";
+		classNames[C_PLUGIN] = "net/runelite/client/plugins/Plugin";
+		for (int p = 0; p < plugins; p++)
+		{
+			classNames[C_PLUGINS + p] = "synthetic/Plugin" + p;
+		}
+		if (references)
+		{
+			classNames[referenceClasses] = "java/lang/ref/Reference";
+			classNames[referenceClasses + 1] = "java/lang/ref/SoftReference";
+			classNames[referenceClasses + 2] = "java/lang/ref/WeakReference";
+		}
+		String[] fieldNames = references
+			? new String[]{"value", "hash", "left", "right", "name", "payload", "extra", "roots", "root", "referent", "queue", "timestamp"}
+			: new String[]{"value", "hash", "left", "right", "name", "payload", "extra", "roots", "root"};
+
+		for (int i = 0; i < classNames.length; i++)
+		{
+			utf8(classNameId(i), classNames[i]);
+		}
+		for (int i = 0; i < fieldNames.length; i++)
+		{
+			utf8(fieldNameId(i), fieldNames[i]);
+		}
+		for (int i = 0; i < classNames.length; i++)
+		{
+			record(LOAD_CLASS, 4 + identSize + 4 + identSize);
+			out.writeInt(i + 1);
+			id(out, classId(i));
+			out.writeInt(0);
+			id(out, classNameId(i));
+		}
+
+		if (stackFrames > 0)
+		{
+			record(TRACE, 12 + stackFrames * identSize);
+			out.writeInt(1);
+			out.writeInt(1);
+			out.writeInt(stackFrames);
+			for (int i = 0; i < stackFrames; i++)
+			{
+				id(out, i + 1);
+			}
+		}
+
+		for (int i = 0; i < classNames.length; i++)
+		{
+			segment.writeByte(ROOT_STICKY_CLASS);
+			id(segment, classId(i));
+		}
+
+		int componentSize = (objects + plugins - 1) / plugins;
+		classDump(C_OBJECT, 0, 0);
+		classDump(C_STRING, classId(C_OBJECT), 0, field(0, T_OBJECT), field(1, T_INT));
+		classDump(C_OBJECT_ARRAY, classId(C_OBJECT), 0);
+		classDump(C_NODE, classId(C_OBJECT), 0,
+			field(2, T_OBJECT), field(3, T_OBJECT), field(4, T_OBJECT), field(5, T_LONG), field(6, T_OBJECT));
+		classDump(C_PLUGIN, classId(C_OBJECT), 0);
+		for (int p = 0; p < plugins; p++)
+		{
+			// a quarter of the way into the component, so it has children and nodes before it to keep
+			int loader = p * componentSize + componentSize / 4;
+			classDump(C_PLUGINS + p, classId(C_PLUGIN), classLoaders && loader < objects ? nodeId(loader) : 0,
+				field(8, T_OBJECT));
+		}
+		if (references)
+		{
+			// the referent isn't first, so finding it has to go by name
+			classDump(referenceClasses, classId(C_OBJECT), 0, field(10, T_OBJECT), field(9, T_OBJECT));
+			classDump(referenceClasses + 1, classId(referenceClasses), 0, field(11, T_LONG));
+			classDump(referenceClasses + 2, classId(referenceClasses), 0);
+		}
+
+		// the holder's static is the only root, like a plugin manager keeping every plugin alive
+		segment.writeByte(CLASS_DUMP);
+		id(segment, classId(C_HOLDER));
+		segment.writeInt(0);
+		id(segment, classId(C_OBJECT));
+		for (int i = 0; i < 5; i++)
+		{
+			id(segment, 0);
+		}
+		segment.writeInt(0);
+		segment.writeShort(0);
+		segment.writeShort(1);
+		id(segment, fieldNameId(7));
+		segment.writeByte(T_OBJECT);
+		id(segment, holderArrayId());
+		segment.writeShort(0);
+		flushSegment(false);
+
+		int held = nativeRoots ? plugins - 1 : plugins;
+		segment.writeByte(OBJ_ARRAY_DUMP);
+		id(segment, holderArrayId());
+		segment.writeInt(0);
+		segment.writeInt(held);
+		id(segment, classId(C_OBJECT_ARRAY));
+		for (int p = 0; p < held; p++)
+		{
+			id(segment, pluginId(p));
+		}
+
+		if (nativeRoots)
+		{
+			segment.writeByte(ROOT_JNI_GLOBAL);
+			id(segment, pluginId(plugins - 1));
+			id(segment, 0);
+			// the same object from two frames
+			for (int frame = 0; frame < 2; frame++)
+			{
+				segment.writeByte(ROOT_JAVA_FRAME);
+				id(segment, pluginId(plugins - 1));
+				segment.writeInt(1);
+				segment.writeInt(frame);
+			}
+		}
+
+		for (int p = 0; p < plugins; p++)
+		{
+			long head = p * componentSize < objects ? nodeId(p * componentSize) : 0;
+			// a SoftReference for the last plugin and a WeakReference for the one before
+			int reference = references ? p - (plugins - 2) : -1;
+
+			segment.writeByte(INSTANCE_DUMP);
+			id(segment, pluginId(p));
+			segment.writeInt(0);
+			id(segment, classId(C_PLUGINS + p));
+			segment.writeInt(identSize);
+			id(segment, reference >= 0 ? referenceId(p) : head);
+
+			if (reference >= 0)
+			{
+				boolean soft = reference == 1;
+				segment.writeByte(INSTANCE_DUMP);
+				id(segment, referenceId(p));
+				segment.writeInt(0);
+				id(segment, classId(referenceClasses + (soft ? 1 : 2)));
+				segment.writeInt(identSize * 2 + (soft ? 8 : 0));
+				if (soft)
+				{
+					segment.writeLong(0);
+				}
+				id(segment, 0);
+				id(segment, head);
+			}
+		}
+
+		Random r = new Random(seed);
+		byte[] chars = new byte[64];
+		for (int i = 0; i < objects; i++)
+		{
+			// nodes only point within their own component, so each plugin retains a share of the heap
+			int base = i / componentSize * componentSize;
+			int size = Math.min(componentSize, objects - base);
+			int local = i - base;
+
+			long left = 0;
+			long right = 0;
+			long extra = 0;
+			if (shape == Shape.RANDOM && r.nextDouble() < EXTRA_REFS_CHANCE)
+			{
+				extra = extraId(i);
+			}
+			switch (shape)
+			{
+				case RANDOM:
+				case TREE:
+					left = local * 2 + 1 < size ? nodeId(base + local * 2 + 1) : 0;
+					right = local * 2 + 2 < size ? nodeId(base + local * 2 + 2) : 0;
+					break;
+				case CHAIN:
+					left = local + 1 < size ? nodeId(i + 1) : 0;
+					break;
+			}
+			if (classLoaders && local == componentSize / 4)
+			{
+				// the extra array references nodes before the loader, which are only kept by going back for them
+				extra = extraId(i);
+			}
+			long name = r.nextDouble() < stringDensity ? stringId(i) : 0;
+
+			segment.writeByte(INSTANCE_DUMP);
+			id(segment, nodeId(i));
+			segment.writeInt(0);
+			id(segment, classId(C_NODE));
+			segment.writeInt(identSize * 4 + 8);
+			id(segment, left);
+			id(segment, right);
+			id(segment, name);
+			segment.writeLong(r.nextLong());
+			id(segment, extra);
+
+			if (unknownClass && i == 0)
+			{
+				segment.writeByte(INSTANCE_DUMP);
+				id(segment, nodeId(objects));
+				segment.writeInt(0);
+				id(segment, classId(classNames.length));
+				segment.writeInt(identSize);
+				id(segment, 0);
+			}
+
+			if (name != 0)
+			{
+				int len = 4 + r.nextInt(chars.length - 4);
+				for (int c = 0; c < len; c++)
+				{
+					chars[c] = (byte) ('a' + r.nextInt(26));
+				}
+
+				segment.writeByte(INSTANCE_DUMP);
+				id(segment, name);
+				segment.writeInt(0);
+				id(segment, classId(C_STRING));
+				segment.writeInt(identSize + 4);
+				id(segment, stringValueId(i));
+				segment.writeInt(0);
+
+				segment.writeByte(PRIM_ARRAY_DUMP);
+				id(segment, stringValueId(i));
+				segment.writeInt(0);
+				segment.writeInt(len);
+				segment.writeByte(T_BYTE);
+				segment.write(chars, 0, len);
+			}
+
+			if (extra != 0)
+			{
+				int count = 1 + r.nextInt(MAX_EXTRA_REFS);
+				segment.writeByte(OBJ_ARRAY_DUMP);
+				id(segment, extra);
+				segment.writeInt(0);
+				segment.writeInt(count);
+				id(segment, classId(C_OBJECT_ARRAY));
+				for (int e = 0; e < count; e++)
+				{
+					id(segment, nodeId(base + r.nextInt(size)));
+				}
+			}
+
+			flushSegment(false);
+		}
+
+		flushSegment(true);
+		record(HEAP_DUMP_END, 0);
+		out.flush();
+	}
+
+	private static int[] field(int name, int type)
+	{
+		return new int[]{name, type};
+	}
+
+	private void classDump(int clazz, long superId, long loaderId, int[]... fields) throws IOException
+	{
+		int size = 0;
+		for (int[] f : fields)
+		{
+			size += f[1] == T_OBJECT ? identSize : f[1] == T_LONG ? 8 : 4;
+		}
+
+		segment.writeByte(CLASS_DUMP);
+		id(segment, classId(clazz));
+		segment.writeInt(0);
+		id(segment, superId);
+		id(segment, loaderId);
+		for (int i = 0; i < 4; i++)
+		{
+			id(segment, 0);
+		}
+		segment.writeInt(size);
+		segment.writeShort(0);
+		segment.writeShort(0);
+		segment.writeShort(fields.length);
+		for (int[] f : fields)
+		{
+			id(segment, fieldNameId(f[0]));
+			segment.writeByte(f[1]);
+		}
+	}
+
+	private void utf8(long id, String s) throws IOException
+	{
+		byte[] b = s.getBytes(StandardCharsets.UTF_8);
+		record(UTF8, identSize + b.length);
+		id(out, id);
+		out.write(b);
+	}
+
+	private void record(int tag, int length) throws IOException
+	{
+		out.writeByte(tag);
+		out.writeInt(0);
+		out.writeInt(length);
+	}
+
+	private void flushSegment(boolean force) throws IOException
+	{
+		if (segmentBuf.size() == 0 || (!force && segmentBuf.size() < segmentSize))
+		{
+			return;
+		}
+		record(HEAP_DUMP_SEGMENT, segmentBuf.size());
+		segmentBuf.writeTo(out);
+		segmentBuf.reset();
+	}
+
+	private void id(DataOutputStream os, long id) throws IOException
+	{
+		if (identSize == 4)
+		{
+			os.writeInt((int) id);
+		}
+		else
+		{
+			os.writeLong(id);
+		}
+	}
+
+	// 8 byte ids put objects above 4g, so anything truncating them to an int shows up
+	private long base()
+	{
+		return identSize == 4 ? 0x1000_0000L : 0x7_0000_0000L;
+	}
+
+	private long classNameId(int clazz)
+	{
+		return base() - 0x80_0000L + clazz * 8L;
+	}
+
+	private long fieldNameId(int field)
+	{
+		return base() - 0x40_0000L + field * 8L;
+	}
+
+	private long classId(int clazz)
+	{
+		return base() - 0x20_0000L + clazz * 8L;
+	}
+
+	private long holderArrayId()
+	{
+		return base() - 0x10_0000L;
+	}
+
+	private long pluginId(int plugin)
+	{
+		return base() - 0x8_0000L + plugin * 8L;
+	}
+
+	private long referenceId(int plugin)
+	{
+		return base() - 0xC_0000L + plugin * 8L;
+	}
+
+	// every node gets 32 bytes of id space, for itself, its name, the name's bytes and its extra array
+	long nodeId(int node)
+	{
+		return base() + node * 32L;
+	}
+
+	private long stringId(int node)
+	{
+		return nodeId(node) + 8;
+	}
+
+	private long stringValueId(int node)
+	{
+		return nodeId(node) + 16;
+	}
+
+	private long extraId(int node)
+	{
+		return nodeId(node) + 24;
+	}
+}